@@ -2,12 +2,93 @@ package com.example.lunastreaming.builder;
 
 import com.example.lunastreaming.model.ProductDto;
 import com.example.lunastreaming.model.ProductEntity;
+import com.example.lunastreaming.model.ProductHomeResponse;
+import com.example.lunastreaming.model.ProductResponse;
 import com.example.lunastreaming.model.UserEntity;
+import com.example.lunastreaming.util.FieldSet;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.domain.Page;
+
+import java.util.*;
+import java.util.function.Function;
 
 @Configuration
 public class ProductBuilder {
 
+    // Catálogo de campos de ProductDto para fields= (nombre JSON -> getter)
+    public static final Map<String, Function<ProductDto, Object>> FIELDS = fields();
+
+    private static Map<String, Function<ProductDto, Object>> fields() {
+        Map<String, Function<ProductDto, Object>> f = new LinkedHashMap<>();
+        f.put("id", ProductDto::getId);
+        f.put("providerId", ProductDto::getProviderId);
+        f.put("providerName", ProductDto::getProviderName);
+        f.put("providerStatus", ProductDto::getProviderStatus);
+        f.put("categoryId", ProductDto::getCategoryId);
+        f.put("categoryName", ProductDto::getCategoryName);
+        f.put("name", ProductDto::getName);
+        f.put("terms", ProductDto::getTerms);
+        f.put("productDetail", ProductDto::getProductDetail);
+        f.put("requestDetail", ProductDto::getRequestDetail);
+        f.put("days", ProductDto::getDays);
+        f.put("salePrice", ProductDto::getSalePrice);
+        f.put("salePriceSoles", ProductDto::getSalePriceSoles);
+        f.put("renewalPrice", ProductDto::getRenewalPrice);
+        f.put("isRenewable", ProductDto::getIsRenewable);
+        f.put("isOnRequest", ProductDto::getIsOnRequest);
+        f.put("active", ProductDto::getActive);
+        f.put("createdAt", ProductDto::getCreatedAt);
+        f.put("updatedAt", ProductDto::getUpdatedAt);
+        f.put("imageUrl", ProductDto::getImageUrl);
+        f.put("publishStart", ProductDto::getPublishStart);
+        f.put("publishEnd", ProductDto::getPublishEnd);
+        f.put("daysRemaining", ProductDto::getDaysRemaining);
+        return Collections.unmodifiableMap(f);
+    }
+
+    /**
+     * fields= del storefront: "product.name,product.salePriceSoles,availableStockCount".
+     * Las páginas vienen de la caché completas; aquí solo se recorta lo que se serializa.
+     */
+    public static Page<?> selectHome(Page<ProductHomeResponse> page, FieldSet fields) {
+        if (fields.isAll()) {
+            return page;
+        }
+        FieldSet productFields = fields.nested("product");
+        return page.map(r -> {
+            Map<String, Object> out = new LinkedHashMap<>();
+            if (fields.includes("product")) {
+                out.put("product", productFields.project(r.getProduct(), FIELDS));
+            }
+            if (fields.includes("availableStockCount")) {
+                out.put("availableStockCount", r.getAvailableStockCount());
+            }
+            return out;
+        });
+    }
+
+    // fields= de los productos del proveedor: "product.name,stockResponses.status"
+    public static List<?> selectWithStocks(List<ProductResponse> products, FieldSet fields) {
+        if (fields.isAll()) {
+            return products;
+        }
+        FieldSet productFields = fields.nested("product");
+        FieldSet stockFields = fields.nested("stockResponses");
+        List<Map<String, Object>> out = new ArrayList<>(products.size());
+        for (ProductResponse r : products) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            if (fields.includes("product")) {
+                m.put("product", productFields.project(r.getProduct(), FIELDS));
+            }
+            if (fields.includes("stockResponses")) {
+                m.put("stockResponses", r.getStockResponses() == null ? null
+                        : stockFields.select(r.getStockResponses(), StockBuilder.FIELDS));
+            }
+            out.add(m);
+        }
+        return out;
+    }
+
     public ProductDto productDtoFromEntity(ProductEntity productEntity,
                                            String categoryName, String providerName, UserEntity provider) {
         if (productEntity == null) return null;
@@ -17,6 +98,16 @@ public class ProductBuilder {
             providerStatus = provider.getProviderProfile().getStatus();
         }
 
+        return productDto(productEntity, categoryName, providerName, providerStatus);
+    }
+
+    /**
+     * Variante sin entidad de usuario: para listados que ya traen el estado del perfil en la consulta.
+     */
+    public ProductDto productDto(ProductEntity productEntity, String categoryName,
+                                 String providerName, String providerStatus) {
+        if (productEntity == null) return null;
+
         return ProductDto.builder()
                 .id(productEntity.getId())
                 .providerId(productEntity.getProviderId())
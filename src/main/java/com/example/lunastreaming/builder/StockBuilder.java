@@ -2,6 +2,7 @@ package com.example.lunastreaming.builder;
 
 import com.example.lunastreaming.model.StockEntity;
 import com.example.lunastreaming.model.StockResponse;
+import com.example.lunastreaming.util.FieldSet;
 import org.springframework.stereotype.Component;
 
 import java.math.BigDecimal;
@@ -11,30 +12,88 @@ import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Function;
 
 
 @Component
 public class StockBuilder {
 
+    // Catálogo de campos para fields= (nombre JSON -> getter), en el orden en que se serializan
+    public static final Map<String, Function<StockResponse, Object>> FIELDS = fields();
+
+    private static Map<String, Function<StockResponse, Object>> fields() {
+        Map<String, Function<StockResponse, Object>> f = new LinkedHashMap<>();
+        f.put("id", StockResponse::getId);
+        f.put("productId", StockResponse::getProductId);
+        f.put("productName", StockResponse::getProductName);
+        f.put("username", StockResponse::getUsername);
+        f.put("password", StockResponse::getPassword);
+        f.put("url", StockResponse::getUrl);
+        f.put("tipo", StockResponse::getType);
+        f.put("numeroPerfil", StockResponse::getNumberProfile);
+        f.put("status", StockResponse::getStatus);
+        f.put("pin", StockResponse::getPin);
+        f.put("soldAt", StockResponse::getSoldAt);
+        f.put("buyerId", StockResponse::getBuyerId);
+        f.put("buyerUsername", StockResponse::getBuyerUsername);
+        f.put("buyerUsernamePhone", StockResponse::getBuyerUsernamePhone);
+        f.put("clientName", StockResponse::getClientName);
+        f.put("clientPhone", StockResponse::getClientPhone);
+        f.put("published", StockResponse::getPublished);
+        f.put("refund", StockResponse::getRefund);
+        f.put("pendingRenewals", StockResponse::getPendingRenewals);
+        f.put("startAt", StockResponse::getStartAt);
+        f.put("endAt", StockResponse::getEndAt);
+        f.put("daysRemaining", StockResponse::getDaysRemaining);
+        f.put("providerName", StockResponse::getProviderName);
+        f.put("providerPhone", StockResponse::getProviderPhone);
+        f.put("amount", StockResponse::getAmount);
+        f.put("supportId", StockResponse::getSupportId);
+        f.put("supportType", StockResponse::getSupportType);
+        f.put("supportStatus", StockResponse::getSupportStatus);
+        f.put("supportCreatedAt", StockResponse::getSupportCreatedAt);
+        f.put("supportUpdatedAt", StockResponse::getSupportUpdatedAt);
+        f.put("supportResolvedAt", StockResponse::getSupportResolvedAt);
+        f.put("supportResolutionNote", StockResponse::getSupportResolutionNote);
+        f.put("purchasePrice", StockResponse::getPurchasePrice);
+        f.put("renewable", StockResponse::getRenewable);
+        f.put("renewalPrice", StockResponse::getRenewalPrice);
+        return Collections.unmodifiableMap(f);
+    }
+
     public StockResponse toStockResponse(StockEntity stockEntity) {
+        return toStockResponse(stockEntity, FieldSet.ALL);
+    }
+
+    /**
+     * Igual que el anterior pero solo calcula los campos pedidos: sin producto ni comprador
+     * no se tocan las asociaciones lazy, y el reembolso y los días restantes se omiten si no se piden.
+     */
+    public StockResponse toStockResponse(StockEntity stockEntity, FieldSet fields) {
         if (stockEntity == null) return null;
 
         UUID productId = null;
         String productName = null;
         Boolean renewable = null;
+        BigDecimal amount = null;
         BigDecimal renewalPrice = stockEntity.getPurchasePrice();
-        if (stockEntity.getProduct() != null) {
+        if (fields.includesAny("productId", "productName", "renewable", "renewalPrice", "amount")
+                && stockEntity.getProduct() != null) {
             productId = stockEntity.getProduct().getId();
             productName = stockEntity.getProduct().getName();
             renewable = stockEntity.getProduct().getIsRenewable();
             renewalPrice = stockEntity.getProduct().getRenewalPrice();
+            amount = stockEntity.getProduct().getSalePrice();
         }
 
         UUID buyerId = null;
         String buyerUsername = null;
         String buyerUsernamePhone = null;
-        if (stockEntity.getBuyer() != null) {
+        if (fields.includesAny("buyerId", "buyerUsername", "buyerUsernamePhone") && stockEntity.getBuyer() != null) {
             buyerId = stockEntity.getBuyer().getId();
             buyerUsername = stockEntity.getBuyer().getUsername();
             buyerUsernamePhone = stockEntity.getBuyer().getPhone();
@@ -45,19 +104,18 @@ public class StockBuilder {
             soldAtInstant = stockEntity.getSoldAt().toInstant();
         }
 
-        BigDecimal refund = ZERO;
+        BigDecimal refund = fields.includes("refund") ? ZERO : null;
 
-        if (stockEntity.getEndAt() != null) {
+        if (fields.includes("refund") && stockEntity.getEndAt() != null) {
             Integer totalContractedDays = computeDaysBetween(stockEntity.getStartAt(), stockEntity.getEndAt(), true);
             BigDecimal productPrice = stockEntity.getPurchasePrice() != null ? stockEntity.getPurchasePrice() : null;
-            Integer productDays = stockEntity.getProduct() != null ? stockEntity.getProduct().getDays() : null;
             refund = computeRefund(productPrice, productPrice, totalContractedDays
                     , stockEntity.getEndAt(), BigDecimal.ZERO, stockEntity.getStartAt());
         }
 
         // calcular daysRemaining y daysPublished
         Integer daysRemaining = null;
-        if (stockEntity.getEndAt() != null) {
+        if (fields.includes("daysRemaining") && stockEntity.getEndAt() != null) {
             daysRemaining = computeDaysBetween(Instant.now(), stockEntity.getEndAt(), true);
         }
 
@@ -84,7 +142,7 @@ public class StockBuilder {
                 .endAt(stockEntity.getEndAt())
                 .daysRemaining(daysRemaining)
                 .refund(refund)
-                .amount(stockEntity.getProduct().getSalePrice())
+                .amount(amount)
                 .purchasePrice(stockEntity.getPurchasePrice())
                 .renewable(renewable)
                 .renewalPrice(renewalPrice)
@@ -3,11 +3,13 @@ package com.example.lunastreaming.builder;
 import com.example.lunastreaming.model.UserEntity;
 import com.example.lunastreaming.model.UserSummary;
 
+import java.math.BigDecimal;
 import java.util.Objects;
 
 public class UserMapper {
 
-    public static UserSummary toSummary(UserEntity user) {
+    // balance: saldo disponible real (BalanceLedger.balanceOf), que en cuentas con franjas no es users.balance
+    public static UserSummary toSummary(UserEntity user, BigDecimal balance) {
         if (user == null) return null;
 
         Boolean canTransfer = false;
@@ -32,7 +34,7 @@ public class UserMapper {
                 .username(user.getUsername())
                 .phone(user.getPhone())
                 .role(user.getRole())
-                .balance(user.getBalance())
+                .balance(balance)
                 .salesCount(user.getSalesCount())
                 .status(user.getStatus())
                 .referralsCount(user.getReferralsCount())
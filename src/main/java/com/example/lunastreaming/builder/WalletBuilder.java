@@ -1,10 +1,9 @@
 package com.example.lunastreaming.builder;
 
-import com.example.lunastreaming.model.ExchangeRate;
 import com.example.lunastreaming.model.WalletResponse;
 import com.example.lunastreaming.model.WalletTransaction;
-import com.example.lunastreaming.repository.ExchangeRateRepository;
 import com.example.lunastreaming.repository.SettingRepository;
+import com.example.lunastreaming.service.ExchangeRateTimeline;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Component;
 
@@ -15,14 +14,14 @@ import java.math.RoundingMode;
 @RequiredArgsConstructor
 public class WalletBuilder {
 
-    private final ExchangeRateRepository exchangeRateRepository;
+    // Cada movimiento se convierte a soles con la tasa vigente en su propia fecha
+    private final ExchangeRateTimeline exchangeRateTimeline;
 
     public WalletResponse builderToWalletResponse(WalletTransaction walletTransaction) {
 
-        ExchangeRate rate = exchangeRateRepository.findFirstByOrderByCreatedAtDesc()
-                .orElseThrow(() -> new RuntimeException("No se encontraron tasas de cambio"));
+        BigDecimal rate = exchangeRateTimeline.rateAt(walletTransaction.getCreatedAt());
 
-        BigDecimal resultadoRaw = walletTransaction.getAmount().multiply(rate.getRate());
+        BigDecimal resultadoRaw = walletTransaction.getAmount().multiply(rate);
 
         BigDecimal amountSoles = resultadoRaw.setScale(2, RoundingMode.HALF_UP);
 
@@ -46,8 +45,7 @@ public class WalletBuilder {
 
     public WalletResponse builderToWalletSupResponse(WalletTransaction walletTransaction, BigDecimal discountFactor) {
 
-        ExchangeRate rate = exchangeRateRepository.findFirstByOrderByCreatedAtDesc()
-                .orElseThrow(() -> new RuntimeException("No se encontraron tasas de cambio"));
+        BigDecimal rate = exchangeRateTimeline.rateAt(walletTransaction.getCreatedAt());
 
         BigDecimal amountToProcess = walletTransaction.getAmount();
 
@@ -65,7 +63,7 @@ public class WalletBuilder {
         BigDecimal finalAmount = amountToProcess.setScale(2, RoundingMode.HALF_UP);
 
         // Cálculo de Soles (Monto Final * Tasa)
-        BigDecimal amountSoles = finalAmount.multiply(rate.getRate())
+        BigDecimal amountSoles = finalAmount.multiply(rate)
                 .setScale(2, RoundingMode.HALF_UP);
 
         return WalletResponse.builder()
@@ -1,7 +1,9 @@
 package com.example.lunastreaming.controller;
 
+import com.example.lunastreaming.builder.StockBuilder;
 import com.example.lunastreaming.model.*;
 import com.example.lunastreaming.service.*;
+import com.example.lunastreaming.util.FieldSet;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
@@ -60,15 +62,19 @@ public class AdminController {
      * Ejemplo: GET /api/admin/users/stocks/sold?page=0&size=20&sort=soldAt,desc
      */
     @GetMapping("/stocks/sold")
-    public ResponseEntity<PagedResponse<StockResponse>> listAllSoldStocks(
+    public ResponseEntity<PagedResponse<?>> listAllSoldStocks(
             Principal principal,
             @RequestParam(required = false) String q,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "20") int size,
-            @RequestParam(required = false) String sort
+            @RequestParam(required = false) String sort,
+            @RequestParam(required = false) String cursor, // Modo cursor: ?cursor= en la primera página, luego nextCursor
+            @RequestParam(defaultValue = "false") boolean withTotal,
+            @RequestParam(required = false) String fields // Campos a devolver (ej: productName,status,endAt)
     ) {
-        PagedResponse<StockResponse> resp = stockService.listAllSoldStocks(principal, q, page, size, sort);
-        return ResponseEntity.ok(resp);
+        FieldSet fieldSet = FieldSet.parse(fields);
+        PagedResponse<StockResponse> resp = stockService.listAllSoldStocks(principal, q, page, size, sort, cursor, withTotal, fieldSet);
+        return ResponseEntity.ok(fieldSet.select(resp, StockBuilder.FIELDS));
     }
 
     /**
@@ -1,17 +1,26 @@
 package com.example.lunastreaming.controller;
 
+import com.example.lunastreaming.builder.ProductBuilder;
 import com.example.lunastreaming.model.*;
+import com.example.lunastreaming.service.CatalogSearchService;
 import com.example.lunastreaming.service.CategoryService;
 import com.example.lunastreaming.service.ExchangeRateService;
+import com.example.lunastreaming.service.PopularityService;
 import com.example.lunastreaming.service.ProductService;
+import com.example.lunastreaming.service.ReferenceSnapshotService;
+import com.example.lunastreaming.service.StorefrontCacheService;
+import com.example.lunastreaming.util.FieldSet;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.Map;
 
 
 @RestController
@@ -25,9 +34,28 @@ public class CategoryController {
 
     private final ExchangeRateService exchangeRateService;
 
+    private final StorefrontCacheService storefrontCacheService;
+
+    private final CatalogSearchService catalogSearchService;
+
+    private final ReferenceSnapshotService referenceSnapshotService;
+
+    private final PopularityService popularityService;
+
+    // ETag de la instantánea de categorías: 304 si el cliente ya tiene la versión vigente. El 200 lleva además
+    // availableStockCount, que cambia con cada venta y por eso no forma parte del ETag
     @GetMapping
-    public List<CategoryResponse> getAll() {
-        return service.findAll();
+    public ResponseEntity<byte[]> getAll(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        return referenceSnapshotService.respondWithLiveFields(ReferenceSnapshotService.CATEGORIES,
+                service::findAll, service::findAllWithStockCounts, ifNoneMatch, acceptEncoding);
+    }
+
+    // Badges del menú: stocks disponibles por categoría, para refrescarlos sin pedir el listado
+    @GetMapping("/stock-counts")
+    public Map<Integer, Long> getStockCounts() {
+        return service.availableStockByCategory();
     }
 
     @GetMapping("/{id}")
@@ -61,23 +89,66 @@ public class CategoryController {
     }
 
     @GetMapping("/products/active")
-    public Page<ProductHomeResponse> listActiveProducts(
+    public Page<?> listActiveProducts(
             @RequestParam(required = false) String query,
+            @RequestParam(required = false) String fields, // ej: product.name,product.salePriceSoles,availableStockCount
             Pageable pageable) {
-        return productService.listActiveProductsWithDetails(query, pageable);
+        return ProductBuilder.selectHome(productService.listActiveProductsWithDetails(query, pageable), FieldSet.parse(fields));
+    }
+
+    // Autocompletado del buscador (prefijos, sin distinguir tildes)
+    @GetMapping("/products/suggest")
+    public List<ProductSuggestion> suggestProducts(
+            @RequestParam String q,
+            @RequestParam(defaultValue = "8") int limit) {
+        return productService.suggestProducts(q, limit);
+    }
+
+    // Más vendidos de las últimas 24 h (window=24h) o 7 días (window=7d)
+    @GetMapping("/products/popular")
+    public List<PopularProduct> popularProducts(
+            @RequestParam(defaultValue = "24h") String window,
+            @RequestParam(defaultValue = "10") int limit) {
+        return productService.popularProducts(window, limit);
     }
 
     // Lista productos activos por categoria (paginado)
     @GetMapping("/products/{categoryId}/active")
-    public Page<ProductHomeResponse> listActiveByCategory(@PathVariable Integer categoryId, Pageable pageable) {
-        return productService.listActiveProductsByCategoryWithDetails(categoryId, pageable);
+    public Page<?> listActiveByCategory(@PathVariable Integer categoryId,
+                                        @RequestParam(required = false) String fields,
+                                        Pageable pageable) {
+        return ProductBuilder.selectHome(productService.listActiveProductsByCategoryWithDetails(categoryId, pageable),
+                FieldSet.parse(fields));
+    }
+
+    // Métricas de la caché de páginas del storefront (aciertos, tamaño, desalojos)
+    @GetMapping("/admin/storefront-cache")
+    @PreAuthorize("hasRole('admin')")
+    public ResponseEntity<Map<String, Object>> getStorefrontCacheMetrics() {
+        return ResponseEntity.ok(storefrontCacheService.getMetrics());
+    }
+
+    // Estado del índice de búsqueda en memoria
+    @GetMapping("/admin/search-index")
+    @PreAuthorize("hasRole('admin')")
+    public ResponseEntity<Map<String, Object>> getSearchIndexMetrics() {
+        return ResponseEntity.ok(catalogSearchService.getMetrics());
+    }
+
+    // Contadores de ventas por ventana en memoria
+    @GetMapping("/admin/popularity")
+    @PreAuthorize("hasRole('admin')")
+    public ResponseEntity<Map<String, Object>> getPopularityMetrics() {
+        return ResponseEntity.ok(popularityService.getMetrics());
     }
 
     //Retorna el tipo de cambio
     @GetMapping("/exchange/current")
-    public ResponseEntity<?> getCurrentRate() {
-        ExchangeRate rate = exchangeRateService.getCurrentRate();
-        return ResponseEntity.ok(rate);
+    public ResponseEntity<byte[]> getCurrentRate(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        return referenceSnapshotService.respond(ReferenceSnapshotService.EXCHANGE_RATE,
+                exchangeRateService::getCurrentRate, ifNoneMatch, acceptEncoding);
     }
 
     @PutMapping("/reorder")
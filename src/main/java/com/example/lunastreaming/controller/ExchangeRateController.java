@@ -2,7 +2,9 @@ package com.example.lunastreaming.controller;
 
 import com.example.lunastreaming.model.ExchangeRate;
 import com.example.lunastreaming.service.ExchangeRateService;
+import com.example.lunastreaming.service.ReferenceSnapshotService;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -18,10 +20,15 @@ public class ExchangeRateController {
 
     private final ExchangeRateService exchangeRateService;
 
+    private final ReferenceSnapshotService referenceSnapshotService;
+
+    // Instantánea precalculada con ETag: 304 si el cliente ya tiene la tasa vigente
     @GetMapping("/current")
-    public ResponseEntity<?> getCurrentRate() {
-        ExchangeRate rate = exchangeRateService.getCurrentRate();
-        return ResponseEntity.ok(rate);
+    public ResponseEntity<byte[]> getCurrentRate(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        return referenceSnapshotService.respond(ReferenceSnapshotService.EXCHANGE_RATE,
+                exchangeRateService::getCurrentRate, ifNoneMatch, acceptEncoding);
     }
 
     public static class UpdateRateRequest {
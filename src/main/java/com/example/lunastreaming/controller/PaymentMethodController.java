@@ -2,7 +2,9 @@ package com.example.lunastreaming.controller;
 
 import com.example.lunastreaming.model.PaymentMethodDTO;
 import com.example.lunastreaming.service.PaymentMethodService;
+import com.example.lunastreaming.service.ReferenceSnapshotService;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -16,14 +18,20 @@ public class PaymentMethodController {
 
     private final PaymentMethodService service;
 
+    private final ReferenceSnapshotService referenceSnapshotService;
+
     @GetMapping
     public ResponseEntity<List<PaymentMethodDTO>> getAll() {
         return ResponseEntity.ok(service.findAll());
     }
 
+    // Instantánea precalculada con ETag: 304 si el cliente ya tiene la versión vigente
     @GetMapping("/active")
-    public ResponseEntity<List<PaymentMethodDTO>> getActive() {
-        return ResponseEntity.ok(service.findAllActive());
+    public ResponseEntity<byte[]> getActive(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        return referenceSnapshotService.respond(ReferenceSnapshotService.ACTIVE_PAYMENT_METHODS,
+                service::findAllActive, ifNoneMatch, acceptEncoding);
     }
 
     @PostMapping
@@ -1,8 +1,10 @@
 package com.example.lunastreaming.controller;
 
+import com.example.lunastreaming.builder.ProductBuilder;
 import com.example.lunastreaming.model.ProductEntity;
 import com.example.lunastreaming.model.ProductResponse;
 import com.example.lunastreaming.service.ProductService;
+import com.example.lunastreaming.util.FieldSet;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
@@ -31,10 +33,12 @@ public class ProductController {
 
 
     @GetMapping("/provider/me")
-    public ResponseEntity<List<ProductResponse>> getByAuthenticatedProvider(Principal principal) {
+    public ResponseEntity<List<?>> getByAuthenticatedProvider(Principal principal,
+                                                              @RequestParam(required = false) String fields) {
         UUID userId = UUID.fromString(principal.getName());
-        List<ProductResponse> allByProviderWithStocks = productService.getAllByProviderWithStocks(userId);
-        return ResponseEntity.ok(allByProviderWithStocks); // nunca devuelve null
+        FieldSet fieldSet = FieldSet.parse(fields); // ej: product.name,stockResponses.status
+        List<ProductResponse> allByProviderWithStocks = productService.getAllByProviderWithStocks(userId, fieldSet);
+        return ResponseEntity.ok(ProductBuilder.selectWithStocks(allByProviderWithStocks, fieldSet)); // nunca devuelve null
     }
 
 
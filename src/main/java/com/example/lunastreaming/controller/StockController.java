@@ -1,15 +1,26 @@
 package com.example.lunastreaming.controller;
 
+import com.example.lunastreaming.builder.StockBuilder;
 import com.example.lunastreaming.model.*;
+import com.example.lunastreaming.service.IdempotencyService;
+import com.example.lunastreaming.service.PurchaseAdmissionService;
+import com.example.lunastreaming.service.PurchaseAuthorizationService;
+import com.example.lunastreaming.service.StockAvailabilityService;
+import com.example.lunastreaming.service.StockExpiryService;
+import com.example.lunastreaming.service.StockImportService;
 import com.example.lunastreaming.service.StockService;
+import com.example.lunastreaming.util.FieldSet;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.Principal;
 import java.util.List;
 import java.util.Map;
@@ -22,17 +33,31 @@ public class StockController {
 
     private final StockService stockService;
 
+    private final PurchaseAdmissionService purchaseAdmissionService;
+
+    private final StockAvailabilityService stockAvailabilityService;
+
+    private final StockExpiryService stockExpiryService;
+
+    private final StockImportService stockImportService;
+
+    private final PurchaseAuthorizationService purchaseAuthorizationService;
+
+    private final IdempotencyService idempotencyService;
+
     // GET /api/stock/me
     @GetMapping("/provider/me")
-    public ResponseEntity<Page<StockResponse>> getMine(
+    public ResponseEntity<Page<?>> getMine(
             Principal principal,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "20") int size,
-            @RequestParam(required = false) String search // Nuevo parámetro
+            @RequestParam(required = false) String search, // Nuevo parámetro
+            @RequestParam(required = false) String fields // Campos a devolver (ej: productName,status,endAt)
     ) {
         String principalName = principal.getName();
-        Page<StockResponse> list = stockService.getByProviderPrincipal(principalName, page, size, search);
-        return ResponseEntity.ok(list);
+        FieldSet fieldSet = FieldSet.parse(fields);
+        Page<StockResponse> list = stockService.getByProviderPrincipal(principalName, page, size, search, fieldSet);
+        return ResponseEntity.ok(fieldSet.select(list, StockBuilder.FIELDS));
     }
 
 
@@ -63,6 +88,24 @@ public class StockController {
 
 
 
+    /**
+     * Importación masiva en streaming, un stock por línea:
+     *  - text/csv: cabecera con los nombres de StockResponse (username,password,url,tipo,numeroPerfil,pin,...)
+     *  - application/x-ndjson: un objeto JSON por línea con los mismos campos
+     * productId puede ir en cada fila o como parámetro para todas. Responde el resultado de cada línea.
+     * No es todo o nada: cada lote se confirma por separado; reintentar el mismo archivo tras un error
+     * solo inserta las filas que faltaban (las ya creadas salen como repetidas).
+     */
+    @PostMapping(value = "/import", consumes = {"text/csv", "application/x-ndjson", "text/plain"})
+    public ResponseEntity<StockImportResponse> importStocks(
+            @RequestParam(required = false) UUID productId,
+            @RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+            InputStream body,
+            Principal principal) throws IOException {
+        boolean ndjson = contentType.toLowerCase().contains("ndjson");
+        return ResponseEntity.ok(stockImportService.importStocks(body, ndjson, productId, principal));
+    }
+
     @GetMapping
     public ResponseEntity<List<StockResponse>> getAll() {
         return ResponseEntity.ok(stockService.getAll());
@@ -122,12 +165,103 @@ public class StockController {
     public ResponseEntity<StockResponse> purchaseProduct(
             @PathVariable UUID productId,
             @RequestBody PurchaseRequest request,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
             Principal principal
     ) {
-        StockResponse result = stockService.purchaseProduct(productId, request, principal);
+        UUID buyerId = stockService.resolveUserIdFromPrincipal(principal);
+
+        // Reintento con la misma clave: se devuelve el stock ya comprado sin volver a cobrar
+        StockResponse result = idempotencyService.execute(idempotencyKey, buyerId, "purchase:" + productId,
+                () -> admitPurchase(productId, request, principal),
+                r -> String.valueOf(r.getId()),
+                stockId -> stockService.getBuyerStock(Long.valueOf(stockId), buyerId));
         return ResponseEntity.ok(result);
     }
 
+    private StockResponse admitPurchase(UUID productId, PurchaseRequest request, Principal principal) {
+        // Producto agotado: se rechaza sin transacción, sin bloqueo del comprador y sin Argon2
+        stockAvailabilityService.ensureAvailable(productId);
+
+        // La espera en el carril del producto ocurre antes de abrir la transacción (sin conexión tomada)
+        return purchaseAdmissionService.admit(productId,
+                () -> stockService.purchaseProduct(productId, request, principal));
+    }
+
+    // Métricas de los carriles de admisión de compra por producto
+    @GetMapping("/admin/purchase-lanes")
+    @PreAuthorize("hasRole('admin')")
+    public ResponseEntity<Map<String, Object>> getPurchaseLanes() {
+        return ResponseEntity.ok(purchaseAdmissionService.getMetrics());
+    }
+
+    // Métricas de la caché de productos agotados (tasa de aciertos)
+    @GetMapping("/admin/availability")
+    @PreAuthorize("hasRole('admin')")
+    public ResponseEntity<Map<String, Object>> getAvailabilityMetrics() {
+        return ResponseEntity.ok(stockAvailabilityService.getMetrics());
+    }
+
+    // Métricas del motor de vencimiento (rueda y contadores "vence pronto")
+    @GetMapping("/admin/expiry")
+    @PreAuthorize("hasRole('admin')")
+    public ResponseEntity<Map<String, Object>> getExpiryMetrics() {
+        return ResponseEntity.ok(stockExpiryService.getMetrics());
+    }
+
+    // Verifica la contraseña una vez y emite un token de compra de vida corta (evita Argon2 en cada compra)
+    @PostMapping("/purchase-token")
+    public ResponseEntity<PurchaseTokenResponse> issuePurchaseToken(
+            @RequestBody PurchaseTokenRequest request,
+            Principal principal
+    ) {
+        UUID userId = stockService.resolveUserIdFromPrincipal(principal);
+        return ResponseEntity.ok(purchaseAuthorizationService.issue(userId, request.password()));
+    }
+
+    // Checkout de carrito: varias unidades de uno o más productos en una sola transacción
+    @PostMapping("/cart/checkout")
+    public ResponseEntity<CartCheckoutResponse> checkoutCart(
+            @RequestBody CartCheckoutRequest request,
+            Principal principal
+    ) {
+        if (request.getItems() != null) {
+            request.getItems().forEach(item -> {
+                if (item.getProductId() != null) {
+                    stockAvailabilityService.ensureAvailable(item.getProductId());
+                }
+            });
+        }
+        return ResponseEntity.ok(stockService.checkoutCart(request, principal));
+    }
+
+    // Compra en dos fases: reservar (valida contraseña) -> confirmar (cobra) | cancelar
+
+    @PostMapping("/products/{productId}/reserve")
+    public ResponseEntity<StockReservationResponse> reserveProduct(
+            @PathVariable UUID productId,
+            @RequestBody PurchaseRequest request,
+            Principal principal
+    ) {
+        stockAvailabilityService.ensureAvailable(productId);
+        return ResponseEntity.ok(purchaseAdmissionService.admit(productId,
+                () -> stockService.reserveProduct(productId, request, principal)));
+    }
+
+    @PostMapping("/reservations/{stockId}/confirm")
+    public ResponseEntity<StockResponse> confirmReservation(
+            @PathVariable Long stockId,
+            @RequestBody PurchaseRequest request,
+            Principal principal
+    ) {
+        return ResponseEntity.ok(stockService.confirmReservation(stockId, request, principal));
+    }
+
+    @DeleteMapping("/reservations/{stockId}")
+    public ResponseEntity<Void> cancelReservation(@PathVariable Long stockId, Principal principal) {
+        stockService.cancelReservation(stockId, principal);
+        return ResponseEntity.noContent().build();
+    }
+
     /**
      * Lista los stocks que compró el usuario autenticado (buyer)
      * Query params:
@@ -135,17 +269,23 @@ public class StockController {
      *  - page: número de página (0)
      *  - size: tamaño (20)
      *  - sort: "soldAt,desc" o "productName,asc" (opcional)
+     *  - fields: campos a devolver, ej: "productName,status,endAt" (opcional, por defecto todos)
      */
     @GetMapping("/purchases")
-    public PagedResponse<StockResponse> listPurchases(
+    public PagedResponse<?> listPurchases(
             Principal principal,
             @RequestParam(required = false) String q,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "20") int size,
             @RequestParam(required = false) String sort,
-            @RequestParam(required = false) Integer days // Parámetro opcional para días
+            @RequestParam(required = false) Integer days, // Parámetro opcional para días
+            @RequestParam(required = false) String cursor, // Modo cursor: ?cursor= en la primera página, luego nextCursor
+            @RequestParam(defaultValue = "false") boolean withTotal, // Total aproximado en modo cursor
+            @RequestParam(required = false) String fields
     ) {
-        return stockService.listPurchases(principal, q, page, size, sort, days);
+        FieldSet fieldSet = FieldSet.parse(fields);
+        return fieldSet.select(stockService.listPurchases(principal, q, page, size, sort, days, cursor, withTotal, fieldSet),
+                StockBuilder.FIELDS);
     }
 
     /**
@@ -153,15 +293,38 @@ public class StockController {
      * Query params iguales al endpoint de compras.
      */
     @GetMapping("/provider/sales")
-    public PagedResponse<StockResponse> listProviderSales(
+    public PagedResponse<?> listProviderSales(
             Principal principal,
             @RequestParam(required = false) String q,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "20") int size,
             @RequestParam(required = false) String sort,
-            @RequestParam(required = false) Integer days // Frontend enviará ?days=5
+            @RequestParam(required = false) Integer days, // Frontend enviará ?days=5
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean withTotal,
+            @RequestParam(required = false) String fields
     ) {
-        return stockService.listProviderSales(principal, q, page, size, sort, days);
+        FieldSet fieldSet = FieldSet.parse(fields);
+        return fieldSet.select(stockService.listProviderSales(principal, q, page, size, sort, days, cursor, withTotal, fieldSet),
+                StockBuilder.FIELDS);
+    }
+
+    // Cuántas compras del cliente vencen en los próximos días (contador en memoria, sin consulta)
+    @GetMapping("/purchases/expiring-count")
+    public ResponseEntity<Map<String, Object>> countExpiringPurchases(Principal principal) {
+        UUID buyerId = stockService.resolveUserIdFromPrincipal(principal);
+        return ResponseEntity.ok(Map.of(
+                "days", stockExpiryService.getSoonDays(),
+                "count", stockExpiryService.expiringForBuyer(buyerId)));
+    }
+
+    // Cuántas ventas del proveedor vencen en los próximos días (contador en memoria, sin consulta)
+    @GetMapping("/provider/sales/expiring-count")
+    public ResponseEntity<Map<String, Object>> countExpiringSales(Principal principal) {
+        UUID providerId = stockService.resolveUserIdFromPrincipal(principal);
+        return ResponseEntity.ok(Map.of(
+                "days", stockExpiryService.getSoonDays(),
+                "count", stockExpiryService.expiringForProvider(providerId)));
     }
 
     @PatchMapping("/stocks/{stockId}/approve")
@@ -190,9 +353,14 @@ public class StockController {
     public ResponseEntity<StockResponse> renewStock(
             @PathVariable Long stockId,
             @RequestBody RenewRequest request,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
             Principal principal
     ) {
-        StockResponse result = stockService.renewStock(stockId, request, principal);
+        UUID buyerId = stockService.resolveUserIdFromPrincipal(principal);
+        StockResponse result = idempotencyService.execute(idempotencyKey, buyerId, "renew:" + stockId,
+                () -> stockService.renewStock(stockId, request, principal),
+                r -> String.valueOf(r.getId()),
+                id -> stockService.getBuyerStock(Long.valueOf(id), buyerId));
         return ResponseEntity.ok(result);
     }
 
@@ -3,6 +3,7 @@ package com.example.lunastreaming.controller;
 import com.example.lunastreaming.model.RefundRequest;
 import com.example.lunastreaming.model.StockResponse;
 import com.example.lunastreaming.model.TransferRequest;
+import com.example.lunastreaming.service.IdempotencyService;
 import com.example.lunastreaming.service.ProviderProfileService;
 import com.example.lunastreaming.service.RefundService;
 import com.example.lunastreaming.service.StockService;
@@ -29,6 +30,7 @@ public class SupplierController {
     private final StockService stockService;
     private final SupplierService supplierService;
     private final ProviderProfileService providerProfileService;
+    private final IdempotencyService idempotencyService;
 
     @PostMapping("/provider/stocks/{stockId}/refund")
     public ResponseEntity<Map<String, Object>> refundStockAsProvider(
@@ -107,6 +109,7 @@ public class SupplierController {
     @PostMapping("/transfer-to-user")
     public ResponseEntity<Void> transfer(
             Principal principal,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
             @RequestBody TransferRequest request) {
 
         // Validación básica
@@ -117,8 +120,15 @@ public class SupplierController {
         // El supplier es el usuario autenticado
         UUID supplierId = UUID.fromString(principal.getName());
 
-        // Ejecutar la transferencia (service genera dos WalletTransaction)
-        supplierService.transfer(supplierId, request.getSellerId(), request.getAmount());
+        // Ejecutar la transferencia (service genera dos WalletTransaction); un reintento con la misma
+        // Idempotency-Key no vuelve a transferir
+        idempotencyService.execute(idempotencyKey, supplierId, "transfer",
+                () -> {
+                    supplierService.transfer(supplierId, request.getSellerId(), request.getAmount());
+                    return null;
+                },
+                r -> null,
+                id -> null);
 
         // No devolvemos nada → 204 No Content
         return ResponseEntity.noContent().build();
@@ -2,7 +2,9 @@ package com.example.lunastreaming.controller;
 
 import com.example.lunastreaming.model.*;
 import com.example.lunastreaming.model.admin.TransactionResponseDto;
+import com.example.lunastreaming.service.IdempotencyService;
 import com.example.lunastreaming.service.WalletService;
+import com.example.lunastreaming.util.RequestUtil;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.http.ResponseEntity;
@@ -20,10 +22,17 @@ public class WalletController {
 
     private final WalletService walletService;
 
+    private final IdempotencyService idempotencyService;
+
     @PostMapping("/recharge")
-    public ResponseEntity<?> requestRecharge(@RequestBody RechargeRequest req, Principal principal) {
+    public ResponseEntity<?> requestRecharge(@RequestBody RechargeRequest req,
+                                             @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                             Principal principal) {
         UUID userId = UUID.fromString(principal.getName()); // o extraer desde JWT
-        WalletTransaction tx = walletService.requestRecharge(userId, req.getAmount(), req.isSoles());
+        WalletTransaction tx = idempotencyService.execute(idempotencyKey, userId, "recharge",
+                () -> walletService.requestRecharge(userId, req.getAmount(), req.isSoles()),
+                t -> t.getId().toString(),
+                txId -> walletService.getUserTransaction(UUID.fromString(txId), userId));
         return ResponseEntity.ok(tx);
     }
 
@@ -95,12 +104,19 @@ public class WalletController {
 
     //Traer para el admin todos los valores
 
+    // Con ?cursor= (vacío en la primera página) pagina por cursor y responde PagedResponse con nextCursor
     @GetMapping("/transactions")
-    public ResponseEntity<Page<WalletTransactionResponse>> listTransactions(
+    public ResponseEntity<?> listTransactions(
             Principal principal,
             @RequestParam(name = "page", defaultValue = "0") int page,
-            @RequestParam(name = "search", required = false) String search
+            @RequestParam(name = "search", required = false) String search,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "size", defaultValue = "100") int size,
+            @RequestParam(name = "withTotal", defaultValue = "false") boolean withTotal
     ) {
+        if (RequestUtil.isCursorMode(cursor)) {
+            return ResponseEntity.ok(walletService.listAllTransactionsForAdminKeyset(principal, cursor, size, search, withTotal));
+        }
         Page<WalletTransactionResponse> result = walletService.listAllTransactionsForAdmin(principal, page, search);
         return ResponseEntity.ok(result);
     }
@@ -108,9 +124,14 @@ public class WalletController {
     //retiros de proveedores
 
     @PostMapping("/provider/withdraw")
-    public ResponseEntity<?> requestWithdrawal(@RequestBody WithdrawalRequest req, Principal principal) {
+    public ResponseEntity<?> requestWithdrawal(@RequestBody WithdrawalRequest req,
+                                               @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                               Principal principal) {
         UUID userId = UUID.fromString(principal.getName()); // o extraer desde JWT
-        WalletTransactionResponse walletTransactionResponse = walletService.requestWithdrawal(userId, req.getAmount());
+        WalletTransactionResponse walletTransactionResponse = idempotencyService.execute(idempotencyKey, userId, "withdraw",
+                () -> walletService.requestWithdrawal(userId, req.getAmount()),
+                r -> r.getId().toString(),
+                txId -> walletService.getWithdrawalResponse(UUID.fromString(txId), userId));
         return ResponseEntity.ok(walletTransactionResponse);
     }
 
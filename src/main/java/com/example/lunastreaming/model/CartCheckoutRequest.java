@@ -0,0 +1,30 @@
+package com.example.lunastreaming.model;
+
+import lombok.*;
+
+import java.util.List;
+import java.util.UUID;
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class CartCheckoutRequest {
+
+    private List<Item> items;
+    private String password;
+    private String purchaseToken;
+
+    @Getter
+    @Setter
+    @Builder
+    @AllArgsConstructor
+    @NoArgsConstructor
+    public static class Item {
+        private UUID productId;
+        private Integer quantity;
+        private String clientName;
+        private String clientPhone;
+    }
+}
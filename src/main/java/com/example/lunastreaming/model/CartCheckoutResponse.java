@@ -0,0 +1,19 @@
+package com.example.lunastreaming.model;
+
+import lombok.*;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class CartCheckoutResponse {
+
+    private List<StockResponse> stocks;
+    private Integer units;
+    private BigDecimal total;
+
+}
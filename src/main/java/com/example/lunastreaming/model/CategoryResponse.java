@@ -17,4 +17,8 @@ public class CategoryResponse {
 
     private Integer sortOrder;
 
+    // Stocks disponibles sumando los productos activos de la categoría (badge del menú).
+    // Cambia con cada venta, así que no entra en el ETag del listado (ver CategoryController.getAll)
+    private Long availableStockCount;
+
 }
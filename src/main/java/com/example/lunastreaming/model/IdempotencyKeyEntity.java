@@ -0,0 +1,41 @@
+package com.example.lunastreaming.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.Instant;
+import java.util.UUID;
+
+@Builder
+@Getter
+@Setter
+@Entity
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(name = "idempotency_keys")
+public class IdempotencyKeyEntity {
+
+    // userId:operación:Idempotency-Key
+    @Id
+    @Column(name = "id", length = 300)
+    private String id;
+
+    @Column(name = "user_id", columnDefinition = "uuid", nullable = false)
+    private UUID userId;
+
+    @Column(name = "operation", nullable = false)
+    private String operation;
+
+    @Column(name = "status", nullable = false)
+    private String status; // processing | completed
+
+    // Id del recurso resultante (stock, transacción) para reconstruir la respuesta al repetir la solicitud
+    @Column(name = "resource_id")
+    private String resourceId;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Column(name = "completed_at")
+    private Instant completedAt;
+}
@@ -17,4 +17,10 @@ public class PagedResponse<T> {
     private int size;
     private long totalElements;
     private int totalPages;
+
+    // Solo en modo cursor (keyset): posición para pedir la página siguiente (null si no hay más)
+    private String nextCursor;
+    private Boolean hasNext;
+    // true cuando totalElements es un conteo cacheado y no exacto
+    private Boolean approximateTotal;
 }
@@ -0,0 +1,11 @@
+package com.example.lunastreaming.model;
+
+import java.util.UUID;
+
+// Producto más vendido en una ventana de tiempo (24h / 7d)
+public record PopularProduct(
+        UUID id,
+        String name,
+        String categoryName,
+        long sales
+) {}
@@ -81,6 +81,12 @@ public class ProductEntity {
     @Column(name = "deleted", nullable = false)
     private Boolean deleted = false;
 
+    // Stocks en estado 'active' (no borrados). El trigger de la tabla stock anota los cambios en franjas y
+    // StockAvailabilityService los consolida aquí cada pocos segundos (ver SchemaInitializer); JPA nunca lo escribe.
+    @Column(name = "available_stock_count", columnDefinition = "integer not null default 0",
+            insertable = false, updatable = false)
+    private Integer availableStockCount;
+
 
     @PreUpdate
     public void preUpdate() {
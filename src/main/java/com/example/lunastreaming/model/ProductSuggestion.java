@@ -0,0 +1,10 @@
+package com.example.lunastreaming.model;
+
+import java.util.UUID;
+
+// Sugerencia de autocompletado del buscador del storefront
+public record ProductSuggestion(
+        UUID id,
+        String name,
+        String categoryName
+) {}
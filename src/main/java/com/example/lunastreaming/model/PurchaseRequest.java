@@ -13,4 +13,6 @@ public class PurchaseRequest {
     private String clientName;
     private String clientPhone;
     private String password;
+    // Alternativa a la contraseña: token emitido por POST /api/stocks/purchase-token
+    private String purchaseToken;
 }
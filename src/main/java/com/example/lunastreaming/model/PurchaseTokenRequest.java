@@ -0,0 +1,6 @@
+package com.example.lunastreaming.model;
+
+public record PurchaseTokenRequest(
+        String password
+) {
+}
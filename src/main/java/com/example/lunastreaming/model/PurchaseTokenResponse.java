@@ -0,0 +1,18 @@
+package com.example.lunastreaming.model;
+
+import lombok.*;
+
+import java.time.Instant;
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class PurchaseTokenResponse {
+
+    private String token;
+    private Instant expiresAt;
+    private Integer maxUses;
+
+}
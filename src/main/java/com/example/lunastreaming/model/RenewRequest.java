@@ -10,4 +10,6 @@ import lombok.*;
 public class RenewRequest {
 
     private String password;
+    // Alternativa a la contraseña: token emitido por POST /api/stocks/purchase-token
+    private String purchaseToken;
 }
@@ -8,11 +8,17 @@ import org.hibernate.annotations.SQLRestriction;
 import java.math.BigDecimal;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.UUID;
 
 @Entity
 @Table(name = "stock")
 @SQLDelete(sql = "UPDATE stock SET deleted = true WHERE id = ?")
 @SQLRestriction("deleted = false")
+// Plan de carga de los listados: StockBuilder lee producto y comprador de cada fila
+@NamedEntityGraph(name = StockEntity.LISTING_GRAPH, attributeNodes = {
+        @NamedAttributeNode("product"),
+        @NamedAttributeNode("buyer")
+})
 @Builder
 @Getter
 @Setter
@@ -20,6 +26,8 @@ import java.time.Instant;
 @NoArgsConstructor
 public class StockEntity {
 
+    public static final String LISTING_GRAPH = "Stock.listing";
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -70,12 +78,31 @@ public class StockEntity {
     @Column(name = "renewed_at")
     private Instant renewedAt;
 
+    // Reserva temporal (compra en dos fases): quién la tiene y hasta cuándo
+    @Column(name = "reserved_by", columnDefinition = "uuid")
+    private UUID reservedBy;
+
+    @Column(name = "reserved_until")
+    private Instant reservedUntil;
+
     @Column(name = "created_at")
     private Instant createdAt = Instant.now();
 
     @Column(name = "deleted", nullable = false)
     private boolean deleted = false;
 
+    // Tickets de soporte OPEN / IN_PROGRESS del stock. Lo mantiene el trigger de support_tickets
+    // (ver SchemaInitializer); JPA nunca lo escribe para no pisarlo con un valor viejo.
+    @Column(name = "open_ticket_count", columnDefinition = "integer not null default 0",
+            insertable = false, updatable = false)
+    private Integer openTicketCount;
+
+    // endAt ya cumplido. Lo marca el motor de vencimiento (StockExpiryService) y lo recalcula el trigger
+    // de la tabla stock cuando cambia end_at; JPA nunca lo escribe.
+    @Column(name = "expired", columnDefinition = "boolean not null default false",
+            insertable = false, updatable = false)
+    private Boolean expired;
+
     @PrePersist
     @PreUpdate
     public void prePersist() {
@@ -0,0 +1,19 @@
+package com.example.lunastreaming.model;
+
+import java.util.List;
+
+// Resultado de la importación masiva de stocks: totales y una fila por línea del archivo
+public record StockImportResponse(
+        int total,
+        int created,
+        int rejected,
+        List<Row> rows
+) {
+
+    public static final String CREATED = "created";
+    public static final String DUPLICATE = "duplicate";
+    public static final String ERROR = "error";
+
+    // line: número de línea en el archivo (la cabecera CSV es la línea 1)
+    public record Row(int line, String result, Long stockId, String message) {}
+}
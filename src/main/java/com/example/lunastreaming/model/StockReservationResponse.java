@@ -0,0 +1,22 @@
+package com.example.lunastreaming.model;
+
+import lombok.*;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class StockReservationResponse {
+
+    private Long stockId;
+    private UUID productId;
+    private String productName;
+    private BigDecimal price;
+    private Instant expiresAt;
+
+}
@@ -38,6 +38,8 @@ public class StockResponse {
     private Boolean published;
 
     private BigDecimal refund;
+    // Renovaciones aprobadas aún reembolsables (listado de renovados del proveedor)
+    private Long pendingRenewals;
     private Instant startAt;
     private Instant endAt;
 
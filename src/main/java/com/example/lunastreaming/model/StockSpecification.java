@@ -3,6 +3,7 @@ package com.example.lunastreaming.model;
 import jakarta.persistence.criteria.Predicate;
 import org.springframework.data.jpa.domain.Specification;
 
+import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,7 +14,6 @@ public class StockSpecification {
     public static Specification<StockEntity> getPurchasesSpec(
             UUID buyerId,
             List<String> allowedStatuses,
-            List<Long> excludedStockIds,
             Instant limitDate,
             String q
     ) {
@@ -26,10 +26,8 @@ public class StockSpecification {
             // 2. Filtrar por estados permitidos (sold, RENEWED)
             predicates.add(root.get("status").in(allowedStatuses));
 
-            // 3. Excluir IDs con tickets activos
-            if (excludedStockIds != null && !excludedStockIds.isEmpty()) {
-                predicates.add(cb.not(root.get("id").in(excludedStockIds)));
-            }
+            // 3. Excluir stocks con tickets activos (contador mantenido por trigger, sin lista NOT IN)
+            predicates.add(cb.equal(root.get("openTicketCount"), 0));
 
             // 4. Filtro por fecha límite (days)
             if (limitDate != null) {
@@ -73,4 +71,19 @@ public class StockSpecification {
             return cb.and(predicates.toArray(new Predicate[0]));
         };
     }
+
+    /**
+     * Condición keyset para el orden (soldAt desc, id desc): filas posteriores a la posición dada.
+     * soldAt está mapeado como Timestamp, así que la posición se compara con ese mismo tipo.
+     */
+    public static Specification<StockEntity> soldBefore(Instant soldAt, Long id) {
+        Timestamp at = Timestamp.from(soldAt);
+        return (root, query, cb) -> cb.and(
+                cb.isNotNull(root.get("soldAt")),
+                cb.or(
+                        cb.lessThan(root.<Timestamp>get("soldAt"), at),
+                        cb.and(cb.equal(root.get("soldAt"), at), cb.lessThan(root.<Long>get("id"), id))
+                )
+        );
+    }
 }
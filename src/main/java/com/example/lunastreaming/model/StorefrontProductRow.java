@@ -0,0 +1,13 @@
+package com.example.lunastreaming.model;
+
+/**
+ * Fila del listado del storefront: el producto con los nombres que antes se cargaban aparte
+ * (categoría, proveedor y estado de su perfil), resuelta en una sola consulta.
+ */
+public record StorefrontProductRow(
+        ProductEntity product,
+        String categoryName,
+        String providerUsername,
+        String providerPhone,
+        String providerStatus
+) {}
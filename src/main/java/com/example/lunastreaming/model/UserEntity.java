@@ -32,7 +32,8 @@ public class UserEntity {
     @Column(nullable = false)
     private String role = "user";
 
-    @Column(nullable = false, precision = 19, scale = 2)
+    // Solo se modifica vía BalanceLedger (UPDATE atómico); JPA nunca lo sobrescribe
+    @Column(nullable = false, precision = 19, scale = 2, updatable = false)
     private BigDecimal balance = BigDecimal.ZERO;
 
     @Column(nullable = false)
@@ -16,4 +16,7 @@ public interface ExchangeRateRepository extends JpaRepository<ExchangeRate, Long
 
     Optional<ExchangeRate> findFirstByOrderByCreatedAtDesc();
 
+    // Historial completo para ExchangeRateTimeline
+    List<ExchangeRate> findAllByOrderByCreatedAtAscIdAsc();
+
 }
@@ -0,0 +1,44 @@
+package com.example.lunastreaming.repository;
+
+import com.example.lunastreaming.model.IdempotencyKeyEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.UUID;
+
+@Repository
+public interface IdempotencyKeyRepository extends JpaRepository<IdempotencyKeyEntity, String> {
+
+    // Reclama la clave; devuelve 0 si ya existía (otra ejecución la tomó antes).
+    // Una clave 'processing' anterior a staleBefore quedó huérfana (el proceso murió a mitad) y se vuelve a tomar
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO idempotency_keys (id, user_id, operation, status, created_at) " +
+            "VALUES (:id, :userId, :operation, 'processing', :now) " +
+            "ON CONFLICT (id) DO UPDATE SET created_at = EXCLUDED.created_at " +
+            "WHERE idempotency_keys.status = 'processing' AND idempotency_keys.created_at < :staleBefore",
+            nativeQuery = true)
+    int claim(@Param("id") String id, @Param("userId") UUID userId, @Param("operation") String operation,
+              @Param("now") Instant now, @Param("staleBefore") Instant staleBefore);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE IdempotencyKeyEntity k SET k.status = 'completed', k.resourceId = :resourceId, " +
+            "k.completedAt = :now WHERE k.id = :id")
+    int complete(@Param("id") String id, @Param("resourceId") String resourceId, @Param("now") Instant now);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM IdempotencyKeyEntity k WHERE k.id = :id AND k.status = 'processing'")
+    int release(@Param("id") String id);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM IdempotencyKeyEntity k WHERE k.createdAt < :before")
+    int deleteOlderThan(@Param("before") Instant before);
+}
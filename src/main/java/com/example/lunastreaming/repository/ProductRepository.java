@@ -2,6 +2,7 @@ package com.example.lunastreaming.repository;
 
 import com.example.lunastreaming.model.ProductDto;
 import com.example.lunastreaming.model.ProductEntity;
+import com.example.lunastreaming.model.StorefrontProductRow;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
@@ -10,6 +11,7 @@ import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -43,6 +45,114 @@ public interface ProductRepository extends JpaRepository<ProductEntity, UUID>, J
   """)
     Page<ProductDto> findActiveProductsWithCategoryByCategoryId(@Param("categoryId") Integer categoryId, Pageable pageable);
 
+    // Storefront: producto + categoría + proveedor + estado del perfil en una sola consulta.
+    // pattern ya viene en minúsculas y con comodines ("%texto%")
+    @Query(value = """
+  select new com.example.lunastreaming.model.StorefrontProductRow(
+    p, c.name, u.username, u.phone, pp.status)
+  from ProductEntity p
+  left join p.category c
+  left join p.provider u
+  left join u.providerProfile pp
+  where p.active = true
+    and (lower(p.name) like :pattern or lower(c.name) like :pattern or lower(u.username) like :pattern)
+  """, countQuery = """
+  select count(p)
+  from ProductEntity p
+  left join p.category c
+  left join p.provider u
+  where p.active = true
+    and (lower(p.name) like :pattern or lower(c.name) like :pattern or lower(u.username) like :pattern)
+  """)
+    Page<StorefrontProductRow> findStorefrontBySearch(@Param("pattern") String pattern, Pageable pageable);
+
+    @Query(value = """
+  select new com.example.lunastreaming.model.StorefrontProductRow(
+    p, c.name, u.username, u.phone, pp.status)
+  from ProductEntity p
+  left join p.category c
+  left join p.provider u
+  left join u.providerProfile pp
+  where p.active = true
+  """, countQuery = "select count(p) from ProductEntity p where p.active = true")
+    Page<StorefrontProductRow> findStorefront(Pageable pageable);
+
+    @Query(value = """
+  select new com.example.lunastreaming.model.StorefrontProductRow(
+    p, c.name, u.username, u.phone, pp.status)
+  from ProductEntity p
+  left join p.category c
+  left join p.provider u
+  left join u.providerProfile pp
+  where p.active = true and p.categoryId = :categoryId
+  """, countQuery = "select count(p) from ProductEntity p where p.active = true and p.categoryId = :categoryId")
+    Page<StorefrontProductRow> findStorefrontByCategory(@Param("categoryId") Integer categoryId, Pageable pageable);
+
+    @Query("""
+  select new com.example.lunastreaming.model.StorefrontProductRow(
+    p, c.name, u.username, u.phone, pp.status)
+  from ProductEntity p
+  left join p.category c
+  left join p.provider u
+  left join u.providerProfile pp
+  where p.active = true and p.id in :ids
+  """)
+    List<StorefrontProductRow> findStorefrontByIds(@Param("ids") Collection<UUID> ids);
+
+    // Resultados de la búsqueda en memoria con el orden pedido por el cliente (sort) en vez de por relevancia
+    @Query(value = """
+  select new com.example.lunastreaming.model.StorefrontProductRow(
+    p, c.name, u.username, u.phone, pp.status)
+  from ProductEntity p
+  left join p.category c
+  left join p.provider u
+  left join u.providerProfile pp
+  where p.active = true and p.id in :ids
+  """, countQuery = "select count(p) from ProductEntity p where p.active = true and p.id in :ids")
+    Page<StorefrontProductRow> findStorefrontByIdIn(@Param("ids") Collection<UUID> ids, Pageable pageable);
+
+    // Índice de búsqueda en memoria: id, nombre, categoría, usuario del proveedor e id de categoría de los productos activos
+    @Query("select p.id, p.name, c.name, u.username, p.categoryId from ProductEntity p " +
+            "left join p.category c left join p.provider u where p.active = true")
+    List<Object[]> findSearchIndexRows();
+
+    @Query("select p.id, p.name, c.name, u.username, p.categoryId from ProductEntity p " +
+            "left join p.category c left join p.provider u where p.active = true and p.id in :ids")
+    List<Object[]> findSearchIndexRowsByIds(@Param("ids") Collection<UUID> ids);
+
+    @Query("select p.id from ProductEntity p where p.categoryId = :categoryId")
+    List<UUID> findIdsByCategoryId(@Param("categoryId") Integer categoryId);
+
+    /**
+     * Consolida las franjas de product_stock_count_deltas en products.available_stock_count.
+     * Las franjas bloqueadas por transacciones en curso se saltan (SKIP LOCKED) y quedan para la siguiente pasada,
+     * así la consolidación nunca espera a una compra. Devuelve los productos cuyo contador cambió.
+     */
+    @Query(value = """
+  WITH claimed AS (
+      SELECT product_id, stripe, delta FROM product_stock_count_deltas
+      WHERE delta <> 0
+      FOR UPDATE SKIP LOCKED
+  ), moved AS (
+      UPDATE product_stock_count_deltas d SET delta = 0
+      FROM claimed c
+      WHERE d.product_id = c.product_id AND d.stripe = c.stripe
+      RETURNING c.product_id, c.delta
+  ), sums AS (
+      SELECT product_id, sum(delta) AS delta FROM moved GROUP BY product_id
+  )
+  UPDATE products p SET available_stock_count = p.available_stock_count + s.delta
+  FROM sums s
+  WHERE p.id = s.product_id AND s.delta <> 0
+  RETURNING p.id
+  """, nativeQuery = true)
+    List<UUID> mergeAvailableStockDeltas();
+
+    // Rollup por categoría para los badges del menú: suma los contadores mantenidos, no recorre stock
+    @Query("select p.categoryId, coalesce(sum(p.availableStockCount), 0) from ProductEntity p " +
+            "where p.active = true and p.deleted = false and p.categoryId is not null group by p.categoryId")
+    List<Object[]> sumAvailableStockByCategory();
+
     @Modifying
     @Query(value = "UPDATE products SET active = false, updated_at = now() " +
             "WHERE active = true AND publish_end IS NOT NULL " +
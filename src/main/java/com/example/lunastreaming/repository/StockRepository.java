@@ -5,13 +5,17 @@ import com.example.lunastreaming.model.StockEntity;
 import jakarta.persistence.LockModeType;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
 import java.math.BigDecimal;
+import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.Collection;
@@ -19,19 +23,41 @@ import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
+/**
+ * Los métodos de listado cargan producto y comprador en la misma consulta (StockEntity.LISTING_GRAPH
+ * o JOIN FETCH), así cada página cuesta un número fijo de consultas sin importar su tamaño.
+ */
 public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaSpecificationExecutor<StockEntity> {
 
+    @Override
+    @EntityGraph(StockEntity.LISTING_GRAPH)
+    List<StockEntity> findAll();
+
+    // Listado de compras (StockSpecification)
+    @Override
+    @EntityGraph(StockEntity.LISTING_GRAPH)
+    Page<StockEntity> findAll(Specification<StockEntity> spec, Pageable pageable);
+
+    // Carga por ids para enriquecer filas que solo traen la referencia (p. ej. tickets)
+    @EntityGraph(StockEntity.LISTING_GRAPH)
+    List<StockEntity> findByIdIn(Collection<Long> ids);
+
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     List<StockEntity> findByProductId(UUID productId);
 
     List<StockEntity> findByProductProviderId(UUID providerId);
 
     List<StockEntity> findByProductIdIn(List<UUID> productIds);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     List<StockEntity> findByProductIdInAndStatus(List<UUID> productIds, String status);
 
     @Query("select s.product.id, count(s) from StockEntity s where s.product.id in :ids group by s.product.id")
     List<Object[]> countByProductIds(@Param("ids") Collection<UUID> ids);
 
+    @Query("select s.product.id, count(s) from StockEntity s where s.product.id in :ids and s.status = :status group by s.product.id")
+    List<Object[]> countByProductIdsAndStatus(@Param("ids") Collection<UUID> ids, @Param("status") String status);
+
     // Stocks comprados por buyer (buyer.id = :buyerId)
     @Query("""
   SELECT s FROM StockEntity s
@@ -44,12 +70,14 @@ public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaS
 
     // Ventas de un proveedor: producto cuyo providerId = :providerId y status = 'sold'
     // MÉTODO VIEJO (Para que no se rompa nada de lo anterior)
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     @Query("""
   SELECT s FROM StockEntity s JOIN s.product p 
   WHERE p.providerId = :providerId AND s.status = 'sold'
 """)
     Page<StockEntity> findSalesByProviderIdPaged(UUID providerId, Pageable pageable);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     @Query("""
   SELECT s FROM StockEntity s JOIN s.product p 
   WHERE p.providerId = :providerId 
@@ -65,6 +93,27 @@ public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaS
             Pageable pageable
     );
 
+    // Variante keyset de findSalesByProviderIdPaged: orden fijo (soldAt, id) y sin COUNT
+    @Query("""
+  SELECT s FROM StockEntity s JOIN FETCH s.product p LEFT JOIN FETCH s.buyer
+  WHERE p.providerId = :providerId
+    AND s.status = 'sold'
+    AND s.soldAt IS NOT NULL
+    AND (s.soldAt < :afterSoldAt OR (s.soldAt = :afterSoldAt AND s.id < :afterId))
+    AND (:q IS NULL OR :q = ''
+        OR LOWER(CAST(s.id AS string)) LIKE LOWER(CONCAT('%', :q, '%'))
+        OR LOWER(s.username) LIKE LOWER(CONCAT('%', :q, '%'))
+        OR LOWER(p.name) LIKE LOWER(CONCAT('%', :q, '%')))
+  ORDER BY s.soldAt DESC, s.id DESC
+""")
+    List<StockEntity> findSalesByProviderIdKeyset(
+            @Param("providerId") UUID providerId,
+            @Param("q") String q,
+            @Param("afterSoldAt") Timestamp afterSoldAt,
+            @Param("afterId") Long afterId,
+            Pageable limit
+    );
+
 
 
     // Busca el primer stock activo de un producto
@@ -117,30 +166,41 @@ public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaS
 
     List<StockEntity> findByBuyerIdAndStatus(UUID buyerId, String status);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     List<StockEntity> findByProductProviderIdAndStatus(UUID providerId, String status);
 
     // traer stocks por buyer y estado
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatus(UUID buyerId, String status, Pageable pageable);
 
 
+    // traer stocks por buyer y estado sin tickets activos (openTicketCount = 0)
+    @EntityGraph(StockEntity.LISTING_GRAPH)
+    Page<StockEntity> findByBuyerIdAndStatusAndOpenTicketCount(UUID buyerId, String status, Integer openTicketCount, Pageable pageable);
+
     // traer stocks por buyer y estado, excluyendo ciertos IDs
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatusAndIdNotIn(UUID buyerId, String status, List<Long> excludedIds, Pageable pageable);
 
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     @Query("SELECT s FROM StockEntity s " +
             "WHERE s.product.providerId = :providerId " +
-            "AND s.endAt < :now " +
-            "AND UPPER(s.status) != 'RENEWED'") // 🚩 Excluye los que están en proceso de renovación
+            "AND s.expired = true " +
+            "AND s.status <> 'RENEWED'") // 🚩 Excluye los que están en proceso de renovación
     Page<StockEntity> findExpiredStocks(@Param("providerId") UUID providerId,
-                                        @Param("now") Instant now,
                                         Pageable pageable);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatusIn(UUID buyerId, List<String> statuses, Pageable pageable);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatusInAndIdNotIn(UUID buyerId, List<String> statuses, List<Long> excludedIds, Pageable pageable);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByProductProviderIdAndStatus(UUID providerId, String status, Pageable pageable);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatusAndProductIsOnRequestTrue(
             UUID buyerId,
             String status,
@@ -149,6 +209,7 @@ public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaS
 
     Page<StockEntity> findByProductProviderId(UUID providerId, Pageable pageable);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     @Query("SELECT s FROM StockEntity s WHERE s.product.provider.id = :providerId " +
             "AND (:query IS NULL OR :query = '' OR " +
             "LOWER(s.product.name) LIKE LOWER(CONCAT('%', :query, '%')) OR " +
@@ -214,11 +275,57 @@ public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaS
             Pageable pageable
     );
 
+    // Variante keyset de findByStatusInAndSearch: mismo filtro, orden fijo (soldAt, id) y sin COUNT.
+    // Pageable solo aporta el límite (ver RequestUtil.keysetPageable); la primera página usa KeysetCursor.START
+    @Query("""
+        SELECT s FROM StockEntity s
+        LEFT JOIN FETCH s.product p
+        LEFT JOIN FETCH s.buyer b
+        LEFT JOIN UserEntity v ON v.id = p.providerId
+        WHERE s.status IN :statuses
+        AND s.soldAt IS NOT NULL
+        AND (s.soldAt < :afterSoldAt OR (s.soldAt = :afterSoldAt AND s.id < :afterId))
+        AND (:q IS NULL OR :q = '' OR
+             CAST(s.id AS string) LIKE CONCAT('%', :q, '%') OR
+             LOWER(p.name) LIKE LOWER(CONCAT('%', :q, '%')) OR
+             LOWER(b.username) LIKE LOWER(CONCAT('%', :q, '%')) OR
+             LOWER(v.username) LIKE LOWER(CONCAT('%', :q, '%')) OR
+             LOWER(s.status) LIKE
+                CASE
+                    WHEN LOWER(:q) LIKE '%reembolso%' THEN '%refund%'
+                    WHEN LOWER(:q) LIKE '%venta%' THEN '%sold%'
+                    WHEN LOWER(:q) LIKE '%soporte%' THEN '%support%'
+                    WHEN LOWER(:q) LIKE '%a pedido%' THEN '%requested%'
+                    ELSE LOWER(CONCAT('%', :q, '%'))
+                END
+        )
+        ORDER BY s.soldAt DESC, s.id DESC
+    """)
+    List<StockEntity> findByStatusInAndSearchKeyset(
+            @Param("statuses") List<String> statuses,
+            @Param("q") String q,
+            @Param("afterSoldAt") Timestamp afterSoldAt,
+            @Param("afterId") Long afterId,
+            Pageable limit
+    );
+
     @Lock(LockModeType.PESSIMISTIC_WRITE)
     @Query(value = "SELECT s FROM StockEntity s WHERE s.product.id = :productId AND s.status = 'active' LIMIT 1")
     Optional<StockEntity> findFirstByProductIdAndStatusWithLock(@Param("productId") UUID productId, @Param("status") String status);
 
+    // Reclama un stock activo del producto saltando las filas ya bloqueadas por otras compras en curso,
+    // así N compradores del mismo producto obtienen N filas distintas en paralelo (idx_stock_product_active)
+    @Query(value = "SELECT * FROM stock s " +
+            "WHERE s.product_id = :productId AND s.status = 'active' AND s.deleted = false " +
+            "ORDER BY s.id " +
+            "LIMIT 1 FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    Optional<StockEntity> claimActiveStockSkipLocked(@Param("productId") UUID productId);
+
+    // Sin SKIP LOCKED: las filas tomadas por compras en curso cuentan como stock activo
+    boolean existsByProductIdAndStatus(UUID productId, String status);
+
     // Filtro para usuarios específicos con estados permitidos y rango de fecha de vencimiento
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatusInAndEndAtBetween(
             UUID buyerId,
             List<String> statuses,
@@ -228,6 +335,7 @@ public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaS
     );
 
     // Versión excluyendo IDs (para tu lógica de tickets activos)
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatusInAndIdNotInAndEndAtBetween(
             UUID buyerId,
             List<String> statuses,
@@ -237,19 +345,23 @@ public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaS
             Pageable pageable
     );
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatusInAndEndAtLessThanEqual(
             UUID buyerId, List<String> statuses, Instant limit, Pageable pageable);
 
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     Page<StockEntity> findByBuyerIdAndStatusInAndIdNotInAndEndAtLessThanEqual(
             UUID buyerId, List<String> statuses, List<Long> excludedIds, Instant limit, Pageable pageable);
 
     // Ventas de un proveedor que vencen antes de una fecha específica
+    @EntityGraph(StockEntity.LISTING_GRAPH)
     @Query("""
   SELECT s
   FROM StockEntity s
   JOIN s.product p
   WHERE p.providerId = :providerId
     AND s.status = 'sold'
+    AND s.expired = false
     AND s.endAt IS NOT NULL
     AND s.endAt >= :now 
     AND s.endAt <= :limitDate
@@ -270,6 +382,44 @@ public interface StockRepository extends JpaRepository<StockEntity, Long> , JpaS
     @Query("SELECT s FROM StockEntity s WHERE s.id = :id")
     Optional<StockEntity> findByIdWithLock(@Param("id") Long id);
 
+    // Checkout de carrito: reclama hasta :quantity stocks activos del producto en una sola consulta
+    @Query(value = "SELECT * FROM stock s WHERE s.product_id = :productId AND s.status = 'active' AND s.deleted = false " +
+            "ORDER BY s.id LIMIT :quantity FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<StockEntity> claimActiveStocksSkipLocked(@Param("productId") UUID productId, @Param("quantity") int quantity);
+
+    // Compra completa en un solo round-trip (función luna_purchase_v2, ver SchemaInitializer).
+    // stripedAccounts va como literal de arreglo de Postgres ("{id1,id2}", ver BalanceLedger.stripedAccountsLiteral)
+    @Query(value = "SELECT luna_purchase_v2(:buyerId, :productId, :clientName, :clientPhone, " +
+            "CAST(:stripedAccounts AS uuid[]), :stripe)", nativeQuery = true)
+    Long purchaseViaFunction(@Param("buyerId") UUID buyerId,
+                             @Param("productId") UUID productId,
+                             @Param("clientName") String clientName,
+                             @Param("clientPhone") String clientPhone,
+                             @Param("stripedAccounts") String stripedAccounts,
+                             @Param("stripe") int stripe);
+
+    // Devuelve a 'active' las reservas vencidas (compra en dos fases no confirmada a tiempo)
+    @Modifying
+    @Query(value = "UPDATE stock SET status = 'active', reserved_by = NULL, reserved_until = NULL " +
+            "WHERE status = 'reserved' AND reserved_until < :now", nativeQuery = true)
+    int releaseExpiredReservations(@Param("now") Instant now);
+
+    // Motor de vencimiento (StockExpiryService): stocks que vencen en (from, to] -> id, endAt, buyerId, providerId, status
+    @Query("SELECT s.id, s.endAt, b.id, p.providerId, s.status FROM StockEntity s JOIN s.product p LEFT JOIN s.buyer b " +
+            "WHERE s.expired = false AND s.deleted = false AND s.endAt > :from AND s.endAt <= :to")
+    List<Object[]> findExpiryRows(@Param("from") Instant from, @Param("to") Instant to);
+
+    // Marca como vencidos los stocks de un lote de la rueda (los renovados entretanto tienen otro end_at y no cambian)
+    @Modifying
+    @Query(value = "UPDATE stock SET expired = true WHERE id IN (:ids) AND expired = false AND end_at <= :now",
+            nativeQuery = true)
+    int markExpired(@Param("ids") Collection<Long> ids, @Param("now") Instant now);
+
+    // Barrido de seguridad: vencidos que la rueda no marcó (arranque, fuera de la ventana cargada)
+    @Modifying
+    @Query(value = "UPDATE stock SET expired = true WHERE expired = false AND end_at <= :now", nativeQuery = true)
+    int markOverdueExpired(@Param("now") Instant now);
+
 
     public interface CategoriaVentasProyeccion {
         String getCategoria();
@@ -6,10 +6,12 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
@@ -44,6 +46,43 @@ public interface UserRepository extends JpaRepository<UserEntity, UUID> {
     @Query("select u from UserEntity u where u.id = :id")
     Optional<UserEntity> findByIdForUpdate(@Param("id") UUID id);
 
+    @Query("select u.passwordHash from UserEntity u where u.id = :id")
+    Optional<String> findPasswordHashById(@Param("id") UUID id);
+
+    // Movimientos de saldo atómicos (ver BalanceLedger); devuelven el saldo resultante
+    @Query(value = "UPDATE users SET balance = balance + :delta WHERE id = :id RETURNING balance", nativeQuery = true)
+    Optional<BigDecimal> addToBalance(@Param("id") UUID id, @Param("delta") BigDecimal delta);
+
+    @Query(value = "UPDATE users SET balance = balance + :delta WHERE id = :id AND balance + :delta >= 0 " +
+            "RETURNING balance", nativeQuery = true)
+    Optional<BigDecimal> addToBalanceIfSufficient(@Param("id") UUID id, @Param("delta") BigDecimal delta);
+
+    // Saldos en franjas para cuentas calientes (ver BalanceLedger y tabla user_balance_stripes)
+    @Modifying
+    @Query(value = "INSERT INTO user_balance_stripes (user_id, stripe, amount) VALUES (:id, :stripe, :delta) " +
+            "ON CONFLICT (user_id, stripe) DO UPDATE SET amount = user_balance_stripes.amount + EXCLUDED.amount",
+            nativeQuery = true)
+    int addToBalanceStripe(@Param("id") UUID id, @Param("stripe") int stripe, @Param("delta") BigDecimal delta);
+
+    @Query(value = "SELECT COALESCE(SUM(amount), 0) FROM user_balance_stripes WHERE user_id = :id", nativeQuery = true)
+    BigDecimal sumBalanceStripes(@Param("id") UUID id);
+
+    @Query(value = "SELECT CAST(id AS text) FROM users WHERE id = :id FOR UPDATE", nativeQuery = true)
+    Optional<String> lockBalanceRow(@Param("id") UUID id);
+
+    @Query(value = "UPDATE users SET balance = balance + :delta WHERE id = :id AND balance + :delta + " +
+            "(SELECT COALESCE(SUM(s.amount), 0) FROM user_balance_stripes s WHERE s.user_id = :id) >= 0 " +
+            "RETURNING balance", nativeQuery = true)
+    Optional<BigDecimal> addToBalanceIfSufficientStriped(@Param("id") UUID id, @Param("delta") BigDecimal delta);
+
+    // Traspasa el contenido de las franjas a users.balance en una sola sentencia
+    @Modifying
+    @Query(value = "WITH moved AS (UPDATE user_balance_stripes SET amount = 0 " +
+            "WHERE user_id = :id AND amount <> 0 RETURNING amount) " +
+            "UPDATE users SET balance = balance + (SELECT COALESCE(SUM(amount), 0) FROM moved) WHERE id = :id",
+            nativeQuery = true)
+    int mergeBalanceStripes(@Param("id") UUID id);
+
     List<UserEntity> findByIdIn(List<UUID> ids);
 
     Page<UserEntity> findByRole(String role, Pageable pageable);
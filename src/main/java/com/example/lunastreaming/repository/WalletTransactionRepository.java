@@ -76,6 +76,25 @@ public interface WalletTransactionRepository extends JpaRepository<WalletTransac
             Pageable pageable
     );
 
+    // Variante keyset de findAdminTransactions: orden fijo (createdAt, id) y sin COUNT
+    @Query("SELECT t FROM WalletTransaction t JOIN FETCH t.user u " +
+            "WHERE t.status <> :excludedStatus " +
+            "AND t.type IN :allowedTypes " +
+            "AND (t.createdAt < :afterCreatedAt OR (t.createdAt = :afterCreatedAt AND t.id < :afterId)) " +
+            "AND (:search IS NULL OR " +
+            "     LOWER(CAST(u.username AS string)) LIKE LOWER(CONCAT('%', CAST(:search AS string), '%')) OR " +
+            "     LOWER(CAST(t.type AS string)) LIKE LOWER(CONCAT('%', CAST(:search AS string), '%'))" +
+            ") " +
+            "ORDER BY t.createdAt DESC, t.id DESC")
+    List<WalletTransaction> findAdminTransactionsKeyset(
+            @Param("search") String search,
+            @Param("allowedTypes") List<String> allowedTypes,
+            @Param("excludedStatus") String excludedStatus,
+            @Param("afterCreatedAt") Instant afterCreatedAt,
+            @Param("afterId") UUID afterId,
+            Pageable limit
+    );
+
     @Query("SELECT w FROM WalletTransaction w WHERE w.stock.id = :stockId AND w.type = :type AND w.status = :status")
     List<WalletTransaction> findByStockIdAndTypeAndStatus(
             @Param("stockId") Long stockId,
@@ -83,6 +102,15 @@ public interface WalletTransactionRepository extends JpaRepository<WalletTransac
             @Param("status") String status
     );
 
+    // Suma de |amount| y número de transacciones por stock para una página de listados (stockId, total, count)
+    @Query("SELECT w.stock.id, SUM(ABS(w.amount)), COUNT(w) FROM WalletTransaction w " +
+            "WHERE w.stock.id IN :stockIds AND w.type = :type AND w.status = :status GROUP BY w.stock.id")
+    List<Object[]> totalsByStockIds(
+            @Param("stockIds") Collection<Long> stockIds,
+            @Param("type") String type,
+            @Param("status") String status
+    );
+
     @Query(value = """
 SELECT 
     CASE 
@@ -236,4 +264,19 @@ ORDER BY totalRecaudado DESC
             @Param("startDate") LocalDateTime startDate,
             @Param("endDate") LocalDateTime endDate
     );
+
+    // Compras y renovaciones por producto y hora (epoch / 3600) desde :since, para los contadores de popularidad
+    @Query(value = """
+    SELECT s.product_id,
+           CAST(FLOOR(EXTRACT(EPOCH FROM t.created_at) / 3600) AS bigint) AS hour,
+           COUNT(*)
+    FROM wallet_transactions t
+    JOIN stock s ON s.id = t.stock_id
+    WHERE t.type IN ('purchase', 'renewal')
+      AND t.status = 'approved'
+      AND t.created_at >= :since
+      AND s.product_id IS NOT NULL
+    GROUP BY 1, 2
+    """, nativeQuery = true)
+    List<Object[]> countSalesByProductAndHour(@Param("since") Instant since);
 }
@@ -0,0 +1,30 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.service.BalanceLedger;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class BalanceStripeScheduler {
+
+    private final BalanceLedger balanceLedger;
+
+    // Consolida en users.balance los abonos acumulados en las franjas de las cuentas calientes
+    @Scheduled(fixedDelayString = "${app.ledger.merge-ms:5000}")
+    public void mergeStripes() {
+        for (UUID userId : balanceLedger.getStripedAccounts()) {
+            try {
+                balanceLedger.mergeStripes(userId);
+            } catch (Exception e) {
+                log.error("No se pudieron consolidar las franjas de saldo del usuario {}", userId, e);
+            }
+        }
+    }
+
+}
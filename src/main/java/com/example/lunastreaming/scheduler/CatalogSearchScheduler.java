@@ -0,0 +1,20 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.service.CatalogSearchService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class CatalogSearchScheduler {
+
+    private final CatalogSearchService catalogSearchService;
+
+    // Primera carga al arrancar y reconstrucción periódica (cubre cambios sin aviso, p. ej. un proveedor que cambia de usuario)
+    @Scheduled(fixedDelayString = "${app.search.rebuild-ms:600000}")
+    public void rebuild() {
+        catalogSearchService.rebuild();
+    }
+
+}
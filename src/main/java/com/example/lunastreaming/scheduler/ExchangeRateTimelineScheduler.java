@@ -0,0 +1,20 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.service.ExchangeRateTimeline;
+import lombok.RequiredArgsConstructor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class ExchangeRateTimelineScheduler {
+
+    private final ExchangeRateTimeline exchangeRateTimeline;
+
+    // Carga al arrancar y recoge tasas registradas por otras instancias
+    @Scheduled(fixedDelayString = "${app.exchange.timeline-refresh-ms:60000}")
+    public void refresh() {
+        exchangeRateTimeline.refresh();
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.service.IdempotencyService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class IdempotencyKeyScheduler {
+
+    private final IdempotencyService idempotencyService;
+
+    @Value("${app.idempotency.retention-hours:24}")
+    private long retentionHours;
+
+    // Elimina claves de idempotencia más antiguas que la ventana de retención
+    @Scheduled(cron = "0 15 * * * *", zone = "America/Lima")
+    public void purgeExpiredKeys() {
+        int deleted = idempotencyService.purgeOlderThan(retentionHours);
+        if (deleted > 0) {
+            log.info("Claves de idempotencia purgadas: {}", deleted);
+        }
+    }
+
+}
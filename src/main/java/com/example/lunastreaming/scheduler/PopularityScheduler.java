@@ -0,0 +1,20 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.service.PopularityService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class PopularityScheduler {
+
+    private final PopularityService popularityService;
+
+    // Carga al arrancar y reconstrucción periódica (ventas de otras instancias, productos sin ventas recientes)
+    @Scheduled(fixedDelayString = "${app.popularity.rebuild-ms:3600000}")
+    public void rebuild() {
+        popularityService.rebuild();
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.example.lunastreaming.scheduler;
 
 import com.example.lunastreaming.repository.ProductRepository;
+import com.example.lunastreaming.service.CatalogSearchService;
+import com.example.lunastreaming.service.StorefrontCacheService;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -9,9 +11,14 @@ import org.springframework.transaction.annotation.Transactional;
 public class ProductStatusScheduler {
 
     private final ProductRepository productRepository;
+    private final StorefrontCacheService storefrontCacheService;
+    private final CatalogSearchService catalogSearchService;
 
-    public ProductStatusScheduler(ProductRepository productRepository) {
+    public ProductStatusScheduler(ProductRepository productRepository, StorefrontCacheService storefrontCacheService,
+                                  CatalogSearchService catalogSearchService) {
         this.productRepository = productRepository;
+        this.storefrontCacheService = storefrontCacheService;
+        this.catalogSearchService = catalogSearchService;
     }
 
     // Cron: "0 0 0 * * *" significa: Segundo 0, Minuto 0, Hora 0 (Medianoche)
@@ -22,6 +29,10 @@ public class ProductStatusScheduler {
         System.out.println("Iniciando proceso batch de desactivación...");
 
         int updatedRows = productRepository.deactivateExpiredProducts();
+        if (updatedRows > 0) {
+            catalogSearchService.rebuild();
+            storefrontCacheService.invalidateAll();
+        }
 
         System.out.println("Proceso finalizado. Productos desactivados: " + updatedRows);
     }
@@ -0,0 +1,20 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.service.SettingService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class SettingsRefreshScheduler {
+
+    private final SettingService settingService;
+
+    // Carga al arrancar y recoge cambios hechos por otras instancias
+    @Scheduled(fixedDelayString = "${app.settings.refresh-ms:60000}")
+    public void refresh() {
+        settingService.refresh();
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.service.StockAvailabilityService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class StockAvailabilityScheduler {
+
+    private final StockAvailabilityService stockAvailabilityService;
+
+    // Corrige marcas de "agotado" que ya no son ciertas (stock liberado por rollbacks o cambios externos)
+    @Scheduled(fixedDelayString = "${app.stock.availability.reconcile-ms:10000}")
+    public void reconcile() {
+        stockAvailabilityService.reconcile();
+    }
+
+    // Lleva a products.available_stock_count los cambios de stock anotados en franjas por el trigger
+    @Scheduled(fixedDelayString = "${app.stock.availability.counter-merge-ms:2000}")
+    public void mergeAvailableCounts() {
+        stockAvailabilityService.mergeAvailableCounts();
+    }
+
+}
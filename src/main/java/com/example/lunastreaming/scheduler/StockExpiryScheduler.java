@@ -0,0 +1,31 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.service.StockExpiryService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StockExpiryScheduler {
+
+    private final StockExpiryService stockExpiryService;
+
+    // Carga al arrancar y recarga periódica de la ventana (ventas nuevas, renovaciones, otras instancias)
+    @Scheduled(fixedDelayString = "${app.stock.expiry.reload-ms:300000}")
+    public void reload() {
+        stockExpiryService.reload();
+    }
+
+    // Avance de la rueda: marca como vencidos los stocks cuyo minuto ya pasó
+    @Scheduled(fixedDelayString = "${app.stock.expiry.tick-ms:60000}")
+    public void advance() {
+        int expired = stockExpiryService.advance();
+        if (expired > 0) {
+            log.info("Stocks vencidos: {}", expired);
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.example.lunastreaming.scheduler;
+
+import com.example.lunastreaming.repository.StockRepository;
+import com.example.lunastreaming.service.StockAvailabilityService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StockReservationScheduler {
+
+    private final StockRepository stockRepository;
+
+    private final StockAvailabilityService stockAvailabilityService;
+
+    // Devuelve al inventario las reservas que no se confirmaron dentro de su TTL
+    @Scheduled(fixedDelayString = "${app.purchase.reservation-sweep-ms:15000}")
+    @Transactional
+    public void releaseExpiredReservations() {
+        int released = stockRepository.releaseExpiredReservations(Instant.now());
+        if (released > 0) {
+            log.info("Reservas de stock vencidas liberadas: {}", released);
+            // Stock devuelto al inventario: ningún producto puede seguir marcado como agotado con certeza
+            stockAvailabilityService.clear();
+        }
+    }
+
+}
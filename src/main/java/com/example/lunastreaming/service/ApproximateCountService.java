@@ -0,0 +1,49 @@
+package com.example.lunastreaming.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Totales aproximados para la paginación por cursor: el COUNT se ejecuta como mucho una vez
+ * por ventana de vigencia y por filtro, en lugar de en cada página.
+ */
+@Service
+public class ApproximateCountService {
+
+    private record CachedCount(long value, long expiresAt) {}
+
+    private final long ttlMs;
+    private final Map<String, CachedCount> counts;
+
+    public ApproximateCountService(@Value("${app.pagination.approximate-total-ttl-seconds:60}") long ttlSeconds,
+                                   @Value("${app.pagination.approximate-total-max-entries:2000}") int maxEntries) {
+        this.ttlMs = Math.max(1, ttlSeconds) * 1000L;
+        int max = Math.max(1, maxEntries);
+        this.counts = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCount> eldest) {
+                return size() > max;
+            }
+        });
+    }
+
+    /**
+     * @param key     identifica el listado y su filtro (incluido el usuario si aplica)
+     * @param counter COUNT real, solo se ejecuta si no hay un valor vigente
+     */
+    public long get(String key, LongSupplier counter) {
+        long now = System.currentTimeMillis();
+        CachedCount cached = counts.get(key);
+        if (cached != null && cached.expiresAt() > now) {
+            return cached.value();
+        }
+        long value = counter.getAsLong();
+        counts.put(key, new CachedCount(value, now + ttlMs));
+        return value;
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.UserEntity;
+import com.example.lunastreaming.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Único punto que modifica users.balance.
+ * Cada movimiento es un UPDATE atómico (balance = balance + delta) en lugar de leer, sumar y guardar la entidad;
+ * los débitos son condicionales (el saldo no puede quedar negativo) salvo que se indique lo contrario.
+ * Cuando una operación mueve el saldo de varios usuarios se aplican en orden de id para que dos
+ * transacciones concurrentes (p.ej. una compra y un reembolso) bloqueen las filas en el mismo orden.
+ * <p>
+ * Cuentas calientes (app.ledger.striped-accounts): sus abonos van a una de K filas de user_balance_stripes
+ * elegida por hash, de modo que ventas concurrentes del mismo proveedor no compiten por su fila de users.
+ * El saldo real es users.balance + suma de franjas; BalanceStripeScheduler las consolida periódicamente.
+ */
+@Service
+@RequiredArgsConstructor
+public class BalanceLedger {
+
+    private final UserRepository userRepository;
+
+    @Value("${app.ledger.striped-accounts:}")
+    private Set<String> stripedAccounts;
+
+    @Value("${app.ledger.stripes:8}")
+    private int stripes;
+
+    private Set<UUID> stripedIds = Set.of();
+    private String stripedIdsLiteral = "{}";
+
+    @PostConstruct
+    void init() {
+        stripedIds = stripedAccounts.stream()
+                .map(String::trim)
+                .filter(v -> !v.isEmpty())
+                .map(UUID::fromString)
+                .collect(Collectors.toUnmodifiableSet());
+        stripedIdsLiteral = stripedIds.stream().map(UUID::toString).collect(Collectors.joining(",", "{", "}"));
+        stripes = Math.max(1, stripes);
+    }
+
+    public record Movement(UUID userId, BigDecimal delta, boolean allowNegative) {
+
+        // Débito condicional: falla con 409 si no hay saldo suficiente
+        public static Movement debit(UUID userId, BigDecimal amount) {
+            return new Movement(userId, amount.negate(), false);
+        }
+
+        // Débito que puede dejar el saldo negativo (p.ej. reembolsos a cargo del proveedor)
+        public static Movement forcedDebit(UUID userId, BigDecimal amount) {
+            return new Movement(userId, amount.negate(), true);
+        }
+
+        public static Movement credit(UUID userId, BigDecimal amount) {
+            return new Movement(userId, amount, true);
+        }
+    }
+
+    /**
+     * Aplica los movimientos (agrupados por usuario) en orden de id y devuelve el saldo final de cada uno
+     * (null para abonos a cuentas con franjas: su saldo se consolida después).
+     */
+    @Transactional
+    public Map<UUID, BigDecimal> apply(Movement... movements) {
+        Map<UUID, BigDecimal> deltas = new TreeMap<>();
+        Map<UUID, Boolean> allowNegative = new HashMap<>();
+        for (Movement m : movements) {
+            deltas.merge(m.userId(), m.delta(), BigDecimal::add);
+            allowNegative.merge(m.userId(), m.allowNegative(), Boolean::logicalAnd);
+        }
+
+        Map<UUID, BigDecimal> balances = new LinkedHashMap<>();
+        for (Map.Entry<UUID, BigDecimal> e : deltas.entrySet()) {
+            balances.put(e.getKey(), applyDelta(e.getKey(), e.getValue(), allowNegative.get(e.getKey())));
+        }
+        return balances;
+    }
+
+    @Transactional
+    public BigDecimal debit(UUID userId, BigDecimal amount) {
+        return applyDelta(userId, amount.negate(), false);
+    }
+
+    @Transactional
+    public BigDecimal credit(UUID userId, BigDecimal amount) {
+        return applyDelta(userId, amount, true);
+    }
+
+    /**
+     * Variantes que además reflejan el nuevo saldo en la entidad ya cargada (solo en memoria:
+     * la columna balance no es actualizable vía JPA).
+     */
+    @Transactional
+    public BigDecimal debit(UserEntity user, BigDecimal amount) {
+        BigDecimal balance = debit(user.getId(), amount);
+        user.setBalance(balance);
+        return balance;
+    }
+
+    @Transactional
+    public BigDecimal credit(UserEntity user, BigDecimal amount) {
+        BigDecimal balance = credit(user.getId(), amount);
+        if (balance != null) {
+            user.setBalance(balance);
+        }
+        return balance;
+    }
+
+    public boolean isStriped(UUID userId) {
+        return stripedIds.contains(userId);
+    }
+
+    public Set<UUID> getStripedAccounts() {
+        return stripedIds;
+    }
+
+    // Cuentas con franjas como literal uuid[] de Postgres, para luna_purchase_v2
+    public String stripedAccountsLiteral() {
+        return stripedIdsLiteral;
+    }
+
+    // Franja que usa este hilo para los abonos a cuentas calientes (también la recibe luna_purchase_v2)
+    public int currentStripe() {
+        return Math.floorMod(Long.hashCode(Thread.currentThread().threadId()), stripes);
+    }
+
+    /**
+     * Saldo disponible real: para cuentas con franjas incluye lo aún no consolidado.
+     */
+    public BigDecimal balanceOf(UserEntity user) {
+        BigDecimal balance = user.getBalance() != null ? user.getBalance() : BigDecimal.ZERO;
+        if (!isStriped(user.getId())) {
+            return balance;
+        }
+        return balance.add(userRepository.sumBalanceStripes(user.getId()));
+    }
+
+    /**
+     * Consolida las franjas de una cuenta caliente en users.balance.
+     */
+    @Transactional
+    public void mergeStripes(UUID userId) {
+        userRepository.mergeBalanceStripes(userId);
+    }
+
+    private BigDecimal applyDelta(UUID userId, BigDecimal delta, boolean allowNegative) {
+        if (isStriped(userId)) {
+            return applyStripedDelta(userId, delta, allowNegative);
+        }
+        if (allowNegative) {
+            return userRepository.addToBalance(userId, delta)
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Usuario no encontrado"));
+        }
+        return userRepository.addToBalanceIfSufficient(userId, delta)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente"));
+    }
+
+    private BigDecimal applyStripedDelta(UUID userId, BigDecimal delta, boolean allowNegative) {
+        // Abonos: a una franja elegida por hash del hilo, sin tocar la fila de users
+        if (delta.signum() >= 0) {
+            userRepository.addToBalanceStripe(userId, currentStripe(), delta);
+            return null;
+        }
+        if (allowNegative) {
+            return userRepository.addToBalance(userId, delta)
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Usuario no encontrado"));
+        }
+        // Débito condicional contra balance + franjas. Se bloquea la fila primero para que la sentencia
+        // siguiente vea un estado consistente si el consolidador acaba de mover franjas a users.balance.
+        userRepository.lockBalanceRow(userId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Usuario no encontrado"));
+        return userRepository.addToBalanceIfSufficientStriped(userId, delta)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente"));
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.ProductSuggestion;
+import com.example.lunastreaming.repository.ProductRepository;
+import com.example.lunastreaming.util.TransactionCallbacks;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * Índice invertido en memoria de los productos activos para la búsqueda del storefront.
+ * Indexa los tokens del nombre del producto, de la categoría y del usuario del proveedor,
+ * normalizados (minúsculas y sin tildes: "disnéy" == "Disney"). Cada término de la consulta
+ * se busca como prefijo, así que sirve también para autocompletar.
+ * Se reconstruye completo periódicamente y se actualiza por producto tras cada cambio.
+ */
+@Service
+@Slf4j
+public class CatalogSearchService {
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Pesos por campo: el nombre del producto pesa más que la categoría y ésta más que el proveedor
+    private static final int WEIGHT_NAME = 3;
+    private static final int WEIGHT_CATEGORY = 2;
+    private static final int WEIGHT_PROVIDER = 1;
+
+    private record Doc(UUID id, String name, String categoryName, Integer categoryId, Map<String, Integer> tokenWeights) {}
+
+    private final ProductRepository productRepository;
+
+    // token normalizado -> productos que lo contienen (ordenado para búsquedas por prefijo)
+    private final ConcurrentSkipListMap<String, Set<UUID>> postings = new ConcurrentSkipListMap<>();
+    private final Map<UUID, Doc> docs = new ConcurrentHashMap<>();
+
+    private volatile boolean ready = false;
+
+    public CatalogSearchService(ProductRepository productRepository) {
+        this.productRepository = productRepository;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Reconstruye el índice completo desde la BD.
+     */
+    public synchronized void rebuild() {
+        List<Object[]> rows = productRepository.findSearchIndexRows();
+        Set<UUID> seen = new HashSet<>();
+        for (Object[] row : rows) {
+            UUID id = (UUID) row[0];
+            seen.add(id);
+            put(id, (String) row[1], (String) row[2], (String) row[3], (Integer) row[4]);
+        }
+        for (UUID id : new ArrayList<>(docs.keySet())) {
+            if (!seen.contains(id)) {
+                remove(id);
+            }
+        }
+        ready = true;
+        log.debug("Índice de búsqueda reconstruido: {} productos, {} términos", docs.size(), postings.size());
+    }
+
+    /**
+     * Reindexa un producto (o lo quita si ya no está activo). Dentro de una transacción se aplica tras el commit.
+     */
+    public void reindex(UUID productId) {
+        if (productId != null) {
+            TransactionCallbacks.afterCommit(() -> reindexNow(List.of(productId)));
+        }
+    }
+
+    // Renombrar una categoría cambia el texto indexado de todos sus productos
+    public void reindexCategory(Integer categoryId) {
+        if (categoryId != null) {
+            TransactionCallbacks.afterCommit(() -> reindexNow(productRepository.findIdsByCategoryId(categoryId)));
+        }
+    }
+
+    private synchronized void reindexNow(Collection<UUID> productIds) {
+        if (productIds.isEmpty()) {
+            return;
+        }
+        Set<UUID> pending = new HashSet<>(productIds);
+        for (Object[] row : productRepository.findSearchIndexRowsByIds(productIds)) {
+            UUID id = (UUID) row[0];
+            pending.remove(id);
+            put(id, (String) row[1], (String) row[2], (String) row[3], (Integer) row[4]);
+        }
+        pending.forEach(this::remove);
+    }
+
+    /**
+     * Ids de productos que contienen todos los términos de la consulta (como prefijo), ordenados por relevancia.
+     * Quien pida otro orden (sort del cliente) reordena estos ids en la BD.
+     */
+    public List<UUID> search(String query) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+
+        Map<UUID, Integer> scores = null;
+        for (String term : terms) {
+            Map<UUID, Integer> termScores = scoreTerm(term);
+            if (scores == null) {
+                scores = termScores;
+            } else {
+                scores.keySet().retainAll(termScores.keySet());
+                for (Map.Entry<UUID, Integer> e : scores.entrySet()) {
+                    e.setValue(e.getValue() + termScores.get(e.getKey()));
+                }
+            }
+            if (scores.isEmpty()) {
+                return List.of();
+            }
+        }
+
+        List<Map.Entry<UUID, Integer>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(Map.Entry.<UUID, Integer>comparingByValue().reversed()
+                .thenComparing(e -> docName(e.getKey())));
+        List<UUID> result = new ArrayList<>(ranked.size());
+        for (Map.Entry<UUID, Integer> e : ranked) {
+            result.add(e.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Sugerencias para autocompletar: los mejores resultados de search() con nombre y categoría.
+     */
+    public List<ProductSuggestion> suggest(String query, int limit) {
+        List<ProductSuggestion> suggestions = new ArrayList<>();
+        for (UUID id : search(query)) {
+            Doc doc = docs.get(id);
+            if (doc != null) {
+                suggestions.add(new ProductSuggestion(doc.id(), doc.name(), doc.categoryName()));
+            }
+            if (suggestions.size() >= limit) {
+                break;
+            }
+        }
+        return suggestions;
+    }
+
+    /**
+     * Todos los productos activos indexados (opcionalmente de una categoría), ordenados por nombre.
+     */
+    public List<UUID> activeIds(Integer categoryId) {
+        List<Doc> matching = new ArrayList<>();
+        for (Doc doc : docs.values()) {
+            if (categoryId == null || categoryId.equals(doc.categoryId())) {
+                matching.add(doc);
+            }
+        }
+        matching.sort(Comparator.comparing((Doc d) -> d.name() == null ? "" : normalize(d.name())));
+        List<UUID> ids = new ArrayList<>(matching.size());
+        for (Doc doc : matching) {
+            ids.add(doc.id());
+        }
+        return ids;
+    }
+
+    // Nombre y categoría de un producto activo, sin ir a la BD
+    public Optional<ProductSuggestion> describe(UUID id) {
+        Doc doc = docs.get(id);
+        return doc == null ? Optional.empty() : Optional.of(new ProductSuggestion(doc.id(), doc.name(), doc.categoryName()));
+    }
+
+    // Puntaje de cada producto para un término: coincidencia exacta del token vale el doble que un prefijo
+    private Map<UUID, Integer> scoreTerm(String term) {
+        Map<UUID, Integer> scores = new HashMap<>();
+        for (Map.Entry<String, Set<UUID>> e : postings.subMap(term, true, term + Character.MAX_VALUE, false).entrySet()) {
+            String token = e.getKey();
+            boolean exact = token.equals(term);
+            for (UUID id : e.getValue()) {
+                Doc doc = docs.get(id);
+                if (doc == null) {
+                    continue;
+                }
+                int weight = doc.tokenWeights().getOrDefault(token, 0) * (exact ? 2 : 1);
+                scores.merge(id, weight, Math::max);
+            }
+        }
+        return scores;
+    }
+
+    private String docName(UUID id) {
+        Doc doc = docs.get(id);
+        return doc == null || doc.name() == null ? "" : normalize(doc.name());
+    }
+
+    private void put(UUID id, String name, String categoryName, String providerUsername, Integer categoryId) {
+        Map<String, Integer> weights = new HashMap<>();
+        addTokens(weights, name, WEIGHT_NAME);
+        addTokens(weights, categoryName, WEIGHT_CATEGORY);
+        addTokens(weights, providerUsername, WEIGHT_PROVIDER);
+
+        remove(id);
+        docs.put(id, new Doc(id, name, categoryName, categoryId, weights));
+        for (String token : weights.keySet()) {
+            postings.computeIfAbsent(token, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    private void remove(UUID id) {
+        Doc previous = docs.remove(id);
+        if (previous == null) {
+            return;
+        }
+        for (String token : previous.tokenWeights().keySet()) {
+            postings.computeIfPresent(token, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    private static void addTokens(Map<String, Integer> weights, String text, int weight) {
+        for (String token : tokenize(text)) {
+            weights.merge(token, weight, Math::max);
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        if (text == null || text.isBlank()) {
+            return List.of();
+        }
+        List<String> tokens = new ArrayList<>();
+        for (String token : SEPARATORS.split(normalize(text))) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    // Minúsculas y sin marcas diacríticas
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("ready", ready);
+        m.put("products", docs.size());
+        m.put("terms", postings.size());
+        return m;
+    }
+}
@@ -5,10 +5,12 @@ import com.example.lunastreaming.model.CategoryRequest;
 import com.example.lunastreaming.model.CategoryResponse;
 import com.example.lunastreaming.model.CategoryEntity;
 import com.example.lunastreaming.repository.CategoryRepository;
+import com.example.lunastreaming.repository.ProductRepository;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -22,6 +24,13 @@ public class CategoryService {
 
     private final CategoryBuilder categoryBuilder;
 
+    private final ProductRepository productRepository;
+
+    private final CatalogSearchService catalogSearchService;
+
+    private final ReferenceSnapshotService referenceSnapshotService;
+
+    // Categorías sin los badges de stock: es la parte estable del listado, de la que sale su ETag
     public List<CategoryResponse> findAll() {
         List<CategoryEntity> categoryEntities = repository.findByStatusNotOrderBySortOrderAsc("removed");
 
@@ -30,6 +39,29 @@ public class CategoryService {
                 .toList();
     }
 
+    // Listado completo de GET /api/categories: categorías con su availableStockCount
+    public List<CategoryResponse> findAllWithStockCounts() {
+        Map<Integer, Long> stockByCategory = availableStockByCategory();
+        List<CategoryResponse> responses = findAll();
+        for (CategoryResponse response : responses) {
+            response.setAvailableStockCount(stockByCategory.getOrDefault(response.getId(), 0L));
+        }
+        return responses;
+    }
+
+    /**
+     * Stocks disponibles por categoría para los badges del menú (una consulta agrupada sobre
+     * products.available_stock_count). También se publica aparte en /stock-counts para refrescar
+     * solo los badges.
+     */
+    public Map<Integer, Long> availableStockByCategory() {
+        Map<Integer, Long> result = new HashMap<>();
+        for (Object[] row : productRepository.sumAvailableStockByCategory()) {
+            result.put((Integer) row[0], ((Number) row[1]).longValue());
+        }
+        return result;
+    }
+
     public CategoryResponse findById(Integer id) {
         CategoryEntity categoryEntity = repository.findById(id).orElse(null);
         return categoryBuilder.categoryResponse(categoryEntity);
@@ -46,6 +78,7 @@ public class CategoryService {
         categoryEntity.setSortOrder(nextOrder);
 
         CategoryEntity entity = repository.save(categoryEntity);
+        referenceSnapshotService.invalidate(ReferenceSnapshotService.CATEGORIES);
         return categoryBuilder.categoryResponse(entity);
     }
 
@@ -59,6 +92,9 @@ public class CategoryService {
             existing.setStatus(existing.getStatus());
             existing.setDescription(categoryEntity.getDescription());
             CategoryEntity save = repository.save(existing);
+            // El nombre de la categoría forma parte del texto indexado de sus productos
+            catalogSearchService.reindexCategory(id);
+            referenceSnapshotService.invalidate(ReferenceSnapshotService.CATEGORIES);
             return categoryBuilder.categoryResponse(save);
         }
         return null;
@@ -68,6 +104,7 @@ public class CategoryService {
         CategoryEntity category = repository.findById(id).orElseThrow();
         category.setStatus("removed");
         repository.save(category);
+        referenceSnapshotService.invalidate(ReferenceSnapshotService.CATEGORIES);
     }
 
     public CategoryResponse updateCategoryStatus(Integer id, String status) {
@@ -80,6 +117,7 @@ public class CategoryService {
 
         category.setStatus(status);
         CategoryEntity saved = repository.save(category);
+        referenceSnapshotService.invalidate(ReferenceSnapshotService.CATEGORIES);
         return categoryBuilder.categoryResponse(saved);
     }
 
@@ -103,6 +141,7 @@ public class CategoryService {
 
         // 4. Guardamos todos los cambios en una sola transacción
         repository.saveAll(categories);
+        referenceSnapshotService.invalidate(ReferenceSnapshotService.CATEGORIES);
     }
 
 }
@@ -3,7 +3,6 @@ package com.example.lunastreaming.service;
 import com.example.lunastreaming.model.ExchangeRate;
 import com.example.lunastreaming.repository.ExchangeRateRepository;
 import lombok.RequiredArgsConstructor;
-import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
@@ -16,11 +15,16 @@ public class ExchangeRateService {
 
     private final ExchangeRateRepository exchangeRateRepository;
 
+    private final ExchangeRateTimeline exchangeRateTimeline;
+
     private final UserService userService;
 
+    private final StorefrontCacheService storefrontCacheService;
+
+    private final ReferenceSnapshotService referenceSnapshotService;
+
     public ExchangeRate getCurrentRate() {
-        return exchangeRateRepository.findLatestRate(PageRequest.of(0, 1)).stream().findFirst()
-                .orElseThrow(() -> new IllegalStateException("No exchange rate found"));
+        return exchangeRateTimeline.current();
     }
 
     public ExchangeRate updateRate(BigDecimal newRate, String source, String adminId) {
@@ -35,7 +39,12 @@ public class ExchangeRateService {
         rate.setRate(newRate);
         rate.setSource(source);
         rate.setCreatedBy(UUID.fromString(adminId));
-        return exchangeRateRepository.save(rate);
+        ExchangeRate saved = exchangeRateRepository.save(rate);
+        exchangeRateTimeline.register(saved);
+        // Los precios en soles del storefront dependen de la tasa vigente
+        storefrontCacheService.invalidateAll();
+        referenceSnapshotService.invalidate(ReferenceSnapshotService.EXCHANGE_RATE);
+        return saved;
     }
 
     public BigDecimal convert(BigDecimal amount, String fromCurrency, String toCurrency) {
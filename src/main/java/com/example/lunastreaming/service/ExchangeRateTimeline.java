@@ -0,0 +1,111 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.ExchangeRate;
+import com.example.lunastreaming.repository.ExchangeRateRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Historial completo de tasas de cambio en memoria, ordenado por fecha de vigencia.
+ * Responde "tasa actual" y "tasa vigente en el instante T" en O(log n) sin consultar la BD,
+ * para convertir cada movimiento histórico a la tasa de su propia fecha.
+ * El mapa es inmutable y se reemplaza entero al registrar una tasa nueva o al refrescar
+ * (las tasas cambian pocas veces al día, copiarlo es barato).
+ */
+@Service
+@Slf4j
+public class ExchangeRateTimeline {
+
+    private final ExchangeRateRepository exchangeRateRepository;
+
+    // createdAt -> tasa que entra en vigor en ese instante; null hasta la primera carga
+    private volatile NavigableMap<Instant, ExchangeRate> rates;
+
+    public ExchangeRateTimeline(ExchangeRateRepository exchangeRateRepository) {
+        this.exchangeRateRepository = exchangeRateRepository;
+    }
+
+    /**
+     * Tasa vigente (la más reciente).
+     *
+     * @throws IllegalStateException si no hay ninguna tasa registrada
+     */
+    public ExchangeRate current() {
+        Map.Entry<Instant, ExchangeRate> last = timeline().lastEntry();
+        if (last == null) {
+            throw new IllegalStateException("No exchange rate found");
+        }
+        return last.getValue();
+    }
+
+    public BigDecimal currentRate() {
+        return current().getRate();
+    }
+
+    /**
+     * Tasa vigente en el instante indicado. Para fechas anteriores a la primera tasa registrada
+     * se usa esa primera tasa; con at == null, la actual.
+     */
+    public ExchangeRate at(Instant at) {
+        if (at == null) {
+            return current();
+        }
+        NavigableMap<Instant, ExchangeRate> map = timeline();
+        Map.Entry<Instant, ExchangeRate> entry = map.floorEntry(at);
+        if (entry == null) {
+            entry = map.firstEntry();
+        }
+        if (entry == null) {
+            throw new IllegalStateException("No exchange rate found");
+        }
+        return entry.getValue();
+    }
+
+    public BigDecimal rateAt(Instant at) {
+        return at(at).getRate();
+    }
+
+    // Añade una tasa recién guardada sin releer la tabla
+    public synchronized void register(ExchangeRate rate) {
+        if (rate == null || rate.getCreatedAt() == null) {
+            return;
+        }
+        NavigableMap<Instant, ExchangeRate> copy = new TreeMap<>(timeline());
+        copy.put(rate.getCreatedAt(), rate);
+        rates = Collections.unmodifiableNavigableMap(copy);
+    }
+
+    /**
+     * Recarga el historial desde la BD (arranque y refresco periódico, por si otra instancia registró tasas).
+     */
+    public synchronized void refresh() {
+        NavigableMap<Instant, ExchangeRate> map = new TreeMap<>();
+        for (ExchangeRate rate : exchangeRateRepository.findAllByOrderByCreatedAtAscIdAsc()) {
+            if (rate.getCreatedAt() != null) {
+                map.put(rate.getCreatedAt(), rate);
+            }
+        }
+        rates = Collections.unmodifiableNavigableMap(map);
+        log.debug("Historial de tasas de cambio cargado: {} tasas", map.size());
+    }
+
+    private NavigableMap<Instant, ExchangeRate> timeline() {
+        NavigableMap<Instant, ExchangeRate> map = rates;
+        if (map == null) {
+            synchronized (this) {
+                if (rates == null) {
+                    refresh();
+                }
+                map = rates;
+            }
+        }
+        return map;
+    }
+}
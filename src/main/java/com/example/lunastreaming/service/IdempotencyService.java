@@ -0,0 +1,148 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.IdempotencyKeyEntity;
+import com.example.lunastreaming.repository.IdempotencyKeyRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Claves de idempotencia (cabecera Idempotency-Key) para endpoints que mueven dinero.
+ * La tabla idempotency_keys es la fuente de verdad: guarda la clave y el id del recurso resultante,
+ * con el que se reconstruye la respuesta al repetir la solicitud. Un caché LRU acotado evita esa
+ * consulta para los reintentos recientes y los duplicados concurrentes esperan a la primera ejecución.
+ * Una clave que sigue en 'processing' más de processing-timeout-seconds (el proceso murió entre la acción
+ * y su registro) se puede volver a reclamar; hasta entonces los reintentos reciben 409.
+ */
+@Service
+public class IdempotencyService {
+
+    private static final int MAX_KEY_LENGTH = 200;
+
+    // Los resultados null (operaciones sin cuerpo) se guardan en el caché con este marcador
+    private static final Object NULL_RESULT = new Object();
+
+    private final IdempotencyKeyRepository idempotencyKeyRepository;
+    private final long waitMs;
+    private final long processingTimeoutSeconds;
+
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Object> recent;
+
+    public IdempotencyService(IdempotencyKeyRepository idempotencyKeyRepository,
+                              @Value("${app.idempotency.cache-size:10000}") int cacheSize,
+                              @Value("${app.idempotency.wait-ms:10000}") long waitMs,
+                              @Value("${app.idempotency.processing-timeout-seconds:300}") long processingTimeoutSeconds) {
+        this.idempotencyKeyRepository = idempotencyKeyRepository;
+        this.waitMs = waitMs;
+        this.processingTimeoutSeconds = Math.max(1, processingTimeoutSeconds);
+        int maxEntries = Math.max(1, cacheSize);
+        this.recent = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Ejecuta la acción una sola vez por (usuario, operación, clave).
+     *
+     * @param resourceIdOf id del recurso creado, para poder repetir la respuesta desde la BD
+     * @param replay       reconstruye la respuesta a partir de ese id
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, UUID userId, String operation, Supplier<T> action,
+                         Function<T, String> resourceIdOf, Function<String, T> replay) {
+        if (key == null || key.isBlank()) {
+            return action.get();
+        }
+        if (key.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Idempotency-Key demasiado larga");
+        }
+
+        String id = userId + ":" + operation + ":" + key;
+
+        Object cached = recent.get(id);
+        if (cached != null) {
+            return (T) unwrap(cached);
+        }
+
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(id, mine);
+        if (running != null) {
+            return (T) awaitFirst(running);
+        }
+
+        boolean claimed = false;
+        try {
+            T result;
+            Instant now = Instant.now();
+            if (idempotencyKeyRepository.claim(id, userId, operation, now,
+                    now.minusSeconds(processingTimeoutSeconds)) == 0) {
+                IdempotencyKeyEntity existing = idempotencyKeyRepository.findById(id)
+                        .orElseThrow(() -> inProgress());
+                if (!"completed".equals(existing.getStatus())) {
+                    throw inProgress();
+                }
+                result = replay.apply(existing.getResourceId());
+            } else {
+                claimed = true;
+                result = action.get();
+                idempotencyKeyRepository.complete(id, resourceIdOf.apply(result), Instant.now());
+            }
+            recent.put(id, wrap(result));
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            // Si falló la ejecución se libera la clave para que el cliente pueda reintentar
+            if (claimed) {
+                idempotencyKeyRepository.release(id);
+            }
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(id, mine);
+        }
+    }
+
+    public int purgeOlderThan(long hours) {
+        return idempotencyKeyRepository.deleteOlderThan(Instant.now().minus(hours, ChronoUnit.HOURS));
+    }
+
+    private Object awaitFirst(CompletableFuture<Object> running) {
+        try {
+            return running.get(waitMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw inProgress();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw inProgress();
+        }
+    }
+
+    private ResponseStatusException inProgress() {
+        return new ResponseStatusException(HttpStatus.CONFLICT, "Ya hay una solicitud en proceso con esta Idempotency-Key");
+    }
+
+    private static Object wrap(Object value) {
+        return value == null ? NULL_RESULT : value;
+    }
+
+    private static Object unwrap(Object value) {
+        return value == NULL_RESULT ? null : value;
+    }
+}
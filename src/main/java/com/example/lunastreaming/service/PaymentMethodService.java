@@ -17,6 +17,8 @@ public class PaymentMethodService {
 
     private final PaymentMethodRepository repository;
 
+    private final ReferenceSnapshotService referenceSnapshotService;
+
     // Método de ayuda para convertir
     private PaymentMethodDTO convertToDTO(PaymentMethodEntity entity) {
         return PaymentMethodDTO.builder()
@@ -51,7 +53,9 @@ public class PaymentMethodService {
                 .description(dto.getDescription())
                 .build();
 
-        return convertToDTO(repository.save(entity));
+        PaymentMethodEntity saved = repository.save(entity);
+        referenceSnapshotService.invalidate(ReferenceSnapshotService.ACTIVE_PAYMENT_METHODS);
+        return convertToDTO(saved);
     }
 
     @Transactional
@@ -65,7 +69,9 @@ public class PaymentMethodService {
         entity.setColor(dto.getColor());
         entity.setDescription(dto.getDescription());
 
-        return convertToDTO(repository.save(entity));
+        PaymentMethodEntity saved = repository.save(entity);
+        referenceSnapshotService.invalidate(ReferenceSnapshotService.ACTIVE_PAYMENT_METHODS);
+        return convertToDTO(saved);
     }
 
     @Transactional
@@ -74,5 +80,6 @@ public class PaymentMethodService {
                 .orElseThrow(() -> new RuntimeException("Método no encontrado"));
         method.setIsActive(false);
         repository.save(method);
+        referenceSnapshotService.invalidate(ReferenceSnapshotService.ACTIVE_PAYMENT_METHODS);
     }
 }
@@ -0,0 +1,174 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.repository.WalletTransactionRepository;
+import com.example.lunastreaming.util.TransactionCallbacks;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ventas recientes por producto en ventanas deslizantes (últimas 24 h y 7 días) para ordenar el
+ * storefront por "más vendidos" sin agrupar wallet_transactions en cada petición.
+ * Cada producto tiene un anillo de contadores por hora que cubre la ventana más larga; una casilla
+ * se reutiliza cuando su hora ya salió de la ventana. Se alimenta con las compras y renovaciones
+ * confirmadas y se reconstruye desde la BD al arrancar y periódicamente (PopularityScheduler).
+ */
+@Service
+@Slf4j
+public class PopularityService {
+
+    public enum Window {
+        LAST_24H("24h", 24),
+        LAST_7D("7d", 24 * 7);
+
+        private final String code;
+        private final int hours;
+
+        Window(String code, int hours) {
+            this.code = code;
+            this.hours = hours;
+        }
+
+        public String code() {
+            return code;
+        }
+
+        // "24h" / "7d"; cualquier otro valor usa la ventana de 24 h
+        public static Window parse(String value) {
+            for (Window w : values()) {
+                if (w.code.equalsIgnoreCase(value)) {
+                    return w;
+                }
+            }
+            return LAST_24H;
+        }
+    }
+
+    private static final int SLOTS = Window.LAST_7D.hours;
+    private static final long HOUR_SECONDS = 3600;
+
+    // Anillo de contadores por hora de un producto; hourOf[i] indica a qué hora pertenece counts[i]
+    private static final class Counter {
+        private final long[] hourOf = new long[SLOTS];
+        private final long[] counts = new long[SLOTS];
+
+        Counter() {
+            Arrays.fill(hourOf, Long.MIN_VALUE);
+        }
+
+        synchronized void add(long hour, long amount) {
+            int i = (int) Math.floorMod(hour, (long) SLOTS);
+            if (hourOf[i] != hour) {
+                if (hourOf[i] > hour) {
+                    return; // la casilla ya pertenece a una hora más reciente: este evento quedó fuera de la ventana
+                }
+                hourOf[i] = hour;
+                counts[i] = 0;
+            }
+            counts[i] += amount;
+        }
+
+        synchronized long sum(long currentHour, int hours) {
+            long oldest = currentHour - hours + 1;
+            long total = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (hourOf[i] >= oldest && hourOf[i] <= currentHour) {
+                    total += counts[i];
+                }
+            }
+            return total;
+        }
+    }
+
+    private final WalletTransactionRepository walletTransactionRepository;
+
+    private volatile Map<UUID, Counter> counters = new ConcurrentHashMap<>();
+
+    public PopularityService(WalletTransactionRepository walletTransactionRepository) {
+        this.walletTransactionRepository = walletTransactionRepository;
+    }
+
+    /**
+     * Registra una venta (o renovación) del producto. Dentro de una transacción se cuenta tras el commit.
+     */
+    public void recordSale(UUID productId) {
+        if (productId == null) {
+            return;
+        }
+        TransactionCallbacks.afterCommit(() ->
+                counters.computeIfAbsent(productId, id -> new Counter()).add(hourOf(Instant.now()), 1));
+    }
+
+    /**
+     * Ventas del producto en la ventana.
+     */
+    public long sales(UUID productId, Window window) {
+        Counter counter = counters.get(productId);
+        return counter == null ? 0 : counter.sum(hourOf(Instant.now()), window.hours);
+    }
+
+    /**
+     * Reordena los ids por ventas en la ventana (de más a menos). El orden de entrada se conserva
+     * entre productos con las mismas ventas (relevancia de la búsqueda, nombre...).
+     */
+    public List<UUID> rank(List<UUID> productIds, Window window) {
+        long currentHour = hourOf(Instant.now());
+        Map<UUID, Long> sales = new HashMap<>();
+        for (UUID id : productIds) {
+            Counter counter = counters.get(id);
+            sales.put(id, counter == null ? 0L : counter.sum(currentHour, window.hours));
+        }
+        List<UUID> ranked = new ArrayList<>(productIds);
+        ranked.sort(Comparator.comparing((UUID id) -> sales.get(id)).reversed());
+        return ranked;
+    }
+
+    /**
+     * Productos con ventas en la ventana, de más a menos vendidos.
+     */
+    public List<Map.Entry<UUID, Long>> top(Window window) {
+        long currentHour = hourOf(Instant.now());
+        List<Map.Entry<UUID, Long>> result = new ArrayList<>();
+        for (Map.Entry<UUID, Counter> e : counters.entrySet()) {
+            long sales = e.getValue().sum(currentHour, window.hours);
+            if (sales > 0) {
+                result.add(Map.entry(e.getKey(), sales));
+            }
+        }
+        result.sort(Map.Entry.<UUID, Long>comparingByValue().reversed());
+        return result;
+    }
+
+    /**
+     * Reconstruye los contadores desde las compras y renovaciones de la ventana más larga.
+     * También descarta los productos que ya no tienen ventas recientes.
+     */
+    public synchronized void rebuild() {
+        Instant since = Instant.now().minus(Duration.ofHours(SLOTS));
+        Map<UUID, Counter> fresh = new ConcurrentHashMap<>();
+        for (Object[] row : walletTransactionRepository.countSalesByProductAndHour(since)) {
+            UUID productId = (UUID) row[0];
+            long hour = ((Number) row[1]).longValue();
+            long count = ((Number) row[2]).longValue();
+            fresh.computeIfAbsent(productId, id -> new Counter()).add(hour, count);
+        }
+        counters = fresh;
+        log.debug("Contadores de popularidad reconstruidos: {} productos con ventas en 7 días", fresh.size());
+    }
+
+    private static long hourOf(Instant instant) {
+        return Math.floorDiv(instant.getEpochSecond(), HOUR_SECONDS);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("trackedProducts", counters.size());
+        m.put("bucketHours", 1);
+        m.put("slots", SLOTS);
+        return m;
+    }
+}
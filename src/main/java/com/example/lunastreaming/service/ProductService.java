@@ -5,7 +5,10 @@ import com.example.lunastreaming.builder.StockBuilder;
 import com.example.lunastreaming.model.*;
 import com.example.lunastreaming.repository.*;
 import com.example.lunastreaming.util.DaysUtil;
+import com.example.lunastreaming.util.FieldSet;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.transaction.annotation.Transactional;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
@@ -14,7 +17,6 @@ import org.springframework.http.HttpStatus;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
-import org.springframework.data.jpa.domain.Specification;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
@@ -25,11 +27,9 @@ import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
-import jakarta.persistence.criteria.Predicate;
-import jakarta.persistence.criteria.JoinType;
 import jakarta.persistence.criteria.Root;
 import jakarta.persistence.criteria.CriteriaQuery;
 import jakarta.persistence.criteria.CriteriaBuilder;
@@ -40,13 +40,19 @@ public class ProductService {
 
     private final ProductRepository productRepository;
     private final UserRepository userRepository;
-    private final SettingRepository settingRepository;
+    private final SettingService settingService;
     private final StockRepository stockRepository;
     private final StockBuilder stockBuilder;
     private final ProductBuilder productBuilder;
-    private final CategoryRepository categoryRepository;
     private final WalletTransactionRepository walletTransactionRepository;
-    private final ExchangeRateRepository exchangeRateRepository;
+    private final ExchangeRateTimeline exchangeRateTimeline;
+    private final BalanceLedger balanceLedger;
+    private final StorefrontCacheService storefrontCacheService;
+    private final CatalogSearchService catalogSearchService;
+    private final PopularityService popularityService;
+
+    // sort=popular24h / popular7d (popular = 24 h): más vendidos, ordenado en memoria con PopularityService
+    private static final String SORT_POPULAR = "popular";
 
     // zona a usar para el cálculo (ajusta si usas otra)
     private final ZoneId zone = ZoneId.of("America/Lima");
@@ -61,8 +67,11 @@ public class ProductService {
         return productRepository.save(product);
     }
 
+    /**
+     * Productos del proveedor con sus stocks activos; si fields no pide stockResponses no se cargan los stocks.
+     */
     @Transactional(readOnly = true)
-    public List<ProductResponse> getAllByProviderWithStocks(UUID providerId) {
+    public List<ProductResponse> getAllByProviderWithStocks(UUID providerId, FieldSet fields) {
         // 1) Obtener productos del proveedor
         List<ProductEntity> products = productRepository.findByProviderIdAndDeletedFalse(providerId);
         if (products.isEmpty()) {
@@ -75,7 +84,11 @@ public class ProductService {
                 .filter(Objects::nonNull)
                 .collect(Collectors.toList());
 
-        List<StockEntity> stocks = stockRepository.findByProductIdInAndStatus(productIds, "active");
+        boolean withStocks = fields.includes("stockResponses");
+        FieldSet stockFields = fields.nested("stockResponses");
+        List<StockEntity> stocks = withStocks
+                ? stockRepository.findByProductIdInAndStatus(productIds, "active")
+                : Collections.emptyList();
 
         // 3) Agrupar stocks por productId
         Map<UUID, List<StockEntity>> stocksByProduct = stocks.stream()
@@ -88,7 +101,8 @@ public class ProductService {
                 .map(product -> {
                     List<StockEntity> stock = stocksByProduct.getOrDefault(product.getId(), Collections.emptyList());
 
-                    List<StockResponse> stockResponses = stock.stream().map(stockBuilder::toStockResponse).toList();
+                    List<StockResponse> stockResponses = stock.stream()
+                            .map(s -> stockBuilder.toStockResponse(s, stockFields)).toList();
                     product.setDaysRemaining(DaysUtil.daysRemainingFromTimestamp(product.getPublishEnd(), zone));
                     return ProductResponse
                             .builder()
@@ -152,8 +166,15 @@ public class ProductService {
     public void updateIfOwner(UUID id, ProductEntity payload) {
         ProductEntity existing = productRepository.findById(id)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Producto no encontrado"));
+        Integer previousCategoryId = existing.getCategoryId();
         mergeNonNull(existing, payload);
         productRepository.save(existing);
+
+        catalogSearchService.reindex(existing.getId());
+        storefrontCacheService.invalidateCategory(previousCategoryId);
+        if (!Objects.equals(previousCategoryId, existing.getCategoryId())) {
+            storefrontCacheService.invalidateCategory(existing.getCategoryId());
+        }
     }
 
     // Mergea SOLO los campos no nulos del source hacia target
@@ -185,6 +206,8 @@ public class ProductService {
         product.setDeleted(true); // El usuario ya no lo verá
         product.setActive(false);  // También lo desactivamos de la venta pública
         productRepository.save(product);
+        catalogSearchService.reindex(product.getId());
+        storefrontCacheService.invalidateCategory(product.getCategoryId());
     }
 
     @Transactional
@@ -204,15 +227,15 @@ public class ProductService {
         }
 
         // 2. Lógica de Cobro (Wallet)
-        BigDecimal publishPrice = settingRepository.findValueNumByKey("supplierPublication")
+        BigDecimal publishPrice = settingService.findNumber("supplierPublication")
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "supplierPublication no configurado"));
 
         UserEntity user = userRepository.findById(callerId)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Usuario no encontrado"));
 
-        // --- Conversión robusta de Balance ---
+        // --- Conversión robusta de Balance --- (saldo disponible real, con franjas no consolidadas)
         BigDecimal balance;
-        Object rawBalance = user.getBalance();
+        Object rawBalance = balanceLedger.balanceOf(user);
         if (rawBalance == null) balance = BigDecimal.ZERO;
         else if (rawBalance instanceof BigDecimal) balance = (BigDecimal) rawBalance;
         else if (rawBalance instanceof Double) balance = BigDecimal.valueOf((Double) rawBalance);
@@ -230,10 +253,8 @@ public class ProductService {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente para publicar el producto");
         }
 
-        // Actualizar saldo
-        BigDecimal newBalance = balance.subtract(price).setScale(2, RoundingMode.HALF_UP);
-        user.setBalance(newBalance);
-        userRepository.save(user);
+        // Actualizar saldo (débito atómico y condicional)
+        balanceLedger.debit(user, price.setScale(2, RoundingMode.HALF_UP));
 
         // 3. Registro de Transacción
         WalletTransaction tx = WalletTransaction.builder()
@@ -262,6 +283,8 @@ public class ProductService {
 
         // Guardar producto actualizado
         ProductEntity savedProduct = productRepository.save(product);
+        catalogSearchService.reindex(savedProduct.getId());
+        storefrontCacheService.invalidateCategory(savedProduct.getCategoryId());
 
         // 5. NUEVO: Mapeo a ProductResponse (Copiado de tu primer método)
 
@@ -301,198 +324,183 @@ public class ProductService {
 
     /**
      * Lista productos activos (paginado) y añade categoryName, providerName y resumen de stock.
-     * Devuelve Page<ProductDto>.
+     * Búsqueda global opcional por nombre de producto, categoría o proveedor: se resuelve en el índice
+     * en memoria (CatalogSearchService) y solo se consulta la BD para la página pedida.
+     * Las páginas se sirven desde StorefrontCacheService; sin transacción porque la
+     * página es una sola lectura (la tasa de cambio sale de ExchangeRateTimeline).
      */
-    @Transactional(readOnly = true)
     public Page<ProductHomeResponse> listActiveProductsWithDetails(String query, Pageable pageable) {
-        // 1) Obtener tasa de cambio UNA SOLA VEZ
-        ExchangeRate rate = exchangeRateRepository.findFirstByOrderByCreatedAtDesc()
-                .orElseThrow(() -> new RuntimeException("No se encontraron tasas de cambio"));
-
-        // 2) Definición de la búsqueda dinámica (Global Search)
-        Specification<ProductEntity> spec = (root, criteriaQuery, cb) -> {
-            List<Predicate> predicates = new ArrayList<>();
-            predicates.add(cb.isTrue(root.get("active")));
-
-            if (query != null && !query.trim().isEmpty()) {
-                String pattern = "%" + query.toLowerCase() + "%";
-                // Nota: root.join requiere que tengas las relaciones @ManyToOne en tu ProductEntity
-                Predicate globalSearch = cb.or(
-                        cb.like(cb.lower(root.get("name")), pattern),
-                        cb.like(cb.lower(root.join("category", JoinType.LEFT).get("name")), pattern),
-                        cb.like(cb.lower(root.join("provider", JoinType.LEFT).get("username")), pattern)
-                );
-                predicates.add(globalSearch);
-            }
-            return cb.and(predicates.toArray(new Predicate[0]));
-        };
-
-        // 3) Ejecutar búsqueda paginada
-        Page<ProductEntity> page = productRepository.findAll(spec, pageable);
-
-        if (page.isEmpty()) {
-            return new PageImpl<>(Collections.emptyList(), pageable, 0);
+        Optional<PopularityService.Window> popular = popularSort(pageable);
+        if (popular.isPresent() && catalogSearchService.isReady()) {
+            return listPopular(query, null, popular.get(), pageable);
         }
+        // Sin índice cargado todavía no se puede ordenar por ventas: orden por defecto
+        Pageable effective = popular.isPresent() ? withoutSort(pageable) : pageable;
 
-        // 4) Carga masiva de datos relacionados (Tu lógica original optimizada)
-        List<Integer> categoryIds = page.stream().map(ProductEntity::getCategoryId).filter(Objects::nonNull).distinct().collect(Collectors.toList());
-        List<UUID> providerIds = page.stream().map(ProductEntity::getProviderId).filter(Objects::nonNull).distinct().collect(Collectors.toList());
-        List<UUID> productIds = page.stream().map(ProductEntity::getId).distinct().collect(Collectors.toList());
-
-        Map<Integer, String> categoryNames = categoryIds.isEmpty() ? Collections.emptyMap() :
-                categoryRepository.findAllById(categoryIds).stream().collect(Collectors.toMap(CategoryEntity::getId, CategoryEntity::getName, (a, b) -> a));
-
-        Map<UUID, UserEntity> providersById = providerIds.isEmpty() ? Collections.emptyMap() :
-                userRepository.findAllById(providerIds).stream().collect(Collectors.toMap(UserEntity::getId, Function.identity(), (a, b) -> a));
-
-        // Carga de Stocks filtrada
-        // Dentro del método listActiveProductsWithDetails
-        Map<UUID, List<StockEntity>> stocksByProduct = stockRepository.findByProductIdIn(productIds).stream()
-                .filter(s -> {
-                    // 1. Que el estado sea "active"
-                    boolean isActive = "active".equalsIgnoreCase(s.getStatus());
-
-                    // 2. Que no haya sido vendido (buyer es null y soldAt es null)
-                    boolean isNotSold = s.getBuyer() == null && s.getSoldAt() == null;
-
-                    return isActive && isNotSold;
-                })
-                .collect(Collectors.groupingBy(s -> s.getProduct().getId()));
-
-        // 5) Mapeo a Response DTO
-        List<ProductHomeResponse> responses = page.stream()
-                .map(entity -> {
-                    String catName = entity.getCategoryId() == null ? null : categoryNames.get(entity.getCategoryId());
-                    UserEntity provider = entity.getProviderId() == null ? null : providersById.get(entity.getProviderId());
-                    String provName = resolveProviderDisplayName(provider);
+        if (query == null || query.trim().isEmpty()) {
+            return storefrontCacheService.getAll(effective,
+                    () -> toStorefrontPage(productRepository.findStorefront(effective)));
+        }
+        return storefrontCacheService.getSearch(query, effective,
+                () -> toStorefrontPage(searchStorefront(query, effective)));
+    }
 
-                    ProductDto dto = productBuilder.productDtoFromEntity(entity, catName, provName, provider);
+    // Sin sort, resultados por relevancia; con sort, los productos encontrados se ordenan en la BD como pidió
+    // el cliente. Mientras el índice no está cargado se usa el LIKE en BD
+    private Page<StorefrontProductRow> searchStorefront(String query, Pageable pageable) {
+        if (!catalogSearchService.isReady() || pageable.isUnpaged()) {
+            String pattern = "%" + query.trim().toLowerCase() + "%";
+            return productRepository.findStorefrontBySearch(pattern, pageable);
+        }
 
-                    // Conversión de moneda usando la 'rate' cargada al inicio
-                    dto.setSalePriceSoles(rate.getRate().multiply(dto.getSalePrice()).setScale(2, RoundingMode.HALF_UP));
+        List<UUID> matches = catalogSearchService.search(query);
+        if (pageable.getSort().isSorted()) {
+            return matches.isEmpty()
+                    ? new PageImpl<>(Collections.emptyList(), pageable, 0)
+                    : productRepository.findStorefrontByIdIn(matches, pageable);
+        }
+        return pageOfIds(matches, pageable);
+    }
 
-                    long stockCount = stocksByProduct.getOrDefault(entity.getId(), Collections.emptyList()).size();
+    // Página de filas del storefront a partir de una lista de ids ya ordenada en memoria
+    private Page<StorefrontProductRow> pageOfIds(List<UUID> ranked, Pageable pageable) {
+        int from = (int) Math.min(pageable.getOffset(), ranked.size());
+        int to = Math.min(from + pageable.getPageSize(), ranked.size());
+        List<UUID> pageIds = ranked.subList(from, to);
+        if (pageIds.isEmpty()) {
+            return new PageImpl<>(Collections.emptyList(), pageable, ranked.size());
+        }
 
-                    return ProductHomeResponse.builder()
-                            .product(dto)
-                            .availableStockCount(stockCount)
-                            .build();
-                })
-                .collect(Collectors.toList());
+        Map<UUID, StorefrontProductRow> rowsById = new HashMap<>();
+        for (StorefrontProductRow row : productRepository.findStorefrontByIds(pageIds)) {
+            rowsById.put(row.product().getId(), row);
+        }
+        List<StorefrontProductRow> rows = new ArrayList<>(pageIds.size());
+        for (UUID id : pageIds) {
+            StorefrontProductRow row = rowsById.get(id);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        return new PageImpl<>(rows, pageable, ranked.size());
+    }
 
-        return new PageImpl<>(responses, pageable, page.getTotalElements());
+    /**
+     * Sugerencias de autocompletado para el buscador (prefijos, sin tildes).
+     */
+    public List<ProductSuggestion> suggestProducts(String query, int limit) {
+        return catalogSearchService.suggest(query, Math.max(1, Math.min(limit, 20)));
     }
 
     /**
-     * Igual que el anterior pero filtrando por categoryId; devuelve Page<ProductResponse>.
+     * Igual que el anterior pero filtrando por categoryId.
      */
-    @Transactional(readOnly = true)
     public Page<ProductHomeResponse> listActiveProductsByCategoryWithDetails(Integer categoryId, Pageable pageable) {
-        Page<ProductEntity> page = productRepository.findByActiveTrueAndCategoryId(categoryId, pageable);
-
-        if (page.isEmpty()) {
-            return new PageImpl<>(Collections.emptyList(), pageable, page.getTotalElements());
+        Optional<PopularityService.Window> popular = popularSort(pageable);
+        if (popular.isPresent() && catalogSearchService.isReady()) {
+            return listPopular(null, categoryId, popular.get(), pageable);
         }
+        Pageable effective = popular.isPresent() ? withoutSort(pageable) : pageable;
 
-        // Recolectar ids de providers y products en bloque
-        List<UUID> providerIds = page.stream()
-                .map(ProductEntity::getProviderId)
-                .filter(Objects::nonNull)
-                .distinct()
-                .collect(Collectors.toList());
-
-        List<UUID> productIds = page.stream()
-                .map(ProductEntity::getId)
-                .filter(Objects::nonNull)
-                .distinct()
-                .collect(Collectors.toList());
-
-        // Cargar proveedores en bloque
-        Map<UUID, UserEntity> providersById = providerIds.isEmpty()
-                ? Collections.emptyMap()
-                : userRepository.findAllById(providerIds).stream()
-                .filter(Objects::nonNull)
-                .collect(Collectors.toMap(UserEntity::getId, Function.identity(), (a, b) -> a));
+        return storefrontCacheService.getCategory(categoryId, effective,
+                () -> toStorefrontPage(productRepository.findStorefrontByCategory(categoryId, effective)));
+    }
 
-        // Cargar stocks en bloque y filtrar sólo "disponibles" (same predicate as before)
-        List<StockEntity> stockRows = productIds.isEmpty()
-                ? Collections.emptyList()
-                : stockRepository.findByProductIdIn(productIds).stream()
-                .filter(Objects::nonNull)
-                .filter(s -> {
-                    String status = null;
-                    try { status = s.getStatus(); } catch (Exception ignored) {}
-                    Boolean published = null;
-                    try {
-                        Object p = s.getClass().getMethod("getPublished").invoke(s);
-                        if (p instanceof Boolean) published = (Boolean) p;
-                    } catch (Exception ignored) {}
-                    return ("active".equalsIgnoreCase(status)) || Boolean.TRUE.equals(published);
-                })
-                .collect(Collectors.toList());
+    /**
+     * Listado ordenado por ventas recientes: candidatos (todos, resultado de búsqueda o categoría)
+     * del índice en memoria, reordenados por PopularityService; a la BD solo va la página pedida.
+     * A igual número de ventas se conserva el orden de los candidatos (nombre o relevancia).
+     */
+    private Page<ProductHomeResponse> listPopular(String query, Integer categoryId,
+                                                  PopularityService.Window window, Pageable pageable) {
+        boolean hasQuery = query != null && !query.trim().isEmpty();
+        Supplier<Page<ProductHomeResponse>> loader = () -> {
+            List<UUID> candidates = hasQuery
+                    ? catalogSearchService.search(query)
+                    : catalogSearchService.activeIds(categoryId);
+            return toStorefrontPage(pageOfIds(popularityService.rank(candidates, window), pageable));
+        };
 
-        // Agrupar por productId y contar
-        Map<UUID, Long> stockCountByProduct = stockRows.stream()
-                .collect(Collectors.groupingBy(s -> {
-                    try {
-                        if (s.getProduct() != null && s.getProduct().getId() != null) return s.getProduct().getId();
-                    } catch (Exception ignored) {}
-                    try {
-                        Object pid = s.getClass().getMethod("getProductId").invoke(s);
-                        if (pid instanceof UUID) return (UUID) pid;
-                    } catch (Exception ignored) {}
-                    return null;
-                }, Collectors.counting()))
-                .entrySet().stream()
-                .filter(e -> e.getKey() != null)
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-
-        // Declarar categoryNameForFilter antes del stream para que sea visible dentro del lambda
-        final String categoryNameForFilter;
         if (categoryId != null) {
-            categoryNameForFilter = categoryRepository.findById(categoryId)
-                    .map(CategoryEntity::getName)
-                    .orElse(null);
-        } else {
-            categoryNameForFilter = null;
+            return storefrontCacheService.getCategory(categoryId, pageable, loader);
         }
+        return hasQuery
+                ? storefrontCacheService.getSearch(query, pageable, loader)
+                : storefrontCacheService.getAll(pageable, loader);
+    }
 
-        // Construir responses sin llamadas adicionales al repo dentro del map
-        List<ProductHomeResponse> responses = page.stream()
-                .map(entity -> {
-                    String categoryName = categoryNameForFilter != null
-                            ? categoryNameForFilter
-                            : (entity.getCategoryId() == null ? null : categoryRepository.findById(entity.getCategoryId()).map(CategoryEntity::getName).orElse(null));
+    /**
+     * Más vendidos de la ventana (24h / 7d), resuelto sin consultar la BD.
+     */
+    public List<PopularProduct> popularProducts(String window, int limit) {
+        int max = Math.max(1, Math.min(limit, 50));
+        List<PopularProduct> result = new ArrayList<>();
+        for (Map.Entry<UUID, Long> e : popularityService.top(PopularityService.Window.parse(window))) {
+            // Solo productos activos (los que están en el índice del catálogo)
+            catalogSearchService.describe(e.getKey()).ifPresent(p ->
+                    result.add(new PopularProduct(p.id(), p.name(), p.categoryName(), e.getValue())));
+            if (result.size() >= max) {
+                break;
+            }
+        }
+        return result;
+    }
 
-                    UserEntity provider = entity.getProviderId() == null ? null : providersById.get(entity.getProviderId());
-                    String providerName = resolveProviderDisplayName(provider);
+    private Optional<PopularityService.Window> popularSort(Pageable pageable) {
+        if (pageable.isUnpaged()) {
+            return Optional.empty();
+        }
+        for (Sort.Order order : pageable.getSort()) {
+            String property = order.getProperty().toLowerCase(Locale.ROOT);
+            if (property.startsWith(SORT_POPULAR)) {
+                return Optional.of(PopularityService.Window.parse(property.substring(SORT_POPULAR.length())));
+            }
+        }
+        return Optional.empty();
+    }
 
-                    ProductDto dto = productBuilder.productDtoFromEntity(entity, categoryName, providerName, provider);
+    private Pageable withoutSort(Pageable pageable) {
+        return PageRequest.of(pageable.getPageNumber(), pageable.getPageSize());
+    }
 
-                    ExchangeRate rate = exchangeRateRepository.findFirstByOrderByCreatedAtDesc()
-                            .orElseThrow(() -> new RuntimeException("No se encontraron tasas de cambio"));
+    /**
+     * Motor común de los listados del storefront: las filas ya traen categoría, proveedor y contador
+     * y la tasa sale del historial en memoria, así que por página solo se ejecutan la consulta y su count.
+     */
+    private Page<ProductHomeResponse> toStorefrontPage(Page<StorefrontProductRow> rows) {
+        if (rows.isEmpty()) {
+            return new PageImpl<>(Collections.emptyList(), rows.getPageable(), rows.getTotalElements());
+        }
 
-                    dto.setSalePriceSoles(rate.getRate().multiply(dto.getSalePrice())
-                            .setScale(2, RoundingMode.HALF_UP));
+        // Tasa de cambio UNA SOLA VEZ por página
+        BigDecimal rate = exchangeRateTimeline.currentRate();
 
-                    long stockCount = stockCountByProduct.getOrDefault(entity.getId(), 0L);
+        return rows.map(row -> {
+            ProductEntity entity = row.product();
+            String providerName = resolveProviderDisplayName(
+                    entity.getProviderId(), row.providerUsername(), row.providerPhone());
 
-                    return ProductHomeResponse.builder()
-                            .product(dto)
-                            .availableStockCount(stockCount)
-                            .build();
-                })
-                .collect(Collectors.toList());
+            ProductDto dto = productBuilder.productDto(entity, row.categoryName(), providerName, row.providerStatus());
+            dto.setSalePriceSoles(rate.multiply(dto.getSalePrice()).setScale(2, RoundingMode.HALF_UP));
 
-        return new PageImpl<>(responses, pageable, page.getTotalElements());
+            return ProductHomeResponse.builder()
+                    .product(dto)
+                    .availableStockCount(availableStockCount(entity))
+                    .build();
+        });
+    }
 
+    // Contador mantenido por el trigger de stock; no depende del historial de ventas
+    private long availableStockCount(ProductEntity product) {
+        Integer count = product.getAvailableStockCount();
+        return count == null ? 0L : count;
     }
 
-    private String resolveProviderDisplayName(UserEntity user) {
-        if (user == null) return null;
-        if (safeNonBlank(user.getUsername())) return user.getUsername();
-        if (safeNonBlank(user.getPhone())) return user.getPhone();
-        return String.valueOf(user.getId());
+    private String resolveProviderDisplayName(UUID providerId, String username, String phone) {
+        if (providerId == null) return null;
+        if (safeNonBlank(username)) return username;
+        if (safeNonBlank(phone)) return phone;
+        return String.valueOf(providerId);
     }
 
     private boolean safeNonBlank(String s) {
@@ -515,24 +523,23 @@ public class ProductService {
         }
 
         // 2. Obtener precio y validar saldo
-        BigDecimal publishPrice = settingRepository.findValueNumByKey("supplierPublication")
+        BigDecimal publishPrice = settingService.findNumber("supplierPublication")
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "supplierPublication no configurado"));
 
         UserEntity user = userRepository.findById(callerId)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Usuario no encontrado"));
 
         // Usando el método auxiliar toBigDecimal que ya tienes en tu clase
-        BigDecimal balance = toBigDecimal(user.getBalance());
+        // Saldo disponible real: incluye las franjas no consolidadas de las cuentas calientes
+        BigDecimal balance = toBigDecimal(balanceLedger.balanceOf(user));
         BigDecimal price = toBigDecimal(publishPrice);
 
         if (balance.compareTo(price) < 0) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente para renovar el producto");
         }
 
-        // 3. Descontar saldo y registrar transacción
-        BigDecimal newBalance = balance.subtract(price).setScale(2, RoundingMode.HALF_UP);
-        user.setBalance(newBalance);
-        userRepository.save(user);
+        // 3. Descontar saldo (débito atómico y condicional) y registrar transacción
+        balanceLedger.debit(user, price.setScale(2, RoundingMode.HALF_UP));
 
         WalletTransaction tx = WalletTransaction.builder()
                 .user(user)
@@ -573,6 +580,8 @@ public class ProductService {
 
         // 5. Persistencia del producto actualizado
         ProductEntity updatedProduct = productRepository.save(product);
+        catalogSearchService.reindex(updatedProduct.getId());
+        storefrontCacheService.invalidateCategory(updatedProduct.getCategoryId());
 
         // 6. TRANSFORMACIÓN A PRODUCTRESPONSE (Igual que en los otros métodos)
 
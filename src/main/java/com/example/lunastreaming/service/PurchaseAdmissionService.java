@@ -0,0 +1,170 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.util.LunaException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Carriles de admisión por producto para las compras.
+ * Cada producto tiene una cola justa (FIFO) con una concurrencia de 1..k compras simultáneas.
+ * La espera ocurre ANTES de abrir la transacción, así que los hilos en cola no retienen conexiones
+ * del pool; si la cola está llena o se agota la espera se responde 429 con Retry-After.
+ * max-queue cuenta solo las compras que esperan permiso, no las que están en curso.
+ * Un carril existe mientras alguna compra lo usa: el último en salir lo retira del mapa, así que solo
+ * hay carriles para los productos con compras en curso (los totales históricos son globales).
+ */
+@Service
+public class PurchaseAdmissionService {
+
+    private final boolean enabled;
+    private final int concurrency;
+    private final int maxQueue;
+    private final long maxWaitMs;
+    private final long retryAfterSeconds;
+
+    private final Map<UUID, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicLong totalAdmitted = new AtomicLong();
+    private final AtomicLong totalRejected = new AtomicLong();
+
+    public PurchaseAdmissionService(
+            @Value("${app.purchase.admission.enabled:true}") boolean enabled,
+            @Value("${app.purchase.admission.concurrency:4}") int concurrency,
+            @Value("${app.purchase.admission.max-queue:50}") int maxQueue,
+            @Value("${app.purchase.admission.max-wait-ms:2000}") long maxWaitMs,
+            @Value("${app.purchase.admission.retry-after-seconds:2}") long retryAfterSeconds) {
+        this.enabled = enabled;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.maxWaitMs = Math.max(0, maxWaitMs);
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+    }
+
+    /**
+     * Ejecuta la acción dentro del carril del producto o falla rápido con 429.
+     */
+    public <T> T admit(UUID productId, Supplier<T> action) {
+        if (!enabled || productId == null) {
+            return action.get();
+        }
+
+        Lane lane = enter(productId);
+        try {
+            long start = System.nanoTime();
+            if (!acquire(lane)) {
+                lane.rejected.incrementAndGet();
+                totalRejected.incrementAndGet();
+                throw tooMany();
+            }
+
+            lane.recordWait(System.nanoTime() - start);
+            totalAdmitted.incrementAndGet();
+            try {
+                return action.get();
+            } finally {
+                lane.permits.release();
+            }
+        } finally {
+            leave(productId);
+        }
+    }
+
+    // Permiso libre: se toma sin encolarse. Si no, espera en la cola justa salvo que ya esté llena
+    private boolean acquire(Lane lane) {
+        try {
+            // tryAcquire con tiempo (aunque sea 0) respeta el orden FIFO del semáforo justo
+            if (lane.permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            if (lane.queued.incrementAndGet() > maxQueue) {
+                lane.queued.decrementAndGet();
+                return false;
+            }
+            try {
+                return lane.permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+            } finally {
+                lane.queued.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Alta y baja de usuarios del carril bajo el bloqueo del mapa: nadie entra a un carril ya retirado
+    private Lane enter(UUID productId) {
+        return lanes.compute(productId, (id, lane) -> {
+            Lane l = lane != null ? lane : new Lane(concurrency);
+            l.users++;
+            return l;
+        });
+    }
+
+    private void leave(UUID productId) {
+        lanes.computeIfPresent(productId, (id, lane) -> --lane.users == 0 ? null : lane);
+    }
+
+    /**
+     * Métricas por producto: profundidad de cola actual, compras en curso, admitidas, rechazadas y espera.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> perProduct = new LinkedHashMap<>();
+        lanes.forEach((productId, lane) -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            long admitted = lane.admitted.get();
+            m.put("queueDepth", lane.queued.get());
+            m.put("inFlight", concurrency - lane.permits.availablePermits());
+            m.put("admitted", admitted);
+            m.put("rejected", lane.rejected.get());
+            m.put("avgWaitMs", admitted == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(lane.totalWaitNanos.get() / admitted));
+            m.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(lane.maxWaitNanos.get()));
+            perProduct.put(productId.toString(), m);
+        });
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("concurrency", concurrency);
+        result.put("maxQueue", maxQueue);
+        result.put("maxWaitMs", maxWaitMs);
+        result.put("admitted", totalAdmitted.get());
+        result.put("rejected", totalRejected.get());
+        result.put("products", perProduct);
+        return result;
+    }
+
+    private LunaException.TooManyRequestsException tooMany() {
+        return new LunaException.TooManyRequestsException(
+                "Demasiadas compras simultáneas para este producto, intenta nuevamente", retryAfterSeconds);
+    }
+
+    private static final class Lane {
+        final Semaphore permits;
+        // Compras esperando permiso (sin contar las que están en curso)
+        final AtomicInteger queued = new AtomicInteger();
+        // Compras dentro de admit (esperando o en curso); solo se modifica dentro de compute del mapa
+        int users;
+        final AtomicLong admitted = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong totalWaitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        Lane(int concurrency) {
+            this.permits = new Semaphore(concurrency, true);
+        }
+
+        void recordWait(long nanos) {
+            admitted.incrementAndGet();
+            totalWaitNanos.addAndGet(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.PurchaseTokenResponse;
+import com.example.lunastreaming.model.UserEntity;
+import com.example.lunastreaming.repository.UserRepository;
+import com.example.lunastreaming.util.TransactionCallbacks;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tokens de autorización de compra de vida corta.
+ * La contraseña se verifica con Argon2 una sola vez al emitir el token; compras y renovaciones
+ * presentan el token, que se valida en memoria sin hash costoso y nunca dentro de un bloqueo de fila.
+ * Solo se guarda el SHA-256 del token, de modo que la búsqueda no depende del contenido del secreto.
+ */
+@Service
+public class PurchaseAuthorizationService {
+
+    private static final int PURGE_THRESHOLD = 1000;
+
+    private final UserRepository userRepository;
+    private final PasswordEncoder passwordEncoder;
+    private final long ttlSeconds;
+    private final int maxUses;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Grant> grants = new ConcurrentHashMap<>();
+
+    public PurchaseAuthorizationService(UserRepository userRepository,
+                                        PasswordEncoder passwordEncoder,
+                                        @Value("${app.purchase.token.ttl-seconds:120}") long ttlSeconds,
+                                        @Value("${app.purchase.token.max-uses:1}") int maxUses) {
+        this.userRepository = userRepository;
+        this.passwordEncoder = passwordEncoder;
+        this.ttlSeconds = Math.max(1, ttlSeconds);
+        this.maxUses = Math.max(1, maxUses);
+    }
+
+    /**
+     * Verifica la contraseña del usuario y emite un token de compra.
+     */
+    public PurchaseTokenResponse issue(UUID userId, String password) {
+        UserEntity user = userRepository.findById(userId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Usuario no encontrado"));
+
+        if (!"active".equalsIgnoreCase(user.getStatus())) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "La cuenta del usuario no está activa");
+        }
+
+        if (password == null || !passwordEncoder.matches(password, user.getPasswordHash())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "La contraseña ingresada es incorrecta");
+        }
+
+        if (grants.size() > PURGE_THRESHOLD) {
+            Instant now = Instant.now();
+            grants.values().removeIf(g -> g.expiresAt.isBefore(now));
+        }
+
+        byte[] raw = new byte[32];
+        random.nextBytes(raw);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        Instant expiresAt = Instant.now().plusSeconds(ttlSeconds);
+
+        grants.put(digest(token), new Grant(userId, expiresAt, new AtomicInteger(maxUses)));
+
+        return PurchaseTokenResponse.builder()
+                .token(token)
+                .expiresAt(expiresAt)
+                .maxUses(maxUses)
+                .build();
+    }
+
+    /**
+     * Consume un uso del token si pertenece al usuario y sigue vigente.
+     * El uso se descuenta en el acto (dos compras simultáneas no pueden gastar el mismo) y se devuelve
+     * si la transacción de la compra se revierte, para que el cliente pueda reintentar con el mismo token.
+     */
+    public boolean consume(UUID userId, String token) {
+        if (token == null || token.isBlank()) {
+            return false;
+        }
+
+        String key = digest(token);
+        Grant grant = grants.get(key);
+        if (grant == null) {
+            return false;
+        }
+
+        if (grant.expiresAt.isBefore(Instant.now())) {
+            grants.remove(key, grant);
+            return false;
+        }
+
+        if (!grant.userId.equals(userId)) {
+            return false;
+        }
+
+        int left;
+        do {
+            left = grant.remaining.get();
+            if (left <= 0) {
+                return false;
+            }
+        } while (!grant.remaining.compareAndSet(left, left - 1));
+        if (left == 1) {
+            grants.remove(key, grant);
+        }
+        TransactionCallbacks.afterRollback(() -> restore(key, grant));
+        return true;
+    }
+
+    private void restore(String key, Grant grant) {
+        grant.remaining.incrementAndGet();
+        if (grant.expiresAt.isAfter(Instant.now())) {
+            grants.putIfAbsent(key, grant);
+        }
+    }
+
+    private static String digest(String token) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    private record Grant(UUID userId, Instant expiresAt, AtomicInteger remaining) {
+    }
+}
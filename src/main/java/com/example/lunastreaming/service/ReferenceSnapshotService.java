@@ -0,0 +1,202 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.util.TransactionCallbacks;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.*;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Instantáneas precalculadas de los endpoints públicos de referencia (categorías, tasa de cambio,
+ * métodos de pago activos). Cada una guarda el JSON ya serializado y su versión gzip, con un ETag
+ * fuerte derivado del contenido; un If-None-Match que coincide se responde con 304 sin tocar la BD.
+ * Solo se reconstruyen cuando el servicio dueño de los datos escribe (tras el commit) y se pide de nuevo.
+ */
+@Service
+public class ReferenceSnapshotService {
+
+    public static final String CATEGORIES = "categories";
+    public static final String EXCHANGE_RATE = "exchange-rate";
+    public static final String ACTIVE_PAYMENT_METHODS = "active-payment-methods";
+
+    private record Snapshot(byte[] json, byte[] gzip, String etag, String gzipEtag) {}
+
+    private final ObjectProvider<RequestMappingHandlerAdapter> handlerAdapter;
+    private final CacheControl cacheControl;
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    public ReferenceSnapshotService(ObjectProvider<RequestMappingHandlerAdapter> handlerAdapter,
+                                    @Value("${app.snapshots.max-age-seconds:30}") long maxAgeSeconds) {
+        this.handlerAdapter = handlerAdapter;
+        this.cacheControl = CacheControl.maxAge(Duration.ofSeconds(Math.max(0, maxAgeSeconds))).cachePublic();
+    }
+
+    /**
+     * Responde con la instantánea (construyéndola con loader si no existe), 304 si el cliente ya la tiene
+     * y gzip si el cliente lo acepta.
+     */
+    public ResponseEntity<byte[]> respond(String name, Supplier<?> loader, String ifNoneMatch, String acceptEncoding) {
+        Snapshot snapshot = snapshots.computeIfAbsent(name, n -> build(loader.get()));
+        boolean gzip = acceptsGzip(acceptEncoding);
+        String etag = gzip ? snapshot.gzipEtag() : snapshot.etag();
+
+        if (matches(ifNoneMatch, snapshot)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .cacheControl(cacheControl)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .eTag(etag)
+                .cacheControl(cacheControl)
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(snapshot.gzip());
+        }
+        return response.body(snapshot.json());
+    }
+
+    /**
+     * Como respond, pero el cuerpo de un 200 se arma en cada petición con live: la instantánea más campos que
+     * cambian a menudo (contadores). El ETag es débil y sale solo de la instantánea, así que esos campos no lo
+     * cambian y un cliente con la versión vigente sigue recibiendo 304 sin tocar la BD.
+     */
+    public ResponseEntity<byte[]> respondWithLiveFields(String name, Supplier<?> loader, Supplier<?> live,
+                                                        String ifNoneMatch, String acceptEncoding) {
+        Snapshot snapshot = snapshots.computeIfAbsent(name, n -> build(loader.get()));
+        String etag = "W/" + snapshot.etag();
+
+        if (matches(ifNoneMatch, snapshot)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .cacheControl(cacheControl)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+
+        byte[] json = toJson(live.get());
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .eTag(etag)
+                .cacheControl(cacheControl)
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptsGzip(acceptEncoding)) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(gzip(json));
+        }
+        return response.body(json);
+    }
+
+    // Descarta la instantánea tras el commit; la siguiente petición la reconstruye con los datos nuevos
+    public void invalidate(String name) {
+        TransactionCallbacks.afterCommit(() -> snapshots.remove(name));
+    }
+
+    private Snapshot build(Object value) {
+        byte[] json = toJson(value);
+        String hash = sha256(json);
+        return new Snapshot(json, gzip(json), "\"" + hash + "\"", "\"" + hash + "-gzip\"");
+    }
+
+    // Serializa con los mismos conversores que usa Spring MVC, para que el JSON sea idéntico al de siempre
+    @SuppressWarnings("unchecked")
+    private byte[] toJson(Object value) {
+        for (HttpMessageConverter<?> converter : handlerAdapter.getObject().getMessageConverters()) {
+            if (converter.canWrite(value.getClass(), MediaType.APPLICATION_JSON)) {
+                BufferedOutputMessage out = new BufferedOutputMessage();
+                try {
+                    ((HttpMessageConverter<Object>) converter).write(value, MediaType.APPLICATION_JSON, out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return out.body.toByteArray();
+            }
+        }
+        throw new IllegalStateException("No hay conversor JSON para " + value.getClass().getName());
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.split(",")) {
+            String[] pieces = part.trim().split(";");
+            if ("gzip".equalsIgnoreCase(pieces[0].trim())) {
+                return pieces.length < 2 || !pieces[1].replace(" ", "").equalsIgnoreCase("q=0");
+            }
+        }
+        return false;
+    }
+
+    // If-None-Match usa comparación débil: se ignora el prefijo W/ y vale cualquiera de las dos representaciones
+    private static boolean matches(String ifNoneMatch, Snapshot snapshot) {
+        if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String t = tag.trim();
+            if (t.equals("*")) {
+                return true;
+            }
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+            if (t.equals(snapshot.etag()) || t.equals(snapshot.gzipEtag())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class BufferedOutputMessage implements HttpOutputMessage {
+        private final HttpHeaders headers = new HttpHeaders();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    }
+}
@@ -29,6 +29,7 @@ public class RefundService {
     private final UserRepository userRepository;
     private final WalletTransactionRepository walletTransactionRepository;
     private final SupportTicketRepository supportTicketRepository;
+    private final BalanceLedger balanceLedger;
 
     /**
      * Realiza reembolso para un stock. Solo admin puede ejecutar.
@@ -146,18 +147,11 @@ public class RefundService {
         WalletTransaction savedCredit = walletTransactionRepository.save(txCredit);
         WalletTransaction savedDebit = walletTransactionRepository.save(txDebit);
 
-        // 8) actualizar balances con locking
-        UserEntity buyerLocked = userRepository.findByIdForUpdate(buyer.getId())
-                .orElseThrow(() -> new IllegalStateException("buyer_not_found_for_update"));
-        BigDecimal newBuyerBalance = safeAdd(buyerLocked.getBalance(), refund);
-        buyerLocked.setBalance(newBuyerBalance.setScale(2, RoundingMode.HALF_UP));
-        userRepository.save(buyerLocked);
-
-        UserEntity providerLocked = userRepository.findByIdForUpdate(provider.getId())
-                .orElseThrow(() -> new IllegalStateException("provider_not_found_for_update"));
-        BigDecimal newProviderBalance = safeSubtract(providerLocked.getBalance(), refund);
-        providerLocked.setBalance(newProviderBalance.setScale(2, RoundingMode.HALF_UP));
-        userRepository.save(providerLocked);
+        // 8) actualizar balances con el ledger atómico (orden de id: sin deadlocks con compras)
+        BigDecimal amount = refund.setScale(2, RoundingMode.HALF_UP);
+        Map<UUID, BigDecimal> balances = balanceLedger.apply(
+                BalanceLedger.Movement.credit(buyer.getId(), amount),
+                BalanceLedger.Movement.forcedDebit(provider.getId(), amount));
 
         // 9) devolver resumen
         Map<String, Object> resp = new HashMap<>();
@@ -166,22 +160,11 @@ public class RefundService {
         resp.put("creditTxId", savedCredit.getId());
         resp.put("debitTxId", savedDebit.getId());
         resp.put("status", stock.getStatus());
-        resp.put("buyerNewBalance", buyerLocked.getBalance());
-        resp.put("providerNewBalance", providerLocked.getBalance());
+        resp.put("buyerNewBalance", balances.get(buyer.getId()));
+        resp.put("providerNewBalance", balances.get(provider.getId()));
         return resp;
     }
 
-    private BigDecimal safeAdd(BigDecimal a, BigDecimal b) {
-        if (a == null) a = BigDecimal.ZERO;
-        if (b == null) b = BigDecimal.ZERO;
-        return a.add(b);
-    }
-
-    private BigDecimal safeSubtract(BigDecimal a, BigDecimal b) {
-        if (a == null) a = BigDecimal.ZERO;
-        if (b == null) b = BigDecimal.ZERO;
-        return a.subtract(b);
-    }
     private void validateActorIsAdmin(String actorPrincipalName) {
         if (actorPrincipalName == null) {
             throw new SecurityException("forbidden");
@@ -343,20 +326,11 @@ public class RefundService {
         WalletTransaction savedCredit = walletTransactionRepository.save(txCredit);
         WalletTransaction savedDebit = walletTransactionRepository.save(txDebit);
 
-        // 8) actualizar balances con locking (findByIdForUpdate)
-        UserEntity buyerLocked = userRepository.findByIdForUpdate(buyer.getId())
-                .orElseThrow(() -> new IllegalStateException("buyer_not_found_for_update"));
-        BigDecimal newBuyerBalance = safeAdd(buyerLocked.getBalance(), refund);
-        buyerLocked.setBalance(newBuyerBalance.setScale(2, RoundingMode.HALF_UP));
-        userRepository.save(buyerLocked);
-
-        UserEntity providerLocked = userRepository.findByIdForUpdate(provider.getId())
-                .orElseThrow(() -> new IllegalStateException("provider_not_found_for_update"));
-        BigDecimal newProviderBalance = safeSubtract(providerLocked.getBalance(), refund);
-        // valida saldo negativo si tu negocio lo requiere
-        // if (newProviderBalance.compareTo(BigDecimal.ZERO) < 0) throw new IllegalStateException("provider_insufficient_balance");
-        providerLocked.setBalance(newProviderBalance.setScale(2, RoundingMode.HALF_UP));
-        userRepository.save(providerLocked);
+        // 8) actualizar balances con el ledger atómico (orden de id: sin deadlocks con compras)
+        BigDecimal amount = refund.setScale(2, RoundingMode.HALF_UP);
+        Map<UUID, BigDecimal> balances = balanceLedger.apply(
+                BalanceLedger.Movement.credit(buyer.getId(), amount),
+                BalanceLedger.Movement.forcedDebit(provider.getId(), amount));
 
         // 9) devolver resumen (mismo formato que el endpoint parcial)
         Map<String, Object> resp = new HashMap<>();
@@ -365,8 +339,8 @@ public class RefundService {
         resp.put("creditTxId", savedCredit.getId());
         resp.put("debitTxId", savedDebit.getId());
         resp.put("status", stock.getStatus());
-        resp.put("buyerNewBalance", buyerLocked.getBalance());
-        resp.put("providerNewBalance", providerLocked.getBalance());
+        resp.put("buyerNewBalance", balances.get(buyer.getId()));
+        resp.put("providerNewBalance", balances.get(provider.getId()));
         return resp;
     }
 
@@ -479,16 +453,11 @@ public class RefundService {
         WalletTransaction savedCredit = walletTransactionRepository.save(txCredit);
         WalletTransaction savedDebit = walletTransactionRepository.save(txDebit);
 
-        // 8) actualizar balances con locking
-        UserEntity buyerLocked = userRepository.findByIdForUpdate(buyer.getId())
-                .orElseThrow(() -> new IllegalStateException("buyer_not_found_for_update"));
-        buyerLocked.setBalance(safeAdd(buyerLocked.getBalance(), refund).setScale(2, RoundingMode.HALF_UP));
-        userRepository.save(buyerLocked);
-
-        UserEntity providerLocked = userRepository.findByIdForUpdate(provider.getId())
-                .orElseThrow(() -> new IllegalStateException("provider_not_found_for_update"));
-        providerLocked.setBalance(safeSubtract(providerLocked.getBalance(), refund).setScale(2, RoundingMode.HALF_UP));
-        userRepository.save(providerLocked);
+        // 8) actualizar balances con el ledger atómico (orden de id: sin deadlocks con compras)
+        BigDecimal amount = refund.setScale(2, RoundingMode.HALF_UP);
+        Map<UUID, BigDecimal> balances = balanceLedger.apply(
+                BalanceLedger.Movement.credit(buyer.getId(), amount),
+                BalanceLedger.Movement.forcedDebit(provider.getId(), amount));
 
         // 9) devolver resumen
         Map<String, Object> resp = new HashMap<>();
@@ -497,8 +466,8 @@ public class RefundService {
         resp.put("creditTxId", savedCredit.getId());
         resp.put("debitTxId", savedDebit.getId());
         resp.put("status", stock.getStatus());
-        resp.put("buyerNewBalance", buyerLocked.getBalance());
-        resp.put("providerNewBalance", providerLocked.getBalance());
+        resp.put("buyerNewBalance", balances.get(buyer.getId()));
+        resp.put("providerNewBalance", balances.get(provider.getId()));
         return resp;
     }
 
@@ -595,20 +564,11 @@ public class RefundService {
         WalletTransaction savedCredit = walletTransactionRepository.save(txCredit);
         WalletTransaction savedDebit = walletTransactionRepository.save(txDebit);
 
-        // 8) actualizar balances con locking
-        UserEntity buyerLocked = userRepository.findByIdForUpdate(buyer.getId())
-                .orElseThrow(() -> new IllegalStateException("buyer_not_found_for_update"));
-        BigDecimal newBuyerBalance = safeAdd(buyerLocked.getBalance(), refund);
-        buyerLocked.setBalance(newBuyerBalance.setScale(2, RoundingMode.HALF_UP));
-        userRepository.save(buyerLocked);
-
-        UserEntity providerLocked = userRepository.findByIdForUpdate(provider.getId())
-                .orElseThrow(() -> new IllegalStateException("provider_not_found_for_update"));
-        BigDecimal newProviderBalance = safeSubtract(providerLocked.getBalance(), refund);
-        // valida saldo negativo si tu negocio lo requiere
-        // if (newProviderBalance.compareTo(BigDecimal.ZERO) < 0) throw new IllegalStateException("provider_insufficient_balance");
-        providerLocked.setBalance(newProviderBalance.setScale(2, RoundingMode.HALF_UP));
-        userRepository.save(providerLocked);
+        // 8) actualizar balances con el ledger atómico (orden de id: sin deadlocks con compras)
+        BigDecimal amount = refund.setScale(2, RoundingMode.HALF_UP);
+        Map<UUID, BigDecimal> balances = balanceLedger.apply(
+                BalanceLedger.Movement.credit(buyer.getId(), amount),
+                BalanceLedger.Movement.forcedDebit(provider.getId(), amount));
 
         // 9) devolver resumen
         Map<String, Object> resp = new HashMap<>();
@@ -617,8 +577,8 @@ public class RefundService {
         resp.put("creditTxId", savedCredit.getId());
         resp.put("debitTxId", savedDebit.getId());
         resp.put("status", stock.getStatus());
-        resp.put("buyerNewBalance", buyerLocked.getBalance());
-        resp.put("providerNewBalance", providerLocked.getBalance());
+        resp.put("buyerNewBalance", balances.get(buyer.getId()));
+        resp.put("providerNewBalance", balances.get(provider.getId()));
         return resp;
     }
 
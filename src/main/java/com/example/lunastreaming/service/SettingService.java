@@ -5,6 +5,7 @@ import com.example.lunastreaming.model.SettingEntity;
 import com.example.lunastreaming.model.SettingRequest;
 import com.example.lunastreaming.model.SettingResponse;
 import com.example.lunastreaming.repository.SettingRepository;
+import com.example.lunastreaming.util.TransactionCallbacks;
 import jakarta.persistence.EntityNotFoundException;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
@@ -12,35 +13,55 @@ import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
 
+/**
+ * Registro de configuraciones. Todas se cargan en una instantánea inmutable (por clave en minúsculas)
+ * que se reemplaza entera al escribir, así que las lecturas de los servicios no consultan la BD.
+ * La instantánea se recarga periódicamente (SettingsRefreshScheduler) por si otra instancia escribió.
+ */
 @Service
 @RequiredArgsConstructor
 public class SettingService {
 
-    // simple cache in-memory (optional)
-    private final Map<String, SettingEntity> cache = new ConcurrentHashMap<>();
+    private record Snapshot(Map<String, SettingResponse> byKey, List<SettingResponse> all) {
 
+        static Snapshot of(Collection<SettingResponse> settings) {
+            Map<String, SettingResponse> byKey = new LinkedHashMap<>();
+            for (SettingResponse s : settings) {
+                byKey.put(s.getKey().toLowerCase(Locale.ROOT), s);
+            }
+            return new Snapshot(Collections.unmodifiableMap(byKey), List.copyOf(byKey.values()));
+        }
+    }
 
     private final SettingRepository settingRepository;
     private final SettingBuilder settingBuilder;
 
+    // null hasta la primera carga
+    private volatile Snapshot snapshot;
+
+    /**
+     * Valor numérico de la configuración, sin importar su tipo declarado.
+     */
+    public Optional<BigDecimal> findNumber(String key) {
+        return find(key).map(SettingResponse::getValueNum);
+    }
+
     public BigDecimal getNumber(String key, BigDecimal fallback) {
-        SettingEntity s = getCached(key);
+        SettingResponse s = find(key).orElse(null);
         if (s == null) return fallback;
         if (!"number".equalsIgnoreCase(s.getType()) || s.getValueNum() == null) return fallback;
         return s.getValueNum();
     }
 
-    public SettingEntity getSetting(String key) {
-        return getCached(key);
+    public boolean getBoolean(String key, boolean fallback) {
+        return find(key).map(SettingResponse::getValueBool).orElse(fallback);
     }
 
+    private Optional<SettingResponse> find(String key) {
+        return Optional.ofNullable(current().byKey().get(key.toLowerCase(Locale.ROOT)));
+    }
 
     @Transactional
     public SettingResponse updateSetting(String key, SettingRequest request, UUID adminId) {
@@ -66,24 +87,16 @@ public class SettingService {
         // Opcional: buscar el admin y asignarlo a s.setUpdatedBy(...)
 
         SettingEntity saved = settingRepository.save(s);
-        cache.put(key.toLowerCase(Locale.ROOT), saved);
+        SettingResponse response = settingBuilder.toSettingResponse(saved);
 
-        return settingBuilder.toSettingResponse(saved);
-    }
+        // Nueva instantánea con el valor escrito, visible solo tras el commit
+        TransactionCallbacks.afterCommit(() -> replace(response));
 
-    private SettingEntity getCached(String key) {
-        String k = key.toLowerCase(Locale.ROOT);
-        SettingEntity s = cache.get(k);
-        if (s != null && s.getUpdatedAt() != null && s.getUpdatedAt().isAfter(Instant.now().minus(5, ChronoUnit.MINUTES))) {
-            return s;
-        }
-        return settingRepository.findByKeyIgnoreCase(key).map(it -> { cache.put(k, it); return it; }).orElse(null);
+        return response;
     }
 
     public List<SettingResponse> getSettings() {
-        return settingRepository.findAll()
-                .stream().map(settingBuilder::toSettingResponse)
-                .toList();
+        return current().all();
     }
 
     public void saveSetting() {
@@ -92,6 +105,7 @@ public class SettingService {
         saveOrUpdate("supplierWithdrawalDiscount", "number", new BigDecimal("0.20"), "Descuento por proveedor para retiros");
         saveOrUpdate("supplierPublication", "number", new BigDecimal("15"), "Costo por publicación para proveedores");
 
+        refresh();
     }
 
     private void saveOrUpdate(String key, String type, BigDecimal value, String description) {
@@ -107,4 +121,32 @@ public class SettingService {
 
         settingRepository.save(setting);
     }
+
+    /**
+     * Recarga todas las configuraciones desde la BD.
+     */
+    public synchronized void refresh() {
+        snapshot = Snapshot.of(settingRepository.findAll().stream()
+                .map(settingBuilder::toSettingResponse)
+                .toList());
+    }
+
+    private synchronized void replace(SettingResponse updated) {
+        Map<String, SettingResponse> copy = new LinkedHashMap<>(current().byKey());
+        copy.put(updated.getKey().toLowerCase(Locale.ROOT), updated);
+        snapshot = Snapshot.of(copy.values());
+    }
+
+    private Snapshot current() {
+        Snapshot s = snapshot;
+        if (s == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    refresh();
+                }
+                s = snapshot;
+            }
+        }
+        return s;
+    }
 }
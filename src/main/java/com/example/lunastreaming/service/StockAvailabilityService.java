@@ -0,0 +1,150 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.repository.ProductRepository;
+import com.example.lunastreaming.repository.StockRepository;
+import com.example.lunastreaming.util.TransactionCallbacks;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caché negativa de productos agotados.
+ * Cuando una compra confirma, con una consulta sin SKIP LOCKED, que no queda stock activo, el producto se
+ * marca agotado y las siguientes compras se rechazan antes de abrir transacción, bloquear al comprador o
+ * ejecutar Argon2. Un reclamo SKIP LOCKED vacío por sí solo no marca nada (las filas pueden estar bloqueadas
+ * por compras que luego se revierten).
+ * Cualquier alta o reactivación de stock quita la marca; además caduca sola (TTL) y se reconcilia
+ * periódicamente contra la base.
+ */
+@Service
+@Slf4j
+public class StockAvailabilityService {
+
+    private final StockRepository stockRepository;
+    private final ProductRepository productRepository;
+    private final StorefrontCacheService storefrontCacheService;
+    private final long soldOutTtlMs;
+
+    // productId -> instante (epoch ms) hasta el que se considera agotado
+    private final Map<UUID, Long> soldOutUntil = new ConcurrentHashMap<>();
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong counterMerges = new AtomicLong();
+
+    public StockAvailabilityService(StockRepository stockRepository,
+                                    ProductRepository productRepository,
+                                    StorefrontCacheService storefrontCacheService,
+                                    @Value("${app.stock.availability.sold-out-ttl-seconds:30}") long soldOutTtlSeconds) {
+        this.stockRepository = stockRepository;
+        this.productRepository = productRepository;
+        this.storefrontCacheService = storefrontCacheService;
+        this.soldOutTtlMs = Math.max(1, soldOutTtlSeconds) * 1000L;
+    }
+
+    /**
+     * Rechaza con 404 (mismo mensaje que la compra) si el producto está marcado como agotado.
+     */
+    public void ensureAvailable(UUID productId) {
+        checks.incrementAndGet();
+        Long until = soldOutUntil.get(productId);
+        if (until == null) {
+            return;
+        }
+        if (until < System.currentTimeMillis()) {
+            soldOutUntil.remove(productId, until);
+            return;
+        }
+        hits.incrementAndGet();
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Ya no hay stock disponible para este producto");
+    }
+
+    // Los cambios de disponibilidad también invalidan las páginas del storefront que muestran el producto
+    public void markSoldOut(UUID productId) {
+        if (productId != null) {
+            soldOutUntil.put(productId, System.currentTimeMillis() + soldOutTtlMs);
+            storefrontCacheService.invalidateProduct(productId);
+        }
+    }
+
+    // Alta, reactivación o liberación de stock: el producto vuelve a estar disponible.
+    // La marca se quita al confirmar la transacción; si se revierte, el stock nunca existió y la marca sigue.
+    public void markAvailable(UUID productId) {
+        if (productId != null) {
+            TransactionCallbacks.afterCommit(() -> soldOutUntil.remove(productId));
+            storefrontCacheService.invalidateProduct(productId);
+        }
+    }
+
+    public void markAvailable(Collection<UUID> productIds) {
+        if (productIds == null || productIds.isEmpty()) {
+            return;
+        }
+        Set<UUID> ids = new HashSet<>(productIds);
+        TransactionCallbacks.afterCommit(() -> ids.forEach(soldOutUntil::remove));
+        storefrontCacheService.invalidateProducts(ids);
+    }
+
+    public void clear() {
+        soldOutUntil.clear();
+        storefrontCacheService.invalidateAll();
+    }
+
+    /**
+     * Revalida los productos marcados como agotados contra el conteo real de stock activo.
+     */
+    public void reconcile() {
+        long now = System.currentTimeMillis();
+        soldOutUntil.entrySet().removeIf(e -> e.getValue() < now);
+        if (soldOutUntil.isEmpty()) {
+            return;
+        }
+
+        Set<UUID> ids = new HashSet<>(soldOutUntil.keySet());
+        int restored = 0;
+        for (Object[] row : stockRepository.countByProductIdsAndStatus(ids, "active")) {
+            UUID productId = (UUID) row[0];
+            long count = ((Number) row[1]).longValue();
+            if (count > 0 && soldOutUntil.remove(productId) != null) {
+                storefrontCacheService.invalidateProduct(productId);
+                restored++;
+            }
+        }
+        if (restored > 0) {
+            log.info("Productos con stock activo retirados de la caché de agotados: {}", restored);
+        }
+    }
+
+    /**
+     * Consolida en products.available_stock_count los cambios que el trigger de stock anotó en franjas
+     * y refresca las páginas del storefront de los productos afectados.
+     */
+    @Transactional
+    public int mergeAvailableCounts() {
+        List<UUID> changed = productRepository.mergeAvailableStockDeltas();
+        if (!changed.isEmpty()) {
+            counterMerges.addAndGet(changed.size());
+            storefrontCacheService.invalidateProducts(changed);
+        }
+        return changed.size();
+    }
+
+    public Map<String, Object> getMetrics() {
+        long c = checks.get();
+        long h = hits.get();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("soldOutProducts", soldOutUntil.size());
+        m.put("checks", c);
+        m.put("hits", h);
+        m.put("hitRate", c == 0 ? 0.0 : (double) h / c);
+        m.put("counterMerges", counterMerges.get());
+        return m;
+    }
+}
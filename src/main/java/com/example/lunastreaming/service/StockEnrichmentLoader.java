@@ -0,0 +1,174 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.builder.StockBuilder;
+import com.example.lunastreaming.model.*;
+import com.example.lunastreaming.repository.StockRepository;
+import com.example.lunastreaming.repository.SupportTicketRepository;
+import com.example.lunastreaming.repository.UserRepository;
+import com.example.lunastreaming.repository.WalletTransactionRepository;
+import com.example.lunastreaming.util.FieldSet;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Enriquecimiento en bloque de una página de stocks ya cargada: proveedores, último ticket resuelto
+ * y totales de renovación se traen con una consulta por página (nunca una por fila).
+ * Lo comparten los listados de compras, reembolsos, vendidos, renovados y tickets de soporte.
+ */
+@Service
+@RequiredArgsConstructor
+public class StockEnrichmentLoader {
+
+    public static final String[] PROVIDER_FIELDS = {"providerName", "providerPhone"};
+    public static final String[] SUPPORT_FIELDS = {"supportId", "supportType", "supportStatus", "supportCreatedAt",
+            "supportUpdatedAt", "supportResolvedAt", "supportResolutionNote"};
+
+    // Suma de |amount| y número de transacciones de renovación de un stock
+    public record RenewalTotals(BigDecimal amount, long count) {
+        public static final RenewalTotals NONE = new RenewalTotals(BigDecimal.ZERO, 0);
+    }
+
+    private final StockRepository stockRepository;
+    private final UserRepository userRepository;
+    private final SupportTicketRepository supportTicketRepository;
+    private final WalletTransactionRepository walletTransactionRepository;
+    private final StockBuilder stockBuilder;
+
+    /**
+     * Mapea la página a StockResponse con el proveedor de cada producto.
+     */
+    public List<StockResponse> withProviders(List<StockEntity> stocks, FieldSet fields) {
+        Map<UUID, UserEntity> providers = fields.includesAny(PROVIDER_FIELDS) ? providers(stocks) : Map.of();
+        List<StockResponse> result = new ArrayList<>(stocks.size());
+        for (StockEntity stock : stocks) {
+            StockResponse dto = stockBuilder.toStockResponse(stock, fields);
+            applyProvider(dto, providerOf(providers, stock));
+            result.add(dto);
+        }
+        return result;
+    }
+
+    /**
+     * Igual que withProviders y además con el último ticket RESOLVED de cada stock.
+     * Cada consulta se omite si fields no pide sus campos.
+     */
+    public List<StockResponse> withProvidersAndSupport(List<StockEntity> stocks, FieldSet fields) {
+        Map<UUID, UserEntity> providers = fields.includesAny(PROVIDER_FIELDS) ? providers(stocks) : Map.of();
+        Map<Long, SupportTicketEntity> tickets = fields.includesAny(SUPPORT_FIELDS) ? resolvedTickets(stocks) : Map.of();
+        List<StockResponse> result = new ArrayList<>(stocks.size());
+        for (StockEntity stock : stocks) {
+            StockResponse dto = stockBuilder.toStockResponse(stock, fields);
+            applyProvider(dto, providerOf(providers, stock));
+            SupportTicketEntity ticket = tickets.get(stock.getId());
+            if (ticket != null) {
+                applySupport(dto, ticket, stock);
+            }
+            result.add(dto);
+        }
+        return result;
+    }
+
+    // Stocks por id, con producto y comprador ya cargados
+    public Map<Long, StockEntity> stocksById(Collection<Long> stockIds) {
+        if (stockIds.isEmpty()) {
+            return Map.of();
+        }
+        return stockRepository.findByIdIn(stockIds).stream()
+                .collect(Collectors.toMap(StockEntity::getId, Function.identity()));
+    }
+
+    // Proveedores de los productos de los stocks, por id
+    public Map<UUID, UserEntity> providers(Collection<StockEntity> stocks) {
+        Set<UUID> providerIds = new HashSet<>();
+        for (StockEntity stock : stocks) {
+            UUID providerId = providerIdOf(stock);
+            if (providerId != null) {
+                providerIds.add(providerId);
+            }
+        }
+        return users(providerIds);
+    }
+
+    public Map<UUID, UserEntity> users(Collection<UUID> userIds) {
+        if (userIds.isEmpty()) {
+            return Map.of();
+        }
+        return userRepository.findAllById(userIds).stream()
+                .collect(Collectors.toMap(UserEntity::getId, Function.identity()));
+    }
+
+    // Último ticket RESOLVED de cada stock (por resolvedAt, o updatedAt si no se registró)
+    public Map<Long, SupportTicketEntity> resolvedTickets(Collection<StockEntity> stocks) {
+        List<Long> stockIds = idsOf(stocks);
+        if (stockIds.isEmpty()) {
+            return Map.of();
+        }
+        Map<Long, SupportTicketEntity> latest = new HashMap<>();
+        for (SupportTicketEntity t : supportTicketRepository.findByStockIdInAndStatusIn(stockIds, List.of("RESOLVED"))) {
+            latest.merge(t.getStock().getId(), t, (a, b) -> resolvedOrUpdated(b).isAfter(resolvedOrUpdated(a)) ? b : a);
+        }
+        return latest;
+    }
+
+    // Totales de las transacciones "renewal" en el estado dado, por stock; los stocks sin transacciones no aparecen
+    public Map<Long, RenewalTotals> renewalTotals(Collection<StockEntity> stocks, String status) {
+        List<Long> stockIds = idsOf(stocks);
+        if (stockIds.isEmpty()) {
+            return Map.of();
+        }
+        Map<Long, RenewalTotals> totals = new HashMap<>();
+        for (Object[] row : walletTransactionRepository.totalsByStockIds(stockIds, "renewal", status)) {
+            totals.put(((Number) row[0]).longValue(),
+                    new RenewalTotals((BigDecimal) row[1], ((Number) row[2]).longValue()));
+        }
+        return totals;
+    }
+
+    public static void applyProvider(StockResponse dto, UserEntity provider) {
+        if (provider != null) {
+            dto.setProviderName(provider.getUsername());
+            dto.setProviderPhone(provider.getPhone());
+        }
+    }
+
+    // La nota de resolución guardada en el stock tiene prioridad sobre la del ticket
+    public static void applySupport(StockResponse dto, SupportTicketEntity ticket, StockEntity stock) {
+        dto.setSupportId(ticket.getId());
+        dto.setSupportType(ticket.getIssueType());
+        dto.setSupportStatus(ticket.getStatus());
+        dto.setSupportCreatedAt(ticket.getCreatedAt());
+        dto.setSupportUpdatedAt(ticket.getUpdatedAt());
+        dto.setSupportResolvedAt(ticket.getResolvedAt());
+        dto.setSupportResolutionNote(stock != null && stock.getResolutionNote() != null
+                ? stock.getResolutionNote() : ticket.getResolutionNote());
+    }
+
+    private static UserEntity providerOf(Map<UUID, UserEntity> providers, StockEntity stock) {
+        UUID providerId = providerIdOf(stock);
+        return providerId == null ? null : providers.get(providerId);
+    }
+
+    private static UUID providerIdOf(StockEntity stock) {
+        ProductEntity product = stock.getProduct();
+        return product == null ? null : product.getProviderId();
+    }
+
+    private static List<Long> idsOf(Collection<StockEntity> stocks) {
+        List<Long> ids = new ArrayList<>(stocks.size());
+        for (StockEntity stock : stocks) {
+            ids.add(stock.getId());
+        }
+        return ids;
+    }
+
+    private static Instant resolvedOrUpdated(SupportTicketEntity t) {
+        Instant at = t.getResolvedAt() != null ? t.getResolvedAt() : t.getUpdatedAt();
+        return at != null ? at : Instant.EPOCH;
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.repository.StockRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Motor de vencimiento de stocks. Carga por ventanas los endAt de los próximos N días en una rueda de
+ * tiempo jerárquica en memoria (minutos / horas / días) y, a medida que vencen, marca stock.expired = true
+ * con UPDATE por lotes. Las entradas de la rueda son el conjunto "vence en N días": de ellas salen los
+ * contadores por comprador y por proveedor, que bajan al vencer cada stock.
+ * Un endAt nuevo (compra, renovación) recalcula expired en la BD por trigger (ver SchemaInitializer);
+ * la rueda lo recoge en la siguiente recarga (StockExpiryScheduler), que además barre lo que quedó atrasado.
+ */
+@Service
+@Slf4j
+public class StockExpiryService {
+
+    private static final long MINUTE_MS = 60_000;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+    private static final int BATCH_SIZE = 500;
+
+    // Estados que cuentan como "compra por vencer" (cliente) y "venta por vencer" (proveedor), como en sus listados
+    private static final Set<String> PURCHASE_STATUSES = Set.of("sold", "RENEWED");
+    private static final String SALE_STATUS = "sold";
+
+    private record Entry(long stockId, long deadline, UUID buyerId, UUID providerId, boolean purchase, boolean sale) {}
+
+    private record Counters(Map<UUID, AtomicInteger> byBuyer, Map<UUID, AtomicInteger> byProvider) {}
+
+    private final StockRepository stockRepository;
+    private final int soonDays;
+
+    // Protegida por synchronized(this)
+    private TimingWheel wheel;
+    private volatile Counters counters = new Counters(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong swept = new AtomicLong();
+    private volatile Instant lastReload;
+
+    public StockExpiryService(StockRepository stockRepository,
+                              @Value("${app.stock.expiry.soon-days:5}") int soonDays) {
+        this.stockRepository = stockRepository;
+        this.soonDays = Math.max(1, soonDays);
+        this.wheel = new TimingWheel(System.currentTimeMillis(), this.soonDays + 1);
+    }
+
+    public int getSoonDays() {
+        return soonDays;
+    }
+
+    /**
+     * Marca los vencidos atrasados y vuelve a cargar la rueda y los contadores con los endAt de la ventana.
+     */
+    @Transactional
+    public void reload() {
+        Instant now = Instant.now();
+        int overdue = stockRepository.markOverdueExpired(now);
+        swept.addAndGet(overdue);
+
+        TimingWheel next = new TimingWheel(now.toEpochMilli(), soonDays + 1);
+        Counters nextCounters = new Counters(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        List<Entry> due = new ArrayList<>();
+        for (Object[] row : stockRepository.findExpiryRows(now, now.plusMillis(soonDays * DAY_MS))) {
+            String status = (String) row[4];
+            Entry entry = new Entry(((Number) row[0]).longValue(), ((Instant) row[1]).toEpochMilli(),
+                    (UUID) row[2], (UUID) row[3],
+                    row[2] != null && PURCHASE_STATUSES.contains(status),
+                    row[3] != null && SALE_STATUS.equals(status));
+            if (next.add(entry, due)) {
+                count(nextCounters, entry, 1);
+            }
+        }
+
+        synchronized (this) {
+            wheel = next;
+            counters = nextCounters;
+        }
+        lastReload = now;
+        if (overdue > 0) {
+            log.info("Stocks vencidos marcados en el barrido: {}", overdue);
+        }
+        log.debug("Rueda de vencimientos recargada: {} stocks vencen en {} días", next.size(), soonDays);
+    }
+
+    /**
+     * Avanza la rueda hasta ahora y marca como vencidos, por lotes, los stocks cuya casilla se cumplió.
+     */
+    @Transactional
+    public int advance() {
+        Instant now = Instant.now();
+        List<Entry> due = new ArrayList<>();
+        synchronized (this) {
+            wheel.advance(now.toEpochMilli(), due);
+            Counters current = counters;
+            for (Entry entry : due) {
+                count(current, entry, -1);
+            }
+        }
+        if (due.isEmpty()) {
+            return 0;
+        }
+
+        int updated = 0;
+        List<Long> ids = new ArrayList<>(Math.min(due.size(), BATCH_SIZE));
+        for (Entry entry : due) {
+            ids.add(entry.stockId());
+            if (ids.size() == BATCH_SIZE) {
+                updated += stockRepository.markExpired(ids, now);
+                ids.clear();
+            }
+        }
+        if (!ids.isEmpty()) {
+            updated += stockRepository.markExpired(ids, now);
+        }
+        expired.addAndGet(updated);
+        return updated;
+    }
+
+    // Compras del cliente que vencen en los próximos soonDays días
+    public int expiringForBuyer(UUID buyerId) {
+        AtomicInteger n = buyerId == null ? null : counters.byBuyer().get(buyerId);
+        return n == null ? 0 : Math.max(0, n.get());
+    }
+
+    // Ventas del proveedor que vencen en los próximos soonDays días
+    public int expiringForProvider(UUID providerId) {
+        AtomicInteger n = providerId == null ? null : counters.byProvider().get(providerId);
+        return n == null ? 0 : Math.max(0, n.get());
+    }
+
+    private static void count(Counters counters, Entry entry, int delta) {
+        if (entry.purchase()) {
+            counters.byBuyer().computeIfAbsent(entry.buyerId(), k -> new AtomicInteger()).addAndGet(delta);
+        }
+        if (entry.sale()) {
+            counters.byProvider().computeIfAbsent(entry.providerId(), k -> new AtomicInteger()).addAndGet(delta);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        int scheduled;
+        synchronized (this) {
+            scheduled = wheel.size();
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("soonDays", soonDays);
+        m.put("scheduled", scheduled);
+        m.put("buyers", counters.byBuyer().size());
+        m.put("providers", counters.byProvider().size());
+        m.put("expired", expired.get());
+        m.put("swept", swept.get());
+        m.put("lastReload", lastReload);
+        return m;
+    }
+
+    /**
+     * Rueda jerárquica: nivel 0 con 60 casillas de un minuto, nivel 1 con 24 de una hora y nivel 2 con
+     * casillas de un día. Una entrada baja de nivel (cascada) cuando la rueda llega a la hora o al día de
+     * su casilla, y vence cuando termina el minuto de su casilla del nivel 0.
+     */
+    private static final class TimingWheel {
+
+        private final long[] ticks = {MINUTE_MS, HOUR_MS, DAY_MS};
+        private final List<List<Entry>[]> levels = new ArrayList<>(3);
+        // Inicio del minuto actual
+        private long current;
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        TimingWheel(long now, int days) {
+            levels.add(new List[60]);
+            levels.add(new List[24]);
+            levels.add(new List[days]);
+            current = now - Math.floorMod(now, MINUTE_MS);
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Coloca la entrada en su nivel; las ya vencidas van a due. false si queda más allá del horizonte
+        boolean add(Entry entry, List<Entry> due) {
+            long deadline = entry.deadline();
+            if (deadline < current) {
+                due.add(entry);
+                return true;
+            }
+            int level;
+            if (deadline < current + 60 * MINUTE_MS) {
+                level = 0;
+            } else if (deadline < start(current, HOUR_MS) + 24 * HOUR_MS) {
+                level = 1;
+            } else if (deadline < start(current, DAY_MS) + levels.get(2).length * DAY_MS) {
+                level = 2;
+            } else {
+                return false;
+            }
+            List<Entry>[] slots = levels.get(level);
+            int i = (int) Math.floorMod(deadline / ticks[level], (long) slots.length);
+            if (slots[i] == null) {
+                slots[i] = new ArrayList<>();
+            }
+            slots[i].add(entry);
+            size++;
+            return true;
+        }
+
+        // Avanza minuto a minuto hasta now: vence el minuto que termina y hace cascada al entrar en una hora o día
+        void advance(long now, List<Entry> due) {
+            while (current + MINUTE_MS <= now) {
+                due.addAll(take(0, current));
+                current += MINUTE_MS;
+                if (current % DAY_MS == 0) {
+                    cascade(2, due);
+                }
+                if (current % HOUR_MS == 0) {
+                    cascade(1, due);
+                }
+            }
+        }
+
+        private void cascade(int level, List<Entry> due) {
+            for (Entry entry : take(level, current)) {
+                add(entry, due);
+            }
+        }
+
+        private List<Entry> take(int level, long at) {
+            List<Entry>[] slots = levels.get(level);
+            int i = (int) Math.floorMod(at / ticks[level], (long) slots.length);
+            List<Entry> taken = slots[i];
+            slots[i] = null;
+            if (taken == null) {
+                return List.of();
+            }
+            size -= taken.size();
+            return taken;
+        }
+
+        private static long start(long time, long unit) {
+            return time - Math.floorMod(time, unit);
+        }
+    }
+}
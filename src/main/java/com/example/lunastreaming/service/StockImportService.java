@@ -0,0 +1,369 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.ProductEntity;
+import com.example.lunastreaming.model.StockImportResponse;
+import com.example.lunastreaming.model.TypeEnum;
+import com.example.lunastreaming.repository.ProductRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Importación masiva de stocks en streaming: CSV con cabecera o NDJSON, un stock por línea.
+ * El cuerpo se lee línea a línea sin cargarlo entero; la propiedad del producto se valida una sola vez
+ * por producto y las filas repetidas (usuario + perfil, contra el archivo y contra la BD) se detectan en memoria.
+ * Las filas válidas se insertan con JDBC en lotes, con ids reservados de a bloques de la secuencia de stock.id
+ * (StockEntity usa IDENTITY, que impide a Hibernate agrupar los INSERT).
+ * Cada lote se confirma en su propia transacción corta: la lectura del cuerpo (que con un cliente lento puede
+ * tardar) no retiene conexión ni bloqueos. La detección de repetidos es por importación: dos importaciones
+ * simultáneas del mismo producto pueden insertar el mismo usuario + perfil.
+ */
+@Service
+@Slf4j
+public class StockImportService {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final String NEXT_IDS_SQL =
+            "SELECT nextval(pg_get_serial_sequence('stock', 'id')) FROM generate_series(1, ?)";
+
+    private static final String EXISTING_KEYS_SQL =
+            "SELECT lower(username), numero_perfil FROM stock WHERE product_id = ? AND deleted = false";
+
+    private static final String INSERT_SQL = "INSERT INTO stock (id, product_id, username, password, url, tipo, " +
+            "numero_perfil, pin, status, client_name, client_phone, purchase_price, created_at, deleted) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0, ?, false)";
+
+    private static final int[] INSERT_TYPES = {Types.BIGINT, Types.OTHER, Types.VARCHAR, Types.VARCHAR,
+            Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+            Types.VARCHAR, Types.TIMESTAMP};
+
+    private record ImportRow(int line, UUID productId, String username, String password, String url, TypeEnum tipo,
+                             Integer numeroPerfil, String pin, String status, String clientName, String clientPhone) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ProductRepository productRepository;
+    private final StockService stockService;
+    private final StockAvailabilityService stockAvailabilityService;
+    private final int batchSize;
+    private final int maxRows;
+
+    public StockImportService(JdbcTemplate jdbcTemplate,
+                              TransactionTemplate transactionTemplate,
+                              ProductRepository productRepository,
+                              StockService stockService,
+                              StockAvailabilityService stockAvailabilityService,
+                              @Value("${app.stock.import.batch-size:500}") int batchSize,
+                              @Value("${app.stock.import.max-rows:20000}") int maxRows) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.productRepository = productRepository;
+        this.stockService = stockService;
+        this.stockAvailabilityService = stockAvailabilityService;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxRows = Math.max(1, maxRows);
+    }
+
+    /**
+     * Importa el cuerpo lote a lote; cada lote se confirma por separado (no es todo o nada). Si falla la BD
+     * o la conexión se corta, los lotes ya confirmados quedan: al reintentar el mismo archivo esas filas
+     * salen como repetidas y solo se insertan las que faltaban.
+     * Las filas inválidas, ajenas o repetidas no cortan la importación; se informan en el resultado.
+     *
+     * @param ndjson           true para NDJSON, false para CSV (coma o punto y coma, con cabecera)
+     * @param defaultProductId producto de las filas que no traen productId (opcional)
+     */
+    public StockImportResponse importStocks(InputStream body, boolean ndjson, UUID defaultProductId,
+                                            Principal principal) throws IOException {
+        Import run = new Import(stockService.resolveUserIdFromPrincipal(principal));
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        if (ndjson) {
+            readNdjson(reader, defaultProductId, run);
+        } else {
+            readCsv(reader, defaultProductId, run);
+        }
+        run.flush();
+
+        run.results.sort(Comparator.comparingInt(StockImportResponse.Row::line));
+        log.info("Importación de stocks: {} filas, {} creadas, {} rechazadas", run.total, run.created, run.total - run.created);
+        return new StockImportResponse(run.total, run.created, run.total - run.created, run.results);
+    }
+
+    private void readNdjson(BufferedReader reader, UUID defaultProductId, Import run) throws IOException {
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            Map<String, String> fields = new HashMap<>();
+            try {
+                JsonNode node = JSON.readTree(line);
+                if (!node.isObject()) {
+                    run.reject(lineNumber, StockImportResponse.ERROR, "Se esperaba un objeto JSON");
+                    continue;
+                }
+                node.fields().forEachRemaining(e -> {
+                    if (!e.getValue().isNull()) {
+                        fields.put(e.getKey().toLowerCase(Locale.ROOT), e.getValue().asText());
+                    }
+                });
+            } catch (JsonProcessingException e) {
+                run.reject(lineNumber, StockImportResponse.ERROR, "JSON inválido");
+                continue;
+            }
+            run.accept(lineNumber, fields, defaultProductId);
+        }
+    }
+
+    private void readCsv(BufferedReader reader, UUID defaultProductId, Import run) throws IOException {
+        String header = reader.readLine();
+        if (header == null) {
+            throw new IllegalArgumentException("Archivo vacío");
+        }
+        if (header.startsWith("\uFEFF")) {
+            header = header.substring(1);
+        }
+        char delimiter = header.indexOf(';') >= 0 && header.indexOf(',') < 0 ? ';' : ',';
+        List<String> columns = new ArrayList<>();
+        for (String column : splitCsv(header, delimiter)) {
+            columns.add(column.trim().toLowerCase(Locale.ROOT));
+        }
+        if (!columns.contains("username")) {
+            throw new IllegalArgumentException("La cabecera CSV debe incluir la columna username");
+        }
+
+        String line;
+        int lineNumber = 1;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            List<String> values = splitCsv(line, delimiter);
+            Map<String, String> fields = new HashMap<>();
+            for (int i = 0; i < columns.size() && i < values.size(); i++) {
+                String value = values.get(i).trim();
+                if (!value.isEmpty()) {
+                    fields.put(columns.get(i), value);
+                }
+            }
+            run.accept(lineNumber, fields, defaultProductId);
+        }
+    }
+
+    // Campos de una línea CSV; admite comillas dobles con "" como escape (sin saltos de línea dentro de un campo)
+    static List<String> splitCsv(String line, char delimiter) {
+        List<String> values = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                values.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        values.add(current.toString());
+        return values;
+    }
+
+    /**
+     * Estado de una importación: productos ya validados, claves vistas por producto y el lote pendiente.
+     */
+    private final class Import {
+
+        private final UUID providerId;
+        // productId -> motivo de rechazo, vacío si el producto es del proveedor
+        private final Map<UUID, Optional<String>> productChecks = new HashMap<>();
+        // productId -> "usuario|perfil" ya existentes en la BD o vistos en el archivo
+        private final Map<UUID, Set<String>> keysByProduct = new HashMap<>();
+        private final List<ImportRow> pending = new ArrayList<>();
+        private final List<StockImportResponse.Row> results = new ArrayList<>();
+        private int total;
+        private int created;
+
+        Import(UUID providerId) {
+            this.providerId = providerId;
+        }
+
+        void accept(int line, Map<String, String> fields, UUID defaultProductId) {
+            countRow();
+            ImportRow row;
+            try {
+                row = parse(line, fields, defaultProductId);
+            } catch (IllegalArgumentException e) {
+                results.add(new StockImportResponse.Row(line, StockImportResponse.ERROR, null, e.getMessage()));
+                return;
+            }
+
+            Optional<String> denied = productChecks.computeIfAbsent(row.productId(), this::checkProduct);
+            if (denied.isPresent()) {
+                results.add(new StockImportResponse.Row(line, StockImportResponse.ERROR, null, denied.get()));
+                return;
+            }
+
+            Set<String> keys = keysByProduct.computeIfAbsent(row.productId(), this::existingKeys);
+            if (!keys.add(key(row.username(), row.numeroPerfil()))) {
+                results.add(new StockImportResponse.Row(line, StockImportResponse.DUPLICATE, null,
+                        "Ya existe un stock con el mismo usuario y perfil en este producto"));
+                return;
+            }
+
+            pending.add(row);
+            if (pending.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void reject(int line, String result, String message) {
+            countRow();
+            results.add(new StockImportResponse.Row(line, result, null, message));
+        }
+
+        private void countRow() {
+            if (++total > maxRows) {
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                        "Máximo " + maxRows + " stocks por importación");
+            }
+        }
+
+        // Inserta el lote pendiente en un solo batch JDBC con ids reservados de la secuencia, en su propia
+        // transacción; los productos del lote dejan de figurar como agotados al confirmarse
+        void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<Long> ids = transactionTemplate.execute(status -> {
+                List<Long> reserved = jdbcTemplate.queryForList(NEXT_IDS_SQL, Long.class, pending.size());
+                Timestamp now = Timestamp.from(Instant.now());
+                List<Object[]> args = new ArrayList<>(pending.size());
+                Set<UUID> products = new HashSet<>();
+                for (int i = 0; i < pending.size(); i++) {
+                    ImportRow row = pending.get(i);
+                    args.add(new Object[]{reserved.get(i), row.productId(), row.username(), row.password(), row.url(),
+                            row.tipo() != null ? row.tipo().name() : null, row.numeroPerfil(), row.pin(), row.status(),
+                            row.clientName(), row.clientPhone(), now});
+                    products.add(row.productId());
+                }
+                jdbcTemplate.batchUpdate(INSERT_SQL, args, INSERT_TYPES);
+                stockAvailabilityService.markAvailable(products);
+                return reserved;
+            });
+
+            for (int i = 0; i < pending.size(); i++) {
+                ImportRow row = pending.get(i);
+                results.add(new StockImportResponse.Row(row.line(), StockImportResponse.CREATED, ids.get(i), null));
+            }
+            created += pending.size();
+            pending.clear();
+        }
+
+        private Optional<String> checkProduct(UUID productId) {
+            Optional<ProductEntity> product = productRepository.findById(productId);
+            if (product.isEmpty()) {
+                return Optional.of("Producto no encontrado: " + productId);
+            }
+            if (!providerId.equals(product.get().getProviderId())) {
+                return Optional.of("No autorizado para crear stocks en el producto: " + productId);
+            }
+            return Optional.empty();
+        }
+
+        private Set<String> existingKeys(UUID productId) {
+            Set<String> keys = new HashSet<>();
+            jdbcTemplate.query(EXISTING_KEYS_SQL, rs -> {
+                keys.add(key(rs.getString(1), (Integer) rs.getObject(2)));
+            }, productId);
+            return keys;
+        }
+    }
+
+    private static String key(String username, Integer numeroPerfil) {
+        return (username == null ? "" : username.toLowerCase(Locale.ROOT)) + "|" + (numeroPerfil == null ? "" : numeroPerfil);
+    }
+
+    // Nombres de columna / propiedad como en StockResponse (tipo, numeroPerfil), sin distinguir mayúsculas
+    private static ImportRow parse(int line, Map<String, String> fields, UUID defaultProductId) {
+        UUID productId = defaultProductId;
+        String rawProductId = fields.get("productid");
+        if (rawProductId != null) {
+            try {
+                productId = UUID.fromString(rawProductId);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("productId inválido: " + rawProductId);
+            }
+        }
+        if (productId == null) {
+            throw new IllegalArgumentException("Cada stock debe contener productId");
+        }
+
+        String username = fields.get("username");
+        if (username == null || username.isBlank()) {
+            throw new IllegalArgumentException("username es obligatorio");
+        }
+
+        TypeEnum tipo = null;
+        String rawTipo = fields.get("tipo");
+        if (rawTipo != null) {
+            try {
+                tipo = TypeEnum.valueOf(rawTipo.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("tipo inválido: " + rawTipo);
+            }
+        }
+
+        Integer numeroPerfil = null;
+        String rawPerfil = fields.get("numeroperfil");
+        if (rawPerfil != null) {
+            try {
+                numeroPerfil = Integer.valueOf(rawPerfil);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("numeroPerfil inválido: " + rawPerfil);
+            }
+        }
+
+        // Igual que el alta normal: sin estado el stock queda inactivo; no se importan stocks vendidos
+        String status = fields.getOrDefault("status", "inactive");
+        if (!"active".equals(status) && !"inactive".equals(status)) {
+            throw new IllegalArgumentException("status debe ser active o inactive");
+        }
+
+        return new ImportRow(line, productId, username.trim(), fields.get("password"), fields.get("url"), tipo,
+                numeroPerfil, fields.get("pin"), status, fields.get("clientname"), fields.get("clientphone"));
+    }
+}
@@ -3,12 +3,17 @@ package com.example.lunastreaming.service;
 import com.example.lunastreaming.builder.StockBuilder;
 import com.example.lunastreaming.model.*;
 import com.example.lunastreaming.repository.*;
+import com.example.lunastreaming.util.FieldSet;
+import com.example.lunastreaming.util.KeysetCursor;
+import com.example.lunastreaming.util.PaginationUtil;
 import com.example.lunastreaming.util.RequestUtil;
 import jakarta.persistence.EntityNotFoundException;
+import org.springframework.dao.DataAccessException;
 import org.springframework.data.domain.*;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.transaction.annotation.Transactional;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.crypto.password.PasswordEncoder;
@@ -17,6 +22,7 @@ import org.springframework.web.server.ResponseStatusException;
 
 import java.math.BigDecimal;
 import java.security.Principal;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
@@ -30,6 +36,7 @@ import java.util.stream.Collectors;
 public class StockService {
 
     private static final int MAX_PAGE_SIZE = 100;
+    private static final String STOCK_BUSY_MESSAGE = "El stock disponible está siendo comprado en este momento, intenta de nuevo";
 
     private final StockRepository stockRepository;
 
@@ -45,8 +52,32 @@ public class StockService {
 
     private final SupportTicketRepository supportTicketRepository;
 
+    private final StockAvailabilityService stockAvailabilityService;
 
-    public Page<StockResponse> getByProviderPrincipal(String principalName, int page, int size, String searchTerm) {
+    private final ApproximateCountService approximateCountService;
+
+    private final PurchaseAuthorizationService purchaseAuthorizationService;
+
+    private final BalanceLedger balanceLedger;
+
+    private final PopularityService popularityService;
+
+    private final StockEnrichmentLoader stockEnrichmentLoader;
+
+    @Value("${app.purchase.stock-claim:skip-locked}")
+    private String stockClaimMode;
+
+    @Value("${app.purchase.engine:jpa}")
+    private String purchaseEngine;
+
+    @Value("${app.purchase.cart.max-units:20}")
+    private int maxCartUnits;
+
+    @Value("${app.purchase.reservation-ttl-seconds:120}")
+    private long reservationTtlSeconds;
+
+
+    public Page<StockResponse> getByProviderPrincipal(String principalName, int page, int size, String searchTerm, FieldSet fields) {
         Pageable pageable = PageRequest.of(page, size, Sort.by(Sort.Direction.DESC, "createdAt"));
         UUID providerId;
 
@@ -60,7 +91,7 @@ public class StockService {
 
         // Llamada al nuevo método con el filtro de búsqueda
         Page<StockEntity> result = stockRepository.findByProviderAndQuery(providerId, searchTerm, pageable);
-        return result.map(stockBuilder::toStockResponse);
+        return result.map(stock -> stockBuilder.toStockResponse(stock, fields));
     }
 
     @Transactional
@@ -78,6 +109,7 @@ public class StockService {
         stockEntity.setProduct(product);
 
         StockEntity saved = stockRepository.save(stockEntity);
+        stockAvailabilityService.markAvailable(productId);
         return stockBuilder.toStockResponse(saved);
     }
 
@@ -109,6 +141,7 @@ public class StockService {
 
         // 4. Guardar el nuevo registro
         StockEntity saved = stockRepository.save(newStock);
+        stockAvailabilityService.markAvailable(saved.getProduct().getId());
 
         // 5. ELIMINAR EL STOCK ANTIGUO
         // Llamamos a tu método existente para que aplique el @SQLDelete (soft delete)
@@ -170,6 +203,7 @@ public class StockService {
 
         // Persistir en batch
         List<StockEntity> saved = stockRepository.saveAll(entities);
+        stockAvailabilityService.markAvailable(productIds);
 
         // Mapear y devolver DTOs
         return saved.stream()
@@ -193,6 +227,18 @@ public class StockService {
         }
     }
 
+    /**
+     * Stock comprado por el usuario (para repetir la respuesta de compra/renovación idempotente).
+     */
+    public StockResponse getBuyerStock(Long stockId, UUID buyerId) {
+        StockEntity stock = stockRepository.findById(stockId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Stock no encontrado"));
+        if (stock.getBuyer() == null || !buyerId.equals(stock.getBuyer().getId())) {
+            throw new AccessDeniedException("No autorizado para ver este stock");
+        }
+        return stockBuilder.toStockResponse(stock);
+    }
+
     public List<StockResponse> getAll() {
         return stockRepository.findAll().stream().map(stockBuilder::toStockResponse).toList();
     }
@@ -226,6 +272,9 @@ public class StockService {
         }
         if (updated.getStatus() != null) {
             stock.setStatus(updated.getStatus());
+            if ("active".equalsIgnoreCase(updated.getStatus())) {
+                stockAvailabilityService.markAvailable(stock.getProduct().getId());
+            }
         }
 
         if (updated.getSupportResolutionNote() != null) {
@@ -294,6 +343,9 @@ public class StockService {
         // actualizar solo el campo status y persistir
         stock.setStatus(newStatus.toLowerCase());
         StockEntity saved = stockRepository.save(stock);
+        if ("active".equals(saved.getStatus())) {
+            stockAvailabilityService.markAvailable(product.getId());
+        }
 
         return stockBuilder.toStockResponse(saved);
     }
@@ -303,30 +355,313 @@ public class StockService {
     @Transactional
     public StockResponse purchaseProduct(UUID productId, PurchaseRequest req, Principal principal) {
 
-        // 1. Bloqueamos y obtenemos al COMPRADOR (Evita race conditions en el saldo)
+        if ("sql-function".equalsIgnoreCase(purchaseEngine)) {
+            return purchaseViaFunction(productId, req, principal);
+        }
+
+        // 1. Credenciales (token o contraseña) ANTES de bloquear: Argon2 nunca corre con la fila tomada
         UUID buyerId = UUID.fromString(principal.getName());
-        UserEntity buyer = userRepository.findByIdForUpdate(buyerId)
+        verifyPurchaseCredentials(buyerId, req.getPassword(), req.getPurchaseToken());
+
+        // 2. Obtenemos al COMPRADOR sin bloqueo: el débito condicional del ledger protege el saldo
+        UserEntity buyer = userRepository.findById(buyerId)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Comprador no encontrado"));
+        validateBuyer(buyer);
+
+        // 3. Bloqueamos y obtenemos el STOCK (Evita que dos personas compren el mismo)
+        // Con SKIP LOCKED cada compra concurrente reclama una fila distinta en lugar de esperar a la primera.
+        StockEntity stock = claimActiveStock(productId)
+                .orElseThrow(() -> soldOut(productId));
+
+        return settlePurchase(buyer, stock, req);
+    }
+
+    /**
+     * Motor "sql-function": valida contraseña en Java (Argon2, sin bloqueos) y ejecuta el resto de la venta
+     * en una sola llamada a luna_purchase_v2, que bloquea comprador y stock solo dentro del servidor.
+     * La función aplica los saldos como BalanceLedger, incluidas las cuentas con franjas.
+     */
+    private StockResponse purchaseViaFunction(UUID productId, PurchaseRequest req, Principal principal) {
+        UUID buyerId = UUID.fromString(principal.getName());
+        UserEntity buyer = userRepository.findById(buyerId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Comprador no encontrado"));
+
+        validateBuyer(buyer);
+        verifyPurchaseCredentials(buyerId, req.getPassword(), req.getPurchaseToken());
+
+        Long stockId;
+        try {
+            stockId = stockRepository.purchaseViaFunction(buyerId, productId, req.getClientName(), req.getClientPhone(),
+                    balanceLedger.stripedAccountsLiteral(), balanceLedger.currentStripe());
+        } catch (DataAccessException e) {
+            RuntimeException translated = translatePurchaseError(e);
+            // LS404 solo se lanza tras comprobar sin SKIP LOCKED que no queda stock activo (LS423 si está ocupado)
+            if (translated instanceof ResponseStatusException rse && rse.getStatusCode() == HttpStatus.NOT_FOUND) {
+                stockAvailabilityService.markSoldOut(productId);
+            }
+            throw translated;
+        }
+
+        StockEntity stock = stockRepository.findById(stockId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Stock vendido no encontrado"));
+        popularityService.recordSale(productId);
+        return stockBuilder.toStockResponse(stock);
+    }
+
+    // Traduce los SQLSTATE propios de luna_purchase_v2 a la misma respuesta HTTP que el motor JPA
+    static RuntimeException translatePurchaseError(DataAccessException e) {
+        Throwable cause = e;
+        while (cause != null && !(cause instanceof SQLException)) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof SQLException sql && sql.getSQLState() != null) {
+            switch (sql.getSQLState()) {
+                case "LS403": return new ResponseStatusException(HttpStatus.FORBIDDEN, "La cuenta del usuario no está activa");
+                case "LS404": return new ResponseStatusException(HttpStatus.NOT_FOUND, "Ya no hay stock disponible para este producto");
+                case "LS409": return new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente");
+                case "LS423": return new ResponseStatusException(HttpStatus.CONFLICT, STOCK_BUSY_MESSAGE);
+                case "LS500": return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Proveedor no encontrado");
+                default: break;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Checkout de carrito: compra N unidades de uno o varios productos en una sola transacción.
+     * Un bloqueo del comprador, una validación de saldo por el total, un reclamo de stocks por producto,
+     * un abono agregado por proveedor y las transacciones de billetera insertadas en lote.
+     */
+    @Transactional
+    public CartCheckoutResponse checkoutCart(CartCheckoutRequest req, Principal principal) {
+        if (req == null || req.getItems() == null || req.getItems().isEmpty()) {
+            throw new IllegalArgumentException("El carrito está vacío");
+        }
+
+        // Unidades pedidas por producto (en orden de id para bloquear siempre en el mismo orden)
+        Map<UUID, List<CartCheckoutRequest.Item>> itemsByProduct = new TreeMap<>();
+        int totalUnits = 0;
+        for (CartCheckoutRequest.Item item : req.getItems()) {
+            if (item.getProductId() == null) {
+                throw new IllegalArgumentException("Cada item debe contener productId");
+            }
+            int qty = item.getQuantity() == null ? 1 : item.getQuantity();
+            if (qty < 1) {
+                throw new IllegalArgumentException("La cantidad debe ser mayor a cero");
+            }
+            totalUnits += qty;
+            itemsByProduct.computeIfAbsent(item.getProductId(), k -> new ArrayList<>()).add(item);
+        }
+        if (totalUnits > maxCartUnits) {
+            throw new IllegalArgumentException("Máximo " + maxCartUnits + " unidades por compra");
+        }
+
+        // 1. Credenciales antes de cualquier bloqueo
+        UUID buyerId = UUID.fromString(principal.getName());
+        verifyPurchaseCredentials(buyerId, req.getPassword(), req.getPurchaseToken());
+
+        Map<UUID, ProductEntity> products = productRepository.findAllById(itemsByProduct.keySet()).stream()
+                .collect(Collectors.toMap(ProductEntity::getId, Function.identity()));
+        BigDecimal total = BigDecimal.ZERO;
+        for (Map.Entry<UUID, List<CartCheckoutRequest.Item>> e : itemsByProduct.entrySet()) {
+            ProductEntity product = products.get(e.getKey());
+            if (product == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Producto no encontrado: " + e.getKey());
+            }
+            int qty = e.getValue().stream().mapToInt(i -> i.getQuantity() == null ? 1 : i.getQuantity()).sum();
+            total = total.add(product.getSalePrice().multiply(BigDecimal.valueOf(qty)));
+        }
+
+        // 2. Validación del comprador y chequeo preliminar de saldo (el débito del ledger es el definitivo)
+        UserEntity buyer = userRepository.findById(buyerId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Comprador no encontrado"));
+        validateBuyer(buyer);
+        if (balanceLedger.balanceOf(buyer).compareTo(total) < 0) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente");
+        }
+
+        // 3. Reclamo de stocks, movimientos y marcado como vendidos
+        List<StockEntity> soldStocks = new ArrayList<>();
+        List<WalletTransaction> transactions = new ArrayList<>();
+        Map<UUID, BigDecimal> providerCredits = new HashMap<>();
+        Map<UUID, UserEntity> providers = userRepository.findByIdIn(products.values().stream()
+                        .map(ProductEntity::getProviderId).distinct().toList()).stream()
+                .collect(Collectors.toMap(UserEntity::getId, Function.identity()));
+
+        for (Map.Entry<UUID, List<CartCheckoutRequest.Item>> e : itemsByProduct.entrySet()) {
+            ProductEntity product = products.get(e.getKey());
+            UserEntity provider = providers.get(product.getProviderId());
+            if (provider == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Proveedor no encontrado");
+            }
+            BigDecimal price = product.getSalePrice();
+            int qty = e.getValue().stream().mapToInt(i -> i.getQuantity() == null ? 1 : i.getQuantity()).sum();
+
+            // Un reclamo incompleto no marca el producto como agotado: el resto puede estar bloqueado por otras compras
+            List<StockEntity> claimed = stockRepository.claimActiveStocksSkipLocked(product.getId(), qty);
+            if (claimed.size() < qty) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT,
+                        "Stock insuficiente para " + product.getName() + ": disponibles " + claimed.size() + " de " + qty);
+            }
+
+            Iterator<StockEntity> it = claimed.iterator();
+            for (CartCheckoutRequest.Item item : e.getValue()) {
+                int units = item.getQuantity() == null ? 1 : item.getQuantity();
+                for (int u = 0; u < units; u++) {
+                    StockEntity stock = it.next();
+                    markSold(stock, product, buyer, price, item.getClientName(), item.getClientPhone());
+                    soldStocks.add(stock);
+                    transactions.add(purchaseTransaction(buyer, stock, product, price));
+                    transactions.add(saleTransaction(provider, stock, product, price));
+                }
+            }
+            providerCredits.merge(product.getProviderId(), price.multiply(BigDecimal.valueOf(qty)), BigDecimal::add);
+        }
+
+        // 4. Un solo débito al comprador y un solo abono por proveedor, aplicados en orden de id
+        List<BalanceLedger.Movement> movements = new ArrayList<>();
+        movements.add(BalanceLedger.Movement.debit(buyerId, total));
+        providerCredits.forEach((providerId, amount) -> movements.add(BalanceLedger.Movement.credit(providerId, amount)));
+        balanceLedger.apply(movements.toArray(BalanceLedger.Movement[]::new));
+
+        // 5. Inserciones en lote (hibernate.jdbc.batch_size)
+        stockRepository.saveAll(soldStocks);
+        walletTransactionRepository.saveAll(transactions);
+
+        return CartCheckoutResponse.builder()
+                .stocks(soldStocks.stream().map(stockBuilder::toStockResponse).toList())
+                .units(soldStocks.size())
+                .total(total)
+                .build();
+    }
+
+    /**
+     * Fase 1 de la compra en dos fases: valida al comprador (incluida la contraseña) sin bloquear su fila
+     * y aparta un stock como 'reserved' durante el TTL configurado. El bloqueo del stock dura solo lo que
+     * tarda esta transacción corta; el cobro ocurre al confirmar.
+     */
+    @Transactional
+    public StockReservationResponse reserveProduct(UUID productId, PurchaseRequest req, Principal principal) {
+        UUID buyerId = UUID.fromString(principal.getName());
+        UserEntity buyer = userRepository.findById(buyerId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Comprador no encontrado"));
+
+        validateBuyer(buyer);
+        verifyPurchaseCredentials(buyerId, req.getPassword(), req.getPurchaseToken());
+
+        ProductEntity product = productRepository.findById(productId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Producto no encontrado"));
+
+        // Chequeo preliminar de saldo (sin bloqueo); se vuelve a validar con el saldo bloqueado al confirmar
+        if (balanceLedger.balanceOf(buyer).compareTo(product.getSalePrice()) < 0) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente");
+        }
+
+        StockEntity stock = claimActiveStock(productId)
+                .orElseThrow(() -> soldOut(productId));
+
+        Instant expiresAt = Instant.now().plusSeconds(reservationTtlSeconds);
+        stock.setStatus("reserved");
+        stock.setReservedBy(buyerId);
+        stock.setReservedUntil(expiresAt);
+        stockRepository.save(stock);
+
+        return StockReservationResponse.builder()
+                .stockId(stock.getId())
+                .productId(productId)
+                .productName(product.getName())
+                .price(product.getSalePrice())
+                .expiresAt(expiresAt)
+                .build();
+    }
+
+    /**
+     * Fase 2: cobra y entrega el stock reservado. La contraseña ya se verificó al reservar,
+     * así que aquí solo se bloquea el stock y los saldos se mueven con el ledger atómico.
+     */
+    @Transactional
+    public StockResponse confirmReservation(Long stockId, PurchaseRequest req, Principal principal) {
+        UUID buyerId = UUID.fromString(principal.getName());
+        UserEntity buyer = userRepository.findById(buyerId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Comprador no encontrado"));
+
+        StockEntity stock = stockRepository.findByIdWithLock(stockId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Stock no encontrado"));
+
+        if (!"reserved".equals(stock.getStatus()) || !buyerId.equals(stock.getReservedBy())) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "El stock no tiene una reserva vigente de este usuario");
+        }
+
+        if (stock.getReservedUntil() == null || stock.getReservedUntil().isBefore(Instant.now())) {
+            // El barrido programado la devuelve al inventario
+            throw new ResponseStatusException(HttpStatus.GONE, "La reserva ha expirado");
+        }
 
-        // Validación con minúsculas
         if (!"active".equalsIgnoreCase(buyer.getStatus())) {
             throw new ResponseStatusException(HttpStatus.FORBIDDEN, "La cuenta del usuario no está activa");
         }
 
-        // 2. Validaciones de acceso y seguridad
+        return settlePurchase(buyer, stock, req);
+    }
+
+    /**
+     * Cancela una reserva propia y devuelve el stock al inventario.
+     */
+    @Transactional
+    public void cancelReservation(Long stockId, Principal principal) {
+        UUID buyerId = UUID.fromString(principal.getName());
+        StockEntity stock = stockRepository.findByIdWithLock(stockId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Stock no encontrado"));
+
+        if (!"reserved".equals(stock.getStatus()) || !buyerId.equals(stock.getReservedBy())) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "El stock no tiene una reserva vigente de este usuario");
+        }
+
+        releaseReservation(stock);
+    }
+
+    private void releaseReservation(StockEntity stock) {
+        stock.setStatus("active");
+        stock.setReservedBy(null);
+        stock.setReservedUntil(null);
+        stockRepository.save(stock);
+        stockAvailabilityService.markAvailable(stock.getProduct().getId());
+    }
+
+    private void validateBuyer(UserEntity buyer) {
+        if (!"active".equalsIgnoreCase(buyer.getStatus())) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "La cuenta del usuario no está activa");
+        }
+
         if (!"seller".equals(buyer.getRole())) {
             throw new AccessDeniedException("El usuario no cuenta con los accesos para esta acción");
         }
+    }
 
-        if (!passwordEncoder.matches(req.getPassword(), buyer.getPasswordHash())) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "La contraseña ingresada es incorrecta");
+    /**
+     * Acepta un token de compra (verificación en memoria, sin Argon2) o, en su defecto, la contraseña.
+     * El hash se lee como escalar para no dejar al usuario cargado (y desactualizado) antes del FOR UPDATE.
+     */
+    private void verifyPurchaseCredentials(UUID buyerId, String password, String purchaseToken) {
+        if (purchaseToken != null && !purchaseToken.isBlank()) {
+            if (!purchaseAuthorizationService.consume(buyerId, purchaseToken)) {
+                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "El token de compra es inválido o expiró");
+            }
+            return;
         }
 
-        // 3. Bloqueamos y obtenemos el STOCK (Evita que dos personas compren el mismo)
-        // Al usar findFirst...WithLock, el segundo hilo esperará aquí hasta que el primero haga commit.
-        StockEntity stock = stockRepository.findFirstByProductIdAndStatusWithLock(productId, "active")
-                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Ya no hay stock disponible para este producto"));
+        String passwordHash = userRepository.findPasswordHashById(buyerId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Comprador no encontrado"));
+        if (password == null || !passwordEncoder.matches(password, passwordHash)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "La contraseña ingresada es incorrecta");
+        }
+    }
 
+    /**
+     * Pasos 4 a 8 de la compra: cobro al comprador, abono al proveedor y entrega del stock.
+     * Requiere que el stock ya esté bloqueado en la transacción actual.
+     */
+    private StockResponse settlePurchase(UserEntity buyer, StockEntity stock, PurchaseRequest req) {
         ProductEntity product = stock.getProduct();
         if (product == null) {
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Producto no asociado");
@@ -334,17 +669,27 @@ public class StockService {
 
         BigDecimal price = product.getSalePrice();
 
-        // 4. Validar saldo con el balance bloqueado
-        if (buyer.getBalance().compareTo(price) < 0) {
-            throw new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente");
-        }
+        // 4-5. Débito condicional al comprador y abono al proveedor en un solo paso del ledger
+        // (falla con "Saldo insuficiente" si el saldo no alcanza)
+        UUID providerId = product.getProviderId();
+        balanceLedger.apply(
+                BalanceLedger.Movement.debit(buyer.getId(), price),
+                BalanceLedger.Movement.credit(providerId, price));
 
-        // 5. Descontar saldo comprador
-        buyer.setBalance(buyer.getBalance().subtract(price));
-        userRepository.save(buyer); // Se guarda dentro de la transacción bloqueada
+        // 6-7. Registrar transacciones de salida (comprador) y entrada (proveedor)
+        walletTransactionRepository.save(purchaseTransaction(buyer, stock, product, price));
+        walletTransactionRepository.save(saleTransaction(userRepository.getReferenceById(providerId), stock, product, price));
 
-        // 6. Registrar transacción de salida de dinero
-        walletTransactionRepository.save(WalletTransaction.builder()
+        // 8. Actualizar y marcar el stock como vendido
+        // El estado cambia de 'active' a 'sold/requested', por lo que el siguiente hilo ya no lo encontrará.
+        markSold(stock, product, buyer, price, req.getClientName(), req.getClientPhone());
+        stockRepository.save(stock);
+
+        return stockBuilder.toStockResponse(stock);
+    }
+
+    private WalletTransaction purchaseTransaction(UserEntity buyer, StockEntity stock, ProductEntity product, BigDecimal price) {
+        return WalletTransaction.builder()
                 .user(buyer)
                 .type("purchase")
                 .stock(stock)
@@ -354,33 +699,28 @@ public class StockService {
                 .createdAt(Instant.now())
                 .exchangeApplied(false)
                 .description("COMPRA: " + product.getName() + " (Stock ID: " + stock.getId() + ")")
-                .build());
-
-        // 7. Acreditar al proveedor
-        UserEntity provider = userRepository.findById(product.getProviderId())
-                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Proveedor no encontrado"));
-
-        provider.setBalance(provider.getBalance().add(price));
-        userRepository.save(provider);
+                .build();
+    }
 
-        walletTransactionRepository.save(WalletTransaction.builder()
+    private WalletTransaction saleTransaction(UserEntity provider, StockEntity stock, ProductEntity product, BigDecimal price) {
+        return WalletTransaction.builder()
                 .user(provider)
                 .type("sale")
                 .stock(stock)
-                .stock(stock)
                 .amount(price)
                 .currency("USD")
                 .status("approved")
                 .createdAt(Instant.now())
                 .exchangeApplied(false)
                 .description("VENTA: " + product.getName() + " (Stock ID: " + stock.getId() + ")")
-                .build());
+                .build();
+    }
 
-        // 8. Actualizar y marcar el stock como vendido
-        // El estado cambia de 'active' a 'sold/requested', por lo que el siguiente hilo ya no lo encontrará.
+    private void markSold(StockEntity stock, ProductEntity product, UserEntity buyer, BigDecimal price,
+                          String clientName, String clientPhone) {
         stock.setBuyer(buyer);
-        stock.setClientName(req.getClientName());
-        stock.setClientPhone(req.getClientPhone());
+        stock.setClientName(clientName);
+        stock.setClientPhone(clientPhone);
         stock.setSoldAt(Timestamp.from(Instant.now()));
         stock.setPurchasePrice(price);
 
@@ -396,12 +736,38 @@ public class StockService {
             stock.setStatus("sold");
         }
 
-        stockRepository.save(stock);
+        stock.setReservedBy(null);
+        stock.setReservedUntil(null);
 
-        return stockBuilder.toStockResponse(stock);
+        popularityService.recordSale(product.getId());
     }
 
 
+    /**
+     * Reclama (bloquea) un stock activo del producto según el modo configurado:
+     *  - "skip-locked" (defecto): FOR UPDATE SKIP LOCKED, compras concurrentes del mismo producto en paralelo.
+     *  - "first-row": bloqueo pesimista de la primera fila activa (comportamiento anterior, serializa compras).
+     */
+    private Optional<StockEntity> claimActiveStock(UUID productId) {
+        if ("first-row".equalsIgnoreCase(stockClaimMode)) {
+            return stockRepository.findFirstByProductIdAndStatusWithLock(productId, "active");
+        }
+        return stockRepository.claimActiveStockSkipLocked(productId);
+    }
+
+    /**
+     * Sin stock que reclamar. Con SKIP LOCKED un reclamo vacío no prueba que el producto esté agotado: las filas
+     * pueden estar tomadas por compras en curso que todavía pueden revertirse. Solo si una consulta sin SKIP LOCKED
+     * tampoco ve stock activo se marca el producto como agotado (404); si no, 409 para que el cliente reintente.
+     */
+    private ResponseStatusException soldOut(UUID productId) {
+        if (stockRepository.existsByProductIdAndStatus(productId, "active")) {
+            return new ResponseStatusException(HttpStatus.CONFLICT, STOCK_BUSY_MESSAGE);
+        }
+        stockAvailabilityService.markSoldOut(productId);
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "Ya no hay stock disponible para este producto");
+    }
+
     public UUID resolveUserIdFromPrincipal(Principal principal) {
         if (principal == null || principal.getName() == null) {
             throw new AccessDeniedException("Principal no presente");
@@ -436,100 +802,53 @@ public class StockService {
             int page,
             int size,
             String sort,
-            Integer days
+            Integer days,
+            String cursor,
+            boolean withTotal,
+            FieldSet fields
     ) {
         UUID buyerId = resolveUserIdFromPrincipal(principal);
 
-        // Configuración de paginación
-        Pageable pageable = RequestUtil.createPageable(page, size, sort, "soldAt", MAX_PAGE_SIZE);
-
-        // MEJORA 1: Ahora filtramos los tickets OPEN/IN_PROGRESS únicamente del usuario actual
-        List<Long> excludedStockIds = stockRepository.findStockIdsByStatusInAndBuyerId(
-                List.of("OPEN", "IN_PROGRESS"), buyerId
-        );
-
         List<String> allowedStatuses = List.of("sold", "RENEWED");
         Instant limitDate = (days != null) ? Instant.now().plus(days, ChronoUnit.DAYS) : null;
 
-        // MEJORA 2: Usamos Specification para resolver la Query dinámica (Filtro 'q' incluido aquí)
+        // Specification para la query dinámica: excluye stocks con tickets activos y aplica el filtro 'q'
         Specification<StockEntity> spec = StockSpecification.getPurchasesSpec(
-                buyerId, allowedStatuses, excludedStockIds, limitDate, q
+                buyerId, allowedStatuses, limitDate, q
         );
 
-        // Ejecuta una sola consulta óptima con count estricto para la paginación
-        Page<StockEntity> p = stockRepository.findAll(spec, pageable);
-
-        // ==========================================
-        // El resto de tu código (Pasos 4, 5, 6 y 7) permanece EXACTAMENTE IGUAL
-        // ya que 'p' sigue siendo un Page<StockEntity>
-        // ==========================================
-
-        // 4) Provider enrichment (Batch Processing)
-        Set<UUID> providerIds = p.stream()
-                .map(StockEntity::getProduct)
-                .filter(Objects::nonNull)
-                .map(ProductEntity::getProviderId)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
-
-        final Map<UUID, UserEntity> providersById = providerIds.isEmpty()
-                ? Collections.emptyMap()
-                : userRepository.findAllById(providerIds).stream()
-                .filter(Objects::nonNull)
-                .collect(Collectors.toMap(UserEntity::getId, Function.identity()));
-
-        // 5) Obtener stockIds de la página resultante
-        List<Long> pageStockIds = p.stream()
-                .map(StockEntity::getId)
-                .collect(Collectors.toList());
-
-        List<SupportTicketEntity> resolvedTickets = pageStockIds.isEmpty()
-                ? Collections.emptyList()
-                : supportTicketRepository.findByStockIdInAndStatusIn(pageStockIds, List.of("RESOLVED"));
-
-        // 6) Mapear stockId -> ticket preferido
-        Map<Long, SupportTicketEntity> ticketByStockId = resolvedTickets.stream()
-                .collect(Collectors.groupingBy(
-                        t -> t.getStock().getId(),
-                        Collectors.collectingAndThen(
-                                Collectors.maxBy(Comparator.comparing(
-                                        t -> t.getResolvedAt() != null ? t.getResolvedAt() : t.getUpdatedAt()
-                                )),
-                                opt -> opt.orElse(null)
-                        )
-                ));
-
-        // 7) Transformar StockEntity a StockResponse
-        Page<StockResponse> mapped = p.map(stock -> {
-            StockResponse dto = stockBuilder.toStockResponse(stock);
-
-            ProductEntity prod = stock.getProduct();
-            if (prod != null && prod.getProviderId() != null) {
-                UserEntity prov = providersById.get(prod.getProviderId());
-                if (prov != null) {
-                    dto.setProviderName(prov.getUsername());
-                    dto.setProviderPhone(prov.getPhone());
-                }
-            }
+        // Modo cursor: orden fijo (soldAt, id), sin COUNT y sin OFFSET
+        if (RequestUtil.isCursorMode(cursor)) {
+            KeysetCursor after = RequestUtil.parseCursor(cursor);
+            int safeSize = RequestUtil.safeSize(size, MAX_PAGE_SIZE);
+            Specification<StockEntity> keysetSpec = spec.and(after == null
+                    ? StockSpecification.soldBefore(KeysetCursor.START_AT, KeysetCursor.START_LONG_ID)
+                    : StockSpecification.soldBefore(after.at(), after.idAsLong()));
+
+            List<StockEntity> rows = stockRepository.findBy(keysetSpec, query -> query
+                    .project("product", "buyer") // mismo plan de carga que StockEntity.LISTING_GRAPH
+                    .sortBy(Sort.by(Sort.Direction.DESC, "soldAt").and(Sort.by(Sort.Direction.DESC, "id")))
+                    .limit(safeSize + 1)
+                    .all());
+
+            Long total = withTotal
+                    ? approximateCountService.get("purchases:" + buyerId + ":" + q + ":" + days,
+                            () -> stockRepository.count(spec))
+                    : null;
+            return PaginationUtil.toKeysetResponse(rows, safeSize,
+                    stock -> KeysetCursor.of(stock.getSoldAt().toInstant(), stock.getId()),
+                    rows -> stockEnrichmentLoader.withProvidersAndSupport(rows, fields), total);
+        }
 
-            SupportTicketEntity ticket = ticketByStockId.get(stock.getId());
-            if (ticket != null) {
-                dto.setSupportId(ticket.getId());
-                dto.setSupportType(ticket.getIssueType());
-                dto.setSupportStatus(ticket.getStatus());
-                dto.setSupportCreatedAt(ticket.getCreatedAt());
-                dto.setSupportUpdatedAt(ticket.getUpdatedAt());
-                dto.setSupportResolvedAt(ticket.getResolvedAt());
-                dto.setSupportResolutionNote(
-                        stock.getResolutionNote() != null ? stock.getResolutionNote() : ticket.getResolutionNote()
-                );
-            }
+        // Configuración de paginación
+        Pageable pageable = RequestUtil.createPageable(page, size, sort, "soldAt", MAX_PAGE_SIZE);
 
-            return dto;
-        });
+        // Ejecuta una sola consulta óptima con count estricto para la paginación
+        Page<StockEntity> p = stockRepository.findAll(spec, pageable);
 
-        return toPagedResponse(mapped);
+        return toPagedResponse(new PageImpl<>(stockEnrichmentLoader.withProvidersAndSupport(p.getContent(), fields), pageable, p.getTotalElements()));
     }
+
     /**
      * Método auxiliar para encapsular la lógica de consulta a BD
      */
@@ -566,13 +885,42 @@ public class StockService {
             int page,
             int size,
             String sort,
-            Integer days
+            Integer days,
+            String cursor,
+            boolean withTotal,
+            FieldSet fields
     ) {
         UUID providerId = resolveUserIdFromPrincipal(principal);
 
         UserEntity provider = userRepository.findById(providerId)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Provider not found"));
 
+        // Modo cursor (solo el listado normal; el filtro por vencimiento sigue paginando por offset)
+        if (RequestUtil.isCursorMode(cursor) && (days == null || days <= 0)) {
+            KeysetCursor after = RequestUtil.parseCursor(cursor);
+            int safeSize = RequestUtil.safeSize(size, MAX_PAGE_SIZE);
+            String term = RequestUtil.emptyToNull(q);
+
+            List<StockEntity> rows = stockRepository.findSalesByProviderIdKeyset(providerId, term,
+                    Timestamp.from(after == null ? KeysetCursor.START_AT : after.at()),
+                    after == null ? KeysetCursor.START_LONG_ID : after.idAsLong(),
+                    RequestUtil.keysetPageable(safeSize, MAX_PAGE_SIZE));
+
+            Long total = withTotal
+                    ? approximateCountService.get("provider-sales:" + providerId + ":" + term,
+                            () -> stockRepository.findSalesByProviderIdPaged(providerId, term, PageRequest.of(0, 1)).getTotalElements())
+                    : null;
+            return PaginationUtil.toKeysetResponse(rows, safeSize,
+                    stock -> KeysetCursor.of(stock.getSoldAt().toInstant(), stock.getId()),
+                    stocks -> stocks.stream().map(stock -> {
+                        StockResponse res = stockBuilder.toStockResponse(stock, fields);
+                        res.setProviderName(provider.getUsername());
+                        res.setProviderPhone(provider.getPhone());
+                        return res;
+                    }).collect(Collectors.toList()),
+                    total);
+        }
+
         // El Pageable SIEMPRE debe ser el último parámetro que usemos en el repository
         Pageable pageable = RequestUtil.createPageable(page, size, sort, "soldAt", MAX_PAGE_SIZE);
 
@@ -594,7 +942,7 @@ public class StockService {
         }
 
         Page<StockResponse> mapped = p.map(stock -> {
-            StockResponse res = stockBuilder.toStockResponse(stock);
+            StockResponse res = stockBuilder.toStockResponse(stock, fields);
             res.setProviderName(provider.getUsername());
             res.setProviderPhone(provider.getPhone());
             return res;
@@ -608,9 +956,32 @@ public class StockService {
      * Solo accesible por admin (se valida con el principal).
      */
     @Transactional(readOnly = true)
-    public PagedResponse<StockResponse> listAllSoldStocks(Principal principal, String q, int page, int size, String sort) {
+    public PagedResponse<StockResponse> listAllSoldStocks(Principal principal, String q, int page, int size, String sort,
+                                                          String cursor, boolean withTotal, FieldSet fields) {
         validateActorIsAdmin(principal);
 
+        List<String> statuses = List.of("sold", "REFUND", "refund_confirmed", "requested", "support", "RENEWED");
+
+        // Modo cursor: orden (soldAt, id) como el listado normal, sin COUNT ni OFFSET
+        if (RequestUtil.isCursorMode(cursor)) {
+            KeysetCursor after = RequestUtil.parseCursor(cursor);
+            int safeSize = RequestUtil.safeSize(size, MAX_PAGE_SIZE);
+            String term = RequestUtil.emptyToNull(q);
+
+            List<StockEntity> rows = stockRepository.findByStatusInAndSearchKeyset(statuses, term,
+                    Timestamp.from(after == null ? KeysetCursor.START_AT : after.at()),
+                    after == null ? KeysetCursor.START_LONG_ID : after.idAsLong(),
+                    RequestUtil.keysetPageable(safeSize, MAX_PAGE_SIZE));
+
+            Long total = withTotal
+                    ? approximateCountService.get("admin-sold:" + term,
+                            () -> stockRepository.findByStatusInAndSearch(statuses, term, PageRequest.of(0, 1)).getTotalElements())
+                    : null;
+            return PaginationUtil.toKeysetResponse(rows, safeSize,
+                    stock -> KeysetCursor.of(stock.getSoldAt().toInstant(), stock.getId()),
+                    rows -> stockEnrichmentLoader.withProviders(rows, fields), total);
+        }
+
         int safeSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
         int safePage = Math.max(0, page);
 
@@ -621,49 +992,12 @@ public class StockService {
         Pageable pageable = PageRequest.of(safePage, safeSize, sortObj);
 
         final String searchQuery = (q == null || q.isBlank()) ? null : q.trim();
-        List<String> statuses = List.of("sold", "REFUND", "refund_confirmed", "requested", "support", "RENEWED");
 
         // Ejecuta la query (ahora con countQuery correcta)
         Page<StockEntity> pageResult = stockRepository.findByStatusInAndSearch(statuses, searchQuery, pageable);
 
-        // Obtener la lista de contenido para evitar llamadas repetitivas
-        List<StockEntity> stockList = pageResult.getContent();
-
-        // 4. Mapeo de Proveedores
-        List<UUID> providerIds = stockList.stream()
-                .map(StockEntity::getProduct)
-                .filter(Objects::nonNull)
-                .map(ProductEntity::getProviderId)
-                .filter(Objects::nonNull)
-                .distinct()
-                .collect(Collectors.toList());
-
-        final Map<UUID, UserEntity> providerMap;
-        if (providerIds.isEmpty()) {
-            providerMap = Collections.emptyMap();
-        } else {
-            List<UserEntity> providers = userRepository.findByIdIn(providerIds);
-            providerMap = providers.stream().collect(Collectors.toMap(UserEntity::getId, Function.identity()));
-        }
-
-        // 5. Mapeo de Entidad a Respuesta
-        List<StockResponse> content = stockList.stream()
-                .map(stock -> {
-                    StockResponse resp = stockBuilder.toStockResponse(stock);
-                    ProductEntity prod = stock.getProduct();
-                    if (prod != null && prod.getProviderId() != null) {
-                        UserEntity provider = providerMap.get(prod.getProviderId());
-                        if (provider != null) {
-                            resp.setProviderName(provider.getUsername());
-                            resp.setProviderPhone(provider.getPhone());
-                        }
-                    }
-                    return resp;
-                })
-                .collect(Collectors.toList());
-
         // 6. Retorno de la Respuesta Paginada correcta
-        Page<StockResponse> mappedPage = new PageImpl<>(content, pageable, pageResult.getTotalElements());
+        Page<StockResponse> mappedPage = new PageImpl<>(stockEnrichmentLoader.withProviders(pageResult.getContent(), fields), pageable, pageResult.getTotalElements());
         return toPagedResponse(mappedPage);
     }
 
@@ -747,18 +1081,9 @@ public class StockService {
             return Page.empty(pageable);
         }
 
-        // 2) mapear cada stock -> StockResponse
-        return stocksPage.map(s -> {
-            StockResponse resp = stockBuilder.toStockResponse(s);
-
-            UUID providerId = s.getProduct().getProviderId();
-            userRepository.findById(providerId).ifPresent(provider -> {
-                resp.setProviderName(provider.getUsername());
-                resp.setProviderPhone(provider.getPhone());
-            });
-
-            return resp;
-        });
+        // 2) mapear con los proveedores de la página en una sola consulta
+        return new PageImpl<>(stockEnrichmentLoader.withProviders(stocksPage.getContent(), FieldSet.ALL),
+                pageable, stocksPage.getTotalElements());
     }
 
 
@@ -790,82 +1115,12 @@ public class StockService {
 
         Pageable pageable = RequestUtil.createPageable(page, size, sort, "soldAt", MAX_PAGE_SIZE);
 
-        // 1) obtener stockIds que tienen tickets activos (OPEN, IN_PROGRESS)
-        List<Long> excludedStockIds = stockRepository.findStockIdsByStatusIn(List.of("OPEN", "IN_PROGRESS"));
-
-        Page<StockEntity> p;
-
-        // 2) traer SOLO stocks del cliente con estado REFUND
-        if (excludedStockIds == null || excludedStockIds.isEmpty()) {
-            p = stockRepository.findByBuyerIdAndStatus(buyerId, "REFUND", pageable);
-        } else {
-            p = stockRepository.findByBuyerIdAndStatusAndIdNotIn(buyerId, "REFUND", excludedStockIds, pageable);
-        }
-
-        // 3) provider enrichment
-        Set<UUID> providerIds = p.stream()
-                .map(StockEntity::getProduct)
-                .filter(Objects::nonNull)
-                .map(ProductEntity::getProviderId)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
+        // 1) traer SOLO stocks del cliente con estado REFUND y sin tickets activos (OPEN, IN_PROGRESS)
+        Page<StockEntity> p = stockRepository.findByBuyerIdAndStatusAndOpenTicketCount(buyerId, "REFUND", 0, pageable);
 
-        final Map<UUID, UserEntity> providersById = providerIds.isEmpty()
-                ? Collections.emptyMap()
-                : userRepository.findAllById(providerIds).stream()
-                .filter(Objects::nonNull)
-                .collect(Collectors.toMap(UserEntity::getId, Function.identity()));
-
-        // 4) tickets cerrados (RESOLVED) asociados a los stocks
-        List<Long> pageStockIds = p.stream()
-                .map(StockEntity::getId)
-                .collect(Collectors.toList());
-
-        List<SupportTicketEntity> resolvedTickets = pageStockIds.isEmpty()
-                ? Collections.emptyList()
-                : supportTicketRepository.findByStockIdInAndStatusIn(pageStockIds, List.of("RESOLVED"));
-
-        Map<Long, SupportTicketEntity> ticketByStockId = resolvedTickets.stream()
-                .collect(Collectors.groupingBy(
-                        t -> t.getStock().getId(),
-                        Collectors.collectingAndThen(
-                                Collectors.maxBy(Comparator.comparing(
-                                        t -> t.getResolvedAt() != null ? t.getResolvedAt() : t.getUpdatedAt()
-                                )),
-                                opt -> opt.orElse(null)
-                        )
-                ));
-
-        // 5) mapear cada stock a StockResponse y enriquecer
-        return p.map(stock -> {
-            StockResponse dto = stockBuilder.toStockResponse(stock);
-
-            // provider enrichment
-            ProductEntity prod = stock.getProduct();
-            if (prod != null && prod.getProviderId() != null) {
-                UserEntity prov = providersById.get(prod.getProviderId());
-                if (prov != null) {
-                    dto.setProviderName(prov.getUsername());
-                    dto.setProviderPhone(prov.getPhone());
-                }
-            }
-
-            // soporte
-            SupportTicketEntity ticket = ticketByStockId.get(stock.getId());
-            if (ticket != null) {
-                dto.setSupportId(ticket.getId());
-                dto.setSupportType(ticket.getIssueType());
-                dto.setSupportStatus(ticket.getStatus());
-                dto.setSupportCreatedAt(ticket.getCreatedAt());
-                dto.setSupportUpdatedAt(ticket.getUpdatedAt());
-                dto.setSupportResolvedAt(ticket.getResolvedAt());
-                dto.setSupportResolutionNote(
-                        stock.getResolutionNote() != null ? stock.getResolutionNote() : ticket.getResolutionNote()
-                );
-            }
-
-            return dto;
-        });
+        // 2) proveedor y último ticket resuelto de toda la página en bloque
+        return new PageImpl<>(stockEnrichmentLoader.withProvidersAndSupport(p.getContent(), FieldSet.ALL),
+                pageable, p.getTotalElements());
     }
 
     @Transactional
@@ -920,9 +1175,7 @@ public class StockService {
             throw new ResponseStatusException(HttpStatus.FORBIDDEN, "La cuenta del usuario no está activa");
         }
 
-        if (!passwordEncoder.matches(req.getPassword(), buyer.getPasswordHash())) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "La contraseña ingresada es incorrecta");
-        }
+        verifyPurchaseCredentials(buyerId, req.getPassword(), req.getPurchaseToken());
 
         // 2. Obtener y validar Stock y Producto
         StockEntity stock = stockRepository.findById(stockId)
@@ -942,8 +1195,8 @@ public class StockService {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "El producto no tiene precio de renovación definido");
         }
 
-        // 3. Validar Saldo del Comprador
-        if (buyer.getBalance().compareTo(renewalPrice) < 0) {
+        // 3. Validar Saldo del Comprador (incluye franjas no consolidadas; el débito del ledger es el definitivo)
+        if (balanceLedger.balanceOf(buyer).compareTo(renewalPrice) < 0) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "Saldo insuficiente");
         }
 
@@ -951,9 +1204,10 @@ public class StockService {
         UserEntity provider = userRepository.findById(product.getProviderId())
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Proveedor no encontrado"));
 
-        // 5. MOVIMIENTO DE SALDOS (Atomicidad)
-        buyer.setBalance(buyer.getBalance().subtract(renewalPrice));
-        provider.setBalance(provider.getBalance().add(renewalPrice));
+        // 5. MOVIMIENTO DE SALDOS (Atomicidad: débito condicional + abono, en orden de id)
+        balanceLedger.apply(
+                BalanceLedger.Movement.debit(buyer.getId(), renewalPrice),
+                BalanceLedger.Movement.credit(provider.getId(), renewalPrice));
 
         // 6. REGISTRO DE TRANSACCIONES (Auditoría)
         Instant now = Instant.now();
@@ -993,10 +1247,9 @@ public class StockService {
         // Actualizamos el purchasePrice histórico acumulado
         stock.setPurchasePrice(stock.getPurchasePrice().add(renewalPrice));
 
-        // Guardamos cambios en todas las entidades involucradas
-        userRepository.save(buyer);
-        userRepository.save(provider);
+        // Los saldos ya se movieron con el ledger; solo resta persistir el stock
         stockRepository.save(stock);
+        popularityService.recordSale(product.getId());
 
         return stockBuilder.toStockResponse(stock);
     }
@@ -1008,16 +1261,18 @@ public class StockService {
 
         Page<StockEntity> stocks = stockRepository.findByProductProviderIdAndStatus(providerId, "RENEWED", pageable);
 
+        // Suma y número de renovaciones en 'approved' (reembolsables), en una consulta para toda la página
+        Map<Long, StockEnrichmentLoader.RenewalTotals> renewalsByStockId =
+                stockEnrichmentLoader.renewalTotals(stocks.getContent(), "approved");
+
         return stocks.map(s -> {
             StockResponse resp = stockBuilder.toStockResponse(s);
 
-            // Suma solo lo que está en 'approved' (reembolsable)
-            BigDecimal realRefund = walletTransactionRepository
-                    .findByStockIdAndTypeAndStatus(s.getId(), "renewal", "approved")
-                    .stream().map(tx -> tx.getAmount().abs())
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
+            StockEnrichmentLoader.RenewalTotals renewals =
+                    renewalsByStockId.getOrDefault(s.getId(), StockEnrichmentLoader.RenewalTotals.NONE);
 
-            resp.setRefund(realRefund);
+            resp.setRefund(renewals.amount());
+            resp.setPendingRenewals(renewals.count());
             resp.setProviderName(provider.getUsername());
             resp.setProviderPhone(provider.getPhone());
             return resp;
@@ -1031,10 +1286,8 @@ public class StockService {
         UserEntity provider = userRepository.findById(providerId)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Proveedor no encontrado"));
 
-        Instant now = Instant.now();
-
-        // 🚩 Opción 1: usar repository con query paginada
-        Page<StockEntity> stocks = stockRepository.findExpiredStocks(providerId, now, pageable);
+        // Vencidos ya marcados por el motor de vencimiento: consulta sobre el índice parcial de expired
+        Page<StockEntity> stocks = stockRepository.findExpiredStocks(providerId, pageable);
 
         return stocks.map(s -> {
             StockResponse resp = stockBuilder.toStockResponse(s);
@@ -1148,9 +1401,10 @@ public class StockService {
             UserEntity provider = userRepository.findById(providerId)
                     .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Proveedor no encontrado"));
 
-            // A. Ajuste de balances (Devolver dinero al cliente)
-            buyer.setBalance(buyer.getBalance().add(totalToRefund));
-            provider.setBalance(provider.getBalance().subtract(totalToRefund));
+            // A. Ajuste de balances (Devolver dinero al cliente; el proveedor puede quedar en negativo)
+            balanceLedger.apply(
+                    BalanceLedger.Movement.credit(buyer.getId(), totalToRefund),
+                    BalanceLedger.Movement.forcedDebit(provider.getId(), totalToRefund));
 
             // B. Marcar transacciones originales como anuladas
             pendingRenewals.forEach(tx -> tx.setStatus("extornado"));
@@ -1168,8 +1422,6 @@ public class StockService {
                     .exchangeApplied(false)
                     .build());
 
-            userRepository.save(buyer);
-            userRepository.save(provider);
             walletTransactionRepository.saveAll(pendingRenewals);
         }
 
@@ -1211,6 +1463,7 @@ public class StockService {
 
             // 5. Cambio de estado
             stock.setStatus("active");
+            stockAvailabilityService.markAvailable(stock.getProduct().getId());
         }
 
         // 6. Persistencia (Hibernate detecta los cambios y hace el update al final de la transacción)
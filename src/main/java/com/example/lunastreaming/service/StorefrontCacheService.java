@@ -0,0 +1,180 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.ProductHomeResponse;
+import com.example.lunastreaming.util.TransactionCallbacks;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Caché en memoria de las páginas del storefront (listado global, búsqueda y por categoría).
+ * Acotada por número de páginas (LRU) y por TTL. Se invalida con precisión:
+ * <ul>
+ *   <li>cambio de un producto (publicar, renovar, editar, borrar): páginas de su categoría y listados globales;</li>
+ *   <li>cambio de disponibilidad de stock: solo las páginas que contienen ese producto;</li>
+ *   <li>nueva tasa de cambio o desactivación masiva: todo.</li>
+ * </ul>
+ * Dentro de una transacción la invalidación se aplica tras el commit, y una página calculada
+ * mientras ocurría una invalidación no se guarda (contador de generación).
+ */
+@Service
+@Slf4j
+public class StorefrontCacheService {
+
+    private static final String SCOPE_ALL = "all";
+    private static final String SCOPE_SEARCH = "q:";
+    private static final String SCOPE_CATEGORY = "cat:";
+
+    private record Key(String scope, int page, int size, String sort) {}
+
+    private record Entry(Page<ProductHomeResponse> page, long expiresAt, Set<UUID> productIds) {}
+
+    private final boolean enabled;
+    private final long ttlMs;
+    private final int maxPages;
+
+    // Orden de acceso: el primero es el menos usado recientemente. Protegido por synchronized(pages)
+    private final LinkedHashMap<Key, Entry> pages;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public StorefrontCacheService(@Value("${app.storefront.cache.enabled:true}") boolean enabled,
+                                  @Value("${app.storefront.cache.ttl-seconds:10}") long ttlSeconds,
+                                  @Value("${app.storefront.cache.max-pages:500}") int maxPages) {
+        this.enabled = enabled;
+        this.ttlMs = Math.max(1, ttlSeconds) * 1000L;
+        this.maxPages = Math.max(1, maxPages);
+        this.pages = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > StorefrontCacheService.this.maxPages) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public Page<ProductHomeResponse> getAll(Pageable pageable, Supplier<Page<ProductHomeResponse>> loader) {
+        return get(SCOPE_ALL, pageable, loader);
+    }
+
+    public Page<ProductHomeResponse> getSearch(String query, Pageable pageable, Supplier<Page<ProductHomeResponse>> loader) {
+        return get(SCOPE_SEARCH + query.trim().toLowerCase(), pageable, loader);
+    }
+
+    public Page<ProductHomeResponse> getCategory(Integer categoryId, Pageable pageable, Supplier<Page<ProductHomeResponse>> loader) {
+        return get(SCOPE_CATEGORY + categoryId, pageable, loader);
+    }
+
+    private Page<ProductHomeResponse> get(String scope, Pageable pageable, Supplier<Page<ProductHomeResponse>> loader) {
+        if (!enabled || pageable.isUnpaged()) {
+            return loader.get();
+        }
+
+        Key key = new Key(scope, pageable.getPageNumber(), pageable.getPageSize(), pageable.getSort().toString());
+        long now = System.currentTimeMillis();
+        synchronized (pages) {
+            Entry entry = pages.get(key);
+            if (entry != null) {
+                if (entry.expiresAt() > now) {
+                    hits.incrementAndGet();
+                    return entry.page();
+                }
+                pages.remove(key);
+                expirations.incrementAndGet();
+            }
+        }
+
+        misses.incrementAndGet();
+        long startGeneration = generation.get();
+        Page<ProductHomeResponse> page = loader.get();
+
+        Set<UUID> productIds = new HashSet<>();
+        for (ProductHomeResponse r : page.getContent()) {
+            if (r.getProduct() != null && r.getProduct().getId() != null) {
+                productIds.add(r.getProduct().getId());
+            }
+        }
+
+        synchronized (pages) {
+            // Si hubo una invalidación mientras se calculaba, la página puede estar desfasada
+            if (generation.get() == startGeneration) {
+                pages.put(key, new Entry(page, System.currentTimeMillis() + ttlMs, productIds));
+            }
+        }
+        return page;
+    }
+
+    // Cambio de stock disponible de un producto: solo las páginas que lo muestran
+    public void invalidateProduct(UUID productId) {
+        if (productId == null) {
+            return;
+        }
+        TransactionCallbacks.afterCommit(() -> removeIf(e -> e.getValue().productIds().contains(productId)));
+    }
+
+    public void invalidateProducts(Collection<UUID> productIds) {
+        if (productIds == null || productIds.isEmpty()) {
+            return;
+        }
+        Set<UUID> ids = new HashSet<>(productIds);
+        TransactionCallbacks.afterCommit(() -> removeIf(e -> !Collections.disjoint(e.getValue().productIds(), ids)));
+    }
+
+    // Alta, baja o edición de un producto: cambia el contenido y el orden de su categoría y de los listados globales
+    public void invalidateCategory(Integer categoryId) {
+        String categoryScope = SCOPE_CATEGORY + categoryId;
+        TransactionCallbacks.afterCommit(() -> removeIf(e -> {
+            String scope = e.getKey().scope();
+            return !scope.startsWith(SCOPE_CATEGORY) || scope.equals(categoryScope);
+        }));
+    }
+
+    public void invalidateAll() {
+        TransactionCallbacks.afterCommit(() -> removeIf(e -> true));
+    }
+
+    private void removeIf(Predicate<Map.Entry<Key, Entry>> predicate) {
+        generation.incrementAndGet();
+        synchronized (pages) {
+            int before = pages.size();
+            pages.entrySet().removeIf(predicate);
+            invalidations.addAndGet(before - pages.size());
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        long h = hits.get();
+        long m = misses.get();
+        int size;
+        synchronized (pages) {
+            size = pages.size();
+        }
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("size", size);
+        metrics.put("maxPages", maxPages);
+        metrics.put("ttlSeconds", ttlMs / 1000);
+        metrics.put("hits", h);
+        metrics.put("misses", m);
+        metrics.put("hitRate", h + m == 0 ? 0.0 : (double) h / (h + m));
+        metrics.put("evictions", evictions.get());
+        metrics.put("expirations", expirations.get());
+        metrics.put("invalidations", invalidations.get());
+        return metrics;
+    }
+}
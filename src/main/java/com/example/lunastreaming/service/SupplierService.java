@@ -1,10 +1,8 @@
 package com.example.lunastreaming.service;
 
 import com.example.lunastreaming.model.ProviderProfileEntity;
-import com.example.lunastreaming.model.SettingEntity;
 import com.example.lunastreaming.model.UserEntity;
 import com.example.lunastreaming.model.WalletTransaction;
-import com.example.lunastreaming.repository.SettingRepository;
 import com.example.lunastreaming.repository.UserRepository;
 import com.example.lunastreaming.repository.WalletTransactionRepository;
 import lombok.RequiredArgsConstructor;
@@ -20,9 +18,10 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class SupplierService {
 
-    private final SettingRepository settingRepository;
+    private final SettingService settingService;
     private final UserRepository userRepository;
     private final WalletTransactionRepository walletTransactionRepository;
+    private final BalanceLedger balanceLedger;
 
     @Transactional
     public void transfer(UUID supplierId, UUID sellerId, BigDecimal amount) {
@@ -31,10 +30,10 @@ public class SupplierService {
         }
 
         // 1. Obtener descuento desde settings
-        Optional<SettingEntity> discountSetting = settingRepository.findByKeyIgnoreCase("supplierTransferDiscount");
+        Optional<BigDecimal> discountSetting = settingService.findNumber("supplierTransferDiscount");
         BigDecimal discountFraction = BigDecimal.ZERO;
         if (discountSetting.isPresent()) {
-            BigDecimal raw = discountSetting.get().getValueNum();
+            BigDecimal raw = discountSetting.get();
             discountFraction = raw.compareTo(BigDecimal.ONE) > 0
                     ? raw.divide(BigDecimal.valueOf(100))
                     : raw;
@@ -55,12 +54,10 @@ public class SupplierService {
             throw new IllegalStateException("El proveedor no tiene permisos para realizar transferencias");
         }
 
-        // 4. Actualizar balances
-        supplier.setBalance(supplier.getBalance().subtract(totalToDebit));
-        seller.setBalance(seller.getBalance().add(amount));
-
-        userRepository.save(supplier);
-        userRepository.save(seller);
+        // 4. Actualizar balances: débito condicional al proveedor y abono al vendedor, en orden de id
+        balanceLedger.apply(
+                BalanceLedger.Movement.debit(supplier.getId(), totalToDebit),
+                BalanceLedger.Movement.credit(seller.getId(), amount));
 
         // 5. Registrar transacciones wallet
         Instant now = Instant.now();
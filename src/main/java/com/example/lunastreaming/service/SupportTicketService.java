@@ -4,7 +4,6 @@ import com.example.lunastreaming.builder.StockBuilder;
 import com.example.lunastreaming.model.*;
 import com.example.lunastreaming.repository.StockRepository;
 import com.example.lunastreaming.repository.SupportTicketRepository;
-import com.example.lunastreaming.repository.UserRepository;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -14,7 +13,6 @@ import org.springframework.transaction.annotation.Transactional;
 import java.security.Principal;
 import java.time.Instant;
 import java.util.*;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Service
@@ -24,7 +22,7 @@ public class SupportTicketService {
     private final SupportTicketRepository supportTicketRepository;
     private final StockRepository stockRepository;
     private final StockBuilder stockBuilder;
-    private final UserRepository userRepository;
+    private final StockEnrichmentLoader stockEnrichmentLoader;
 
     // Crear ticket
     public SupportTicketDTO create(SupportTicketDTO dto) {
@@ -154,26 +152,22 @@ public class SupportTicketService {
             return Page.empty(pageable);
         }
 
-        // 2) mapear cada ticket -> StockResponse
-        return ticketsPage.map(ticket -> {
-            // aquí puedes usar tu método auxiliar mapTicketToStockResponse
-            // o replicar la lógica de mapTicketsToStockResponses para un solo ticket
-            StockResponse dto = stockBuilder.toStockResponse(ticket.getStock());
-
-            dto.setSupportId(ticket.getId());
-            dto.setSupportType(ticket.getIssueType());
-            dto.setSupportStatus(ticket.getStatus());
-            dto.setSupportCreatedAt(ticket.getCreatedAt());
-            dto.setSupportUpdatedAt(ticket.getUpdatedAt());
-            dto.setSupportResolvedAt(ticket.getResolvedAt());
-            dto.setSupportResolutionNote(ticket.getResolutionNote());
+        // 2) stocks y proveedores de toda la página en bloque
+        Map<Long, StockEntity> stocksById = stockEnrichmentLoader.stocksById(stockIdsOf(ticketsPage.getContent()));
+        Map<UUID, UserEntity> providersById = stockEnrichmentLoader.users(ticketsPage.stream()
+                .map(SupportTicketEntity::getProviderId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet()));
 
-            UUID providerId = ticket.getProviderId();
-            userRepository.findById(providerId).ifPresent(provider -> {
-                dto.setProviderName(provider.getUsername());
-                dto.setProviderPhone(provider.getPhone());
-            });
+        // 3) mapear cada ticket -> StockResponse
+        return ticketsPage.map(ticket -> {
+            StockEntity stock = stocksById.get(ticket.getStock().getId());
+            StockResponse dto = stock != null ? stockBuilder.toStockResponse(stock) : new StockResponse();
 
+            StockEnrichmentLoader.applySupport(dto, ticket, null);
+            if (ticket.getProviderId() != null) {
+                StockEnrichmentLoader.applyProvider(dto, providersById.get(ticket.getProviderId()));
+            }
 
             return dto;
         });
@@ -192,120 +186,35 @@ public class SupportTicketService {
             return Page.empty(pageable);
         }
 
-        // 2) reunir stockIds de todos los tickets de esta página
-        Set<Long> stockIds = ticketsPage.getContent().stream()
-                .map(t -> t.getStock() != null ? t.getStock().getId() : null)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
-
-        Map<Long, StockEntity> stocksById = stockIds.isEmpty()
-                ? Collections.emptyMap()
-                : stockRepository.findAllById(stockIds).stream()
-                .collect(Collectors.toMap(StockEntity::getId, Function.identity()));
-
-        // 3) reunir providerIds para enrichment
-        Set<UUID> providerIds = stocksById.values().stream()
-                .map(StockEntity::getProduct)
-                .filter(Objects::nonNull)
-                .map(ProductEntity::getProviderId)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
-
-        Map<UUID, UserEntity> providersById = providerIds.isEmpty()
-                ? Collections.emptyMap()
-                : userRepository.findAllById(providerIds).stream()
-                .collect(Collectors.toMap(UserEntity::getId, Function.identity()));
+        // 2) stocks de la página y sus proveedores, una consulta cada uno
+        Map<Long, StockEntity> stocksById = stockEnrichmentLoader.stocksById(stockIdsOf(ticketsPage.getContent()));
+        Map<UUID, UserEntity> providersById = stockEnrichmentLoader.providers(stocksById.values());
 
-        // 4) mapear cada ticket -> StockResponse usando el método auxiliar
+        // 3) mapear cada ticket -> StockResponse usando el método auxiliar
         return ticketsPage.map(ticket -> mapTicketToStockResponse(ticket, stocksById, providersById));
     }
 
     // Helper común: mapea lista de tickets a lista de StockResponse enriquecidos
     private List<StockResponse> mapTicketsToStockResponses(List<SupportTicketEntity> tickets) {
-        // 2) reunir stockIds
-        Set<Long> stockIds = tickets.stream()
-                .map(t -> t.getStock() != null ? t.getStock().getId() : null)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
-
-        // 3) cargar stocks en batch
-        Map<Long, StockEntity> stocksById = stockIds.isEmpty()
-                ? Collections.emptyMap()
-                : stockRepository.findAllById(stockIds).stream()
-                .collect(Collectors.toMap(StockEntity::getId, Function.identity()));
-
-        // 4) reunir providerIds para enrichment (opcional)
-        Set<UUID> providerIds = stocksById.values().stream()
-                .map(StockEntity::getProduct)
-                .filter(Objects::nonNull)
-                .map(ProductEntity::getProviderId)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
+        Map<Long, StockEntity> stocksById = stockEnrichmentLoader.stocksById(stockIdsOf(tickets));
+        Map<UUID, UserEntity> providersById = stockEnrichmentLoader.providers(stocksById.values());
 
-        Map<UUID, UserEntity> providersById = providerIds.isEmpty()
-                ? Collections.emptyMap()
-                : userRepository.findAllById(providerIds).stream()
-                .collect(Collectors.toMap(UserEntity::getId, Function.identity()));
-
-        // 5) mapear cada ticket -> StockResponse (usar stockBuilder.toStockResponse)
+        // ordenados por createdAt desc
         return tickets.stream()
-                // opcional: ordenar por createdAt desc
                 .sorted(Comparator.comparing(
                         t -> t.getCreatedAt() != null ? t.getCreatedAt() : Instant.EPOCH,
                         Comparator.reverseOrder()))
-                .map(ticket -> {
-                    StockEntity stock = ticket.getStock() != null ? stocksById.get(ticket.getStock().getId()) : null;
-
-                    // si no existe stock (inconsistencia), devolver un StockResponse mínimo o saltarlo
-                    if (stock == null) {
-                        // crear un StockResponse mínimo con info del ticket
-                        return StockResponse.builder()
-                                .id(null)
-                                .productId(null)
-                                .productName(null)
-                                .supportId(ticket.getId())
-                                .supportType(ticket.getIssueType())
-                                .supportStatus(ticket.getStatus())
-                                .supportCreatedAt(ticket.getCreatedAt())
-                                .supportUpdatedAt(ticket.getUpdatedAt())
-                                .supportResolvedAt(ticket.getResolvedAt())
-                                .supportResolutionNote(ticket.getResolutionNote())
-                                .build();
-                    }
-
-                    // convertir stock a DTO
-                    StockResponse dto = stockBuilder.toStockResponse(stock);
-
-                    // enrichment provider
-                    ProductEntity prod = stock.getProduct();
-                    if (prod != null && prod.getProviderId() != null) {
-                        UserEntity prov = providersById.get(prod.getProviderId());
-                        if (prov != null) {
-                            dto.setProviderName(prov.getUsername());
-                            dto.setProviderPhone(prov.getPhone());
-                        }
-                    }
-
-                    // rellenar campos de soporte en StockResponse (los que añadiste)
-                    dto.setSupportId(ticket.getId());
-                    dto.setSupportType(ticket.getIssueType());
-                    dto.setSupportStatus(ticket.getStatus());
-                    dto.setSupportCreatedAt(ticket.getCreatedAt());
-                    dto.setSupportUpdatedAt(ticket.getUpdatedAt());
-                    dto.setSupportResolvedAt(ticket.getResolvedAt());
-                    // preferir resolutionNote en stock si lo guardas ahí, sino usar ticket
-                    dto.setSupportResolutionNote(
-                            stock.getResolutionNote() != null ? stock.getResolutionNote() : ticket.getResolutionNote()
-                    );
-
-                    // Opcional: enmascarar password si no quieres exponerlo en la lista
-                    // dto.setPassword(mask(dto.getPassword()));
-
-                    return dto;
-                })
+                .map(ticket -> mapTicketToStockResponse(ticket, stocksById, providersById))
                 .collect(Collectors.toList());
     }
 
+    private static Set<Long> stockIdsOf(List<SupportTicketEntity> tickets) {
+        return tickets.stream()
+                .map(t -> t.getStock() != null ? t.getStock().getId() : null)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+    }
+
 
     @Transactional(readOnly = true)
     public Page<StockResponse> listClientInProcessAsStocks(Principal principal, Pageable pageable) {
@@ -319,18 +228,15 @@ public class SupportTicketService {
             return Page.empty(pageable);
         }
 
-        // 2) mapear cada ticket -> StockResponse
+        // 2) stocks de la página en una sola consulta
+        Map<Long, StockEntity> stocksById = stockEnrichmentLoader.stocksById(stockIdsOf(ticketsPage.getContent()));
+
+        // 3) mapear cada ticket -> StockResponse
         return ticketsPage.map(ticket -> {
-            StockEntity stock = ticket.getStock();
+            StockEntity stock = ticket.getStock() != null ? stocksById.get(ticket.getStock().getId()) : null;
             StockResponse dto = (stock != null) ? stockBuilder.toStockResponse(stock) : new StockResponse();
 
-            dto.setSupportId(ticket.getId());
-            dto.setSupportType(ticket.getIssueType());
-            dto.setSupportStatus(ticket.getStatus());
-            dto.setSupportCreatedAt(ticket.getCreatedAt());
-            dto.setSupportUpdatedAt(ticket.getUpdatedAt());
-            dto.setSupportResolvedAt(ticket.getResolvedAt());
-            dto.setSupportResolutionNote(ticket.getResolutionNote());
+            StockEnrichmentLoader.applySupport(dto, ticket, null);
 
             return dto;
         });
@@ -389,22 +295,9 @@ public class SupportTicketService {
 
         ProductEntity prod = stock.getProduct();
         if (prod != null && prod.getProviderId() != null) {
-            UserEntity prov = providersById.get(prod.getProviderId());
-            if (prov != null) {
-                dto.setProviderName(prov.getUsername());
-                dto.setProviderPhone(prov.getPhone());
-            }
+            StockEnrichmentLoader.applyProvider(dto, providersById.get(prod.getProviderId()));
         }
-
-        dto.setSupportId(ticket.getId());
-        dto.setSupportType(ticket.getIssueType());
-        dto.setSupportStatus(ticket.getStatus());
-        dto.setSupportCreatedAt(ticket.getCreatedAt());
-        dto.setSupportUpdatedAt(ticket.getUpdatedAt());
-        dto.setSupportResolvedAt(ticket.getResolvedAt());
-        dto.setSupportResolutionNote(
-                stock.getResolutionNote() != null ? stock.getResolutionNote() : ticket.getResolutionNote()
-        );
+        StockEnrichmentLoader.applySupport(dto, ticket, stock);
 
         return dto;
     }
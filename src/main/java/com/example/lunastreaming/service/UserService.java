@@ -36,8 +36,9 @@ public class UserService {
     private final TokenBlacklistRepository tokenBlacklistRepository;
     private final ProviderProfileRepository providerProfileRepository;
     private final SellerProfileRepository sellerProfileRepository;
-    private final SettingRepository settingRepository;
+    private final SettingService settingService;
     private final WalletTransactionRepository walletTransactionRepository;
+    private final BalanceLedger balanceLedger;
 
     private final int DEFAULT_LIMIT = 25;
     private final int MAX_LIMIT = 100;
@@ -53,9 +54,7 @@ public class UserService {
         if (req.phone != null && userRepository.findByPhone(req.phone).isPresent()) {
             throw new IllegalArgumentException("phone_taken");
         }
-        boolean autoActivateSellers = settingRepository.findByKeyIgnoreCase("auto_activate_sellers")
-                .map(setting -> Boolean.TRUE.equals(setting.getValueBool()))
-                .orElse(false);
+        boolean autoActivateSellers = settingService.getBoolean("auto_activate_sellers", false);
 
         // 2. Lógica de estado inicial
         String initialStatus = "inactive";
@@ -102,7 +101,7 @@ public class UserService {
                     });
         }
 
-        return UserMapper.toSummary(userEntity);
+        return UserMapper.toSummary(userEntity, balanceLedger.balanceOf(userEntity));
     }
 
     public LoginResponse login(LoginRequest req, String rolExpected) {
@@ -183,7 +182,7 @@ public class UserService {
         // Usamos el nuevo método del repositorio que maneja search si no es null
         Page<UserEntity> users = userRepository.findAllByRolesAndSearch(rolesToFilter, search, pageable);
 
-        return users.map(UserMapper::toSummary);
+        return users.map(u -> UserMapper.toSummary(u, balanceLedger.balanceOf(u)));
     }
 
     public Page<UserSummary> listByRole(String role, int page, int size) {
@@ -200,7 +199,7 @@ public class UserService {
             users = userRepository.findByRole(role, pageable);
         }
 
-        return users.map(UserMapper::toSummary);
+        return users.map(u -> UserMapper.toSummary(u, balanceLedger.balanceOf(u)));
     }
 
 
@@ -211,7 +210,7 @@ public class UserService {
                 .orElseThrow(() -> new IllegalArgumentException("user_not_found"));
         u.setStatus(newStatus);
         userRepository.save(u);
-        return UserMapper.toSummary(u);
+        return UserMapper.toSummary(u, balanceLedger.balanceOf(u));
     }
 
     //LOGOUT
@@ -297,7 +296,7 @@ public class UserService {
                 .username(user.getUsername())
                 .phone(user.getPhone())
                 .role(user.getRole())
-                .balance(user.getBalance())
+                .balance(balanceLedger.balanceOf(user))
                 .salesCount(user.getSalesCount())
                 .status(user.getStatus())
                 .referralsCount(user.getReferralsCount())
@@ -462,19 +461,16 @@ public class UserService {
         }
 
         // 3. Obtener el costo del cambio desde la configuración
-        SettingEntity costSetting = settingRepository.findByKeyIgnoreCase("cost_change_phone")
+        BigDecimal cost = settingService.findNumber("cost_change_phone")
                 .orElseThrow(() -> new IllegalStateException("cost_setting_not_found"));
 
-        BigDecimal cost = costSetting.getValueNum();
-
-        // 4. Verificar si el usuario tiene saldo suficiente
-        // Asumiendo que userEntity tiene un campo 'balance'
-        if (user.getBalance().compareTo(cost) < 0) {
+        // 4. Verificar si el usuario tiene saldo suficiente (incluye franjas no consolidadas)
+        if (balanceLedger.balanceOf(user).compareTo(cost) < 0) {
             throw new IllegalStateException("insufficient_balance");
         }
 
-        // 5. Aplicar el descuento y actualizar teléfono
-        user.setBalance(user.getBalance().subtract(cost));
+        // 5. Aplicar el descuento (débito atómico) y actualizar teléfono
+        balanceLedger.debit(user, cost);
         user.setPhone(request.getNewPhone());
         userRepository.save(user);
 
@@ -507,18 +503,16 @@ public class UserService {
         }
 
         // 3. Obtener el costo del servicio
-        SettingEntity costSetting = settingRepository.findByKeyIgnoreCase("cost_change_password")
+        BigDecimal cost = settingService.findNumber("cost_change_password")
                 .orElseThrow(() -> new IllegalStateException("cost_setting_not_found"));
 
-        BigDecimal cost = costSetting.getValueNum();
-
-        // 4. Verificar saldo suficiente
-        if (user.getBalance().compareTo(cost) < 0) {
+        // 4. Verificar saldo suficiente (incluye franjas no consolidadas)
+        if (balanceLedger.balanceOf(user).compareTo(cost) < 0) {
             throw new IllegalStateException("insufficient_balance");
         }
 
-        // 5. Aplicar cambios
-        user.setBalance(user.getBalance().subtract(cost));
+        // 5. Aplicar cambios (débito atómico del costo)
+        balanceLedger.debit(user, cost);
         user.setPasswordHash(passwordEncoder.encode(request.getNewPassword()));
         user.setPasswordAlgo("argon2id");
         userRepository.save(user);
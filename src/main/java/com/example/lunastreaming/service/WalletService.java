@@ -5,8 +5,10 @@ import com.example.lunastreaming.builder.WalletBuilder;
 import com.example.lunastreaming.model.*;
 import com.example.lunastreaming.model.admin.TransactionResponseDto;
 import com.example.lunastreaming.repository.PaymentMethodRepository;
-import com.example.lunastreaming.repository.SettingRepository;
+import com.example.lunastreaming.util.KeysetCursor;
 import com.example.lunastreaming.util.LunaException;
+import com.example.lunastreaming.util.PaginationUtil;
+import com.example.lunastreaming.util.RequestUtil;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
@@ -42,10 +44,13 @@ public class WalletService {
 
     private final SettingService settingService;
 
-    private final SettingRepository settingRepository;
 
     private final PaymentMethodRepository paymentMethodRepository;
 
+    private final BalanceLedger balanceLedger;
+
+    private final ApproximateCountService approximateCountService;
+
     private static final int PAGE_SIZE = 100;
 
     private static final ZoneId PERU_ZONE = ZoneId.of("America/Lima");
@@ -124,21 +129,20 @@ public class WalletService {
         }
 
         UserEntity user = userWallet.getUser();
-        BigDecimal userBalance = user.getBalance() != null ? user.getBalance() : BigDecimal.ZERO;
+        BigDecimal userBalance = balanceLedger.balanceOf(user);
         BigDecimal txAmount = userWallet.getAmount() != null ? userWallet.getAmount() : BigDecimal.ZERO;
 
         switch (userWallet.getType() == null ? "" : userWallet.getType().toLowerCase()) {
             case "recharge":
-                user.setBalance(userBalance.add(txAmount));
-                userRepository.save(user);
+                balanceLedger.credit(user, txAmount);
                 break;
 
             case "withdrawal":
                 if (userBalance.compareTo(txAmount) < 0) {
                     throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Saldo insuficiente");
                 }
-                user.setBalance(userBalance.subtract(txAmount));
-                userRepository.save(user);
+                // El débito condicional del ledger cubre el caso de saldo consumido en paralelo
+                balanceLedger.debit(user, txAmount);
                 break;
 
             default:
@@ -192,8 +196,7 @@ public class WalletService {
                 .findByStatusAndUserRoleAndTypes("pending", role, types);
 
         // Obtenemos el valor numérico directamente
-        BigDecimal discountFactor = settingRepository.findByKeyIgnoreCase("supplierWithdrawalDiscount")
-                .map(SettingEntity::getValueNum)
+        BigDecimal discountFactor = settingService.findNumber("supplierWithdrawalDiscount")
                 .orElse(BigDecimal.ZERO);
 
         return pendings.stream()
@@ -317,6 +320,44 @@ public class WalletService {
         return pageTx.map(this::toResponse);
     }
 
+    /**
+     * Variante por cursor (keyset) del listado de transacciones del admin: orden (createdAt, id),
+     * sin OFFSET ni COUNT; el total aproximado (cacheado) solo si se pide.
+     */
+    public PagedResponse<WalletTransactionResponse> listAllTransactionsForAdminKeyset(
+            Principal principal, String cursor, int size, String search, boolean withTotal) {
+        UUID adminId = UUID.fromString(principal.getName());
+        UserEntity admin = userRepository.findById(adminId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Admin no encontrado"));
+
+        if (!isAdmin(admin)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Acceso restringido a administradores");
+        }
+
+        KeysetCursor after = RequestUtil.parseCursor(cursor);
+        int safeSize = RequestUtil.safeSize(size, PAGE_SIZE);
+        List<String> allowedTypes = Arrays.asList("recharge", "withdrawal", "chargeback", "transfer", "publish", "phone_change", "password_change", "renewal", "refund");
+        String excludedStatus = "cancelled";
+
+        List<WalletTransaction> rows = walletTransactionRepository.findAdminTransactionsKeyset(
+                search,
+                allowedTypes,
+                excludedStatus,
+                after == null ? KeysetCursor.START_AT : after.at(),
+                after == null ? KeysetCursor.START_UUID_ID : after.idAsUuid(),
+                RequestUtil.keysetPageable(safeSize, PAGE_SIZE)
+        );
+
+        Long total = withTotal
+                ? approximateCountService.get("admin-transactions:" + search,
+                        () -> walletTransactionRepository.findAdminTransactions(search, allowedTypes, excludedStatus, PageRequest.of(0, 1)).getTotalElements())
+                : null;
+        return PaginationUtil.toKeysetResponse(rows, safeSize,
+                tx -> KeysetCursor.of(tx.getCreatedAt(), tx.getId()),
+                txs -> txs.stream().map(this::toResponse).toList(),
+                total);
+    }
+
 
 
     private WalletTransactionResponse toResponse(WalletTransaction tx) {
@@ -381,8 +422,8 @@ public class WalletService {
         BigDecimal feeUnits = amountUnits.multiply(supplierDiscountFraction).setScale(2, RoundingMode.HALF_UP);
         BigDecimal realUnits = amountUnits.subtract(feeUnits).max(BigDecimal.ZERO);
 
-        // 3) validación de saldo (asume mismo currency / unidades)
-        BigDecimal userBalance = user.getBalance() != null ? user.getBalance() : BigDecimal.ZERO;
+        // 3) validación de saldo (asume mismo currency / unidades; incluye franjas de cuentas calientes)
+        BigDecimal userBalance = balanceLedger.balanceOf(user);
         if (userBalance.compareTo(amountUnits) < 0) {
             throw new IllegalArgumentException("Saldo insuficiente para retirar");
         }
@@ -409,22 +450,43 @@ public class WalletService {
         tx = walletTransactionRepository.save(tx);
 
         // 7) mapear y devolver DTO con realAmount en unidades (ej. 930.00)
+        return toWithdrawalResponse(tx, user);
+    }
+
+    private WalletTransactionResponse toWithdrawalResponse(WalletTransaction tx, UserEntity user) {
         return WalletTransactionResponse.builder()
                 .id(tx.getId())
                 .userName(user.getUsername())
                 .productName(null)
                 .productCode(null)
-                .amount(amountUnits)
+                .amount(tx.getAmount())
                 .currency(tx.getCurrency())
                 .type(tx.getType())
                 .date(tx.getCreatedAt())
                 .status(tx.getStatus())
                 .description(tx.getDescription())
                 .approvedBy(tx.getApprovedBy() != null ? tx.getApprovedBy().getUsername() : null)
-                .realAmount(realUnits)   // unidades: 930.00
+                .realAmount(tx.getRealAmount())   // unidades: 930.00
                 .build();
     }
 
+    /**
+     * Transacción propia del usuario (para repetir la respuesta de una recarga idempotente).
+     */
+    public WalletTransaction getUserTransaction(UUID txId, UUID userId) {
+        WalletTransaction tx = walletTransactionRepository.findById(txId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Transacción no encontrada"));
+        if (tx.getUser() == null || !userId.equals(tx.getUser().getId())) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "No autorizado");
+        }
+        return tx;
+    }
+
+    public WalletTransactionResponse getWithdrawalResponse(UUID txId, UUID userId) {
+        WalletTransaction tx = getUserTransaction(txId, userId);
+        return toWithdrawalResponse(tx, tx.getUser());
+    }
+
     /**
      * Devuelve transacciones de wallet cuyo campo "type" coincide con el valor provisto.
      * @param type tipo de transacción (por ejemplo "sale")
@@ -485,11 +547,8 @@ public class WalletService {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Monto inválido para extorno");
         }
 
-        // 5) lock y validar saldo del owner antes de descontar
-        UserEntity ownerLocked = userRepository.findByIdForUpdate(owner.getId())
-                .orElseThrow(() -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Usuario no disponible para actualización"));
-
-        BigDecimal ownerBalance = ownerLocked.getBalance() != null ? ownerLocked.getBalance() : BigDecimal.ZERO;
+        // 5) validar saldo del owner antes de descontar (el débito del ledger lo confirma atómicamente)
+        BigDecimal ownerBalance = balanceLedger.balanceOf(owner);
         if (ownerBalance.compareTo(txAmount) < 0) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Saldo insuficiente para realizar el extorno");
         }
@@ -499,7 +558,7 @@ public class WalletService {
 
         // Decide convención: aquí guardamos amount negativo para reflejar débito en el historial.
         WalletTransaction extornoTx = WalletTransaction.builder()
-                .user(ownerLocked)
+                .user(owner)
                 .type("chargeback")                 // nuevo tipo para extorno
                 .amount(txAmount.negate())            // monto negativo para indicar débito
                 .currency(original.getCurrency() != null ? original.getCurrency() : "USD")
@@ -514,9 +573,7 @@ public class WalletService {
         WalletTransaction savedExtorno = walletTransactionRepository.save(extornoTx);
 
         // 7) actualizar balance del owner (descontar)
-        BigDecimal newOwnerBalance = ownerBalance.subtract(txAmount).setScale(2, RoundingMode.HALF_UP);
-        ownerLocked.setBalance(newOwnerBalance);
-        userRepository.save(ownerLocked);
+        balanceLedger.debit(owner, txAmount.setScale(2, RoundingMode.HALF_UP));
 
         // 8) actualizar transacción original: marcar como extornado
         original.setStatus("extornado"); // o el estado que prefieras: "reversed", "extorno"// si tienes campo updatedAt
@@ -536,9 +593,8 @@ public class WalletService {
         UserEntity user = userRepository.findById(userId)
                 .orElseThrow(() -> new RuntimeException("Usuario no encontrado"));
 
-        // 2. Actualizar el balance (Incremento directo)
-        user.setBalance(user.getBalance().add(amount));
-        userRepository.save(user);
+        // 2. Actualizar el balance (Incremento atómico)
+        balanceLedger.credit(user, amount);
 
         // 3. Registrar la transacción en la Wallet
         WalletTransaction depositTx = WalletTransaction.builder()
@@ -0,0 +1,134 @@
+package com.example.lunastreaming.util;
+
+import com.example.lunastreaming.model.PagedResponse;
+import org.springframework.data.domain.Page;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Campos pedidos con el parámetro fields= de los listados (ej: "productName,status,endAt").
+ * Sin parámetro se devuelven todos los campos, como siempre. Los campos anidados se piden con punto
+ * ("product.name,availableStockCount"); un nombre sin punto incluye el objeto anidado completo.
+ * Los builders consultan includes() para no calcular lo que no se pidió, y project()/select()
+ * copian en un mapa solo los campos pedidos para no serializar el resto. "id" se devuelve siempre.
+ */
+public final class FieldSet {
+
+    public static final FieldSet ALL = new FieldSet(null);
+
+    // null = todos los campos
+    private final Set<String> names;
+
+    private FieldSet(Set<String> names) {
+        this.names = names;
+    }
+
+    public static FieldSet parse(String fields) {
+        if (fields == null || fields.isBlank()) {
+            return ALL;
+        }
+        Set<String> names = new HashSet<>();
+        for (String part : fields.split(",")) {
+            String name = part.trim();
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names.isEmpty() ? ALL : new FieldSet(Collections.unmodifiableSet(names));
+    }
+
+    public boolean isAll() {
+        return names == null;
+    }
+
+    // true si se pidió el campo o alguno de sus subcampos
+    public boolean includes(String name) {
+        if (names == null || names.contains(name)) {
+            return true;
+        }
+        String prefix = name + ".";
+        for (String n : names) {
+            if (n.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean includesAny(String... candidates) {
+        for (String name : candidates) {
+            if (includes(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Campos pedidos dentro de un objeto anidado: "product.name" -> "name".
+     * Si se pidió el objeto completo (o no hay filtro) devuelve ALL.
+     */
+    public FieldSet nested(String name) {
+        if (names == null || names.contains(name)) {
+            return ALL;
+        }
+        String prefix = name + ".";
+        Set<String> sub = new HashSet<>();
+        for (String n : names) {
+            if (n.startsWith(prefix)) {
+                sub.add(n.substring(prefix.length()));
+            }
+        }
+        return new FieldSet(Collections.unmodifiableSet(sub));
+    }
+
+    /**
+     * Copia los campos pedidos del dto, en el orden del catálogo (nombre JSON -> getter).
+     */
+    public <T> Map<String, Object> project(T dto, Map<String, Function<T, Object>> catalog) {
+        if (dto == null) {
+            return null;
+        }
+        Map<String, Object> out = new LinkedHashMap<>();
+        for (Map.Entry<String, Function<T, Object>> field : catalog.entrySet()) {
+            String name = field.getKey();
+            if ("id".equals(name) || includes(name)) {
+                out.put(name, field.getValue().apply(dto));
+            }
+        }
+        return out;
+    }
+
+    // Sin filtro devuelve la lista tal cual (mismo JSON de siempre)
+    public <T> List<?> select(List<T> dtos, Map<String, Function<T, Object>> catalog) {
+        if (isAll()) {
+            return dtos;
+        }
+        List<Map<String, Object>> out = new ArrayList<>(dtos.size());
+        for (T dto : dtos) {
+            out.add(project(dto, catalog));
+        }
+        return out;
+    }
+
+    public <T> Page<?> select(Page<T> page, Map<String, Function<T, Object>> catalog) {
+        return isAll() ? page : page.map(dto -> project(dto, catalog));
+    }
+
+    public <T> PagedResponse<?> select(PagedResponse<T> page, Map<String, Function<T, Object>> catalog) {
+        if (isAll()) {
+            return page;
+        }
+        return PagedResponse.<Object>builder()
+                .content(new ArrayList<>(select(page.getContent(), catalog)))
+                .page(page.getPage())
+                .size(page.getSize())
+                .totalElements(page.getTotalElements())
+                .totalPages(page.getTotalPages())
+                .nextCursor(page.getNextCursor())
+                .hasNext(page.getHasNext())
+                .approximateTotal(page.getApproximateTotal())
+                .build();
+    }
+}
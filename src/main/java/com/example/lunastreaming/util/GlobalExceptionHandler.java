@@ -23,8 +23,8 @@ public class GlobalExceptionHandler {
         String msg = ex.getReason() != null ? ex.getReason() : ex.getMessage();
         body.put("message", msg);
 
-        // Usar getStatusCode en lugar de getStatus
-        return ResponseEntity.status(ex.getStatusCode()).body(body);
+        // Usar getStatusCode en lugar de getStatus; se propagan cabeceras como Retry-After
+        return ResponseEntity.status(ex.getStatusCode()).headers(ex.getHeaders()).body(body);
     }
 
 
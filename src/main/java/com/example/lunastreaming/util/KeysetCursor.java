@@ -0,0 +1,60 @@
+package com.example.lunastreaming.util;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Posición de una paginación por cursor (keyset): el último (fecha, id) entregado.
+ * Viaja al cliente como una cadena opaca en base64url; el cliente solo la devuelve tal cual.
+ */
+public record KeysetCursor(Instant at, String id) {
+
+    // Posición anterior a cualquier fila (orden descendente): la usan las consultas keyset en la primera página
+    public static final Instant START_AT = Instant.parse("9999-12-31T00:00:00Z");
+    public static final Long START_LONG_ID = Long.MAX_VALUE;
+    public static final UUID START_UUID_ID = new UUID(-1L, -1L);
+
+    public static KeysetCursor of(Instant at, Object id) {
+        return new KeysetCursor(at, String.valueOf(id));
+    }
+
+    public String encode() {
+        String raw = at.getEpochSecond() + "." + at.getNano() + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static KeysetCursor decode(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int bar = raw.indexOf('|');
+            int dot = raw.indexOf('.');
+            if (bar < 0 || dot < 0 || dot > bar) {
+                throw new IllegalArgumentException("Cursor inválido");
+            }
+            Instant at = Instant.ofEpochSecond(Long.parseLong(raw.substring(0, dot)),
+                    Long.parseLong(raw.substring(dot + 1, bar)));
+            return new KeysetCursor(at, raw.substring(bar + 1));
+        } catch (IllegalArgumentException | DateTimeException ex) {
+            throw new IllegalArgumentException("Cursor inválido");
+        }
+    }
+
+    public Long idAsLong() {
+        try {
+            return Long.valueOf(id);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Cursor inválido");
+        }
+    }
+
+    public UUID idAsUuid() {
+        try {
+            return UUID.fromString(id);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Cursor inválido");
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.example.lunastreaming.util;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
 public class LunaException {
     private LunaException() { /* utilitario */ }
 
@@ -22,6 +26,23 @@ public class LunaException {
         public InvalidStateException(String message, Throwable cause) { super(message, cause); }
     }
 
+    // 429 con cabecera Retry-After (segundos), p.ej. cuando la cola de compra de un producto está llena
+    public static class TooManyRequestsException extends ResponseStatusException {
+        private final long retryAfterSeconds;
+
+        public TooManyRequestsException(String message, long retryAfterSeconds) {
+            super(HttpStatus.TOO_MANY_REQUESTS, message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+            return headers;
+        }
+    }
+
     // -----------------------
     // Métodos factory (opcionales)
     // -----------------------
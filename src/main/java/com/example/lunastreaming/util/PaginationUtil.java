@@ -4,6 +4,9 @@ import com.example.lunastreaming.model.PagedResponse;
 import org.springframework.data.domain.Page;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
 /**
  * Helpers para paginación: conversión de Spring Page<T> a PagedResponse<T>.
  */
@@ -31,4 +34,36 @@ public final class PaginationUtil {
                 .build();
     }
 
+    /**
+     * Respuesta de una página keyset. rows trae hasta size + 1 filas (ver RequestUtil.keysetPageable):
+     * la fila extra solo indica que hay más y no se devuelve.
+     * Sin COUNT, totalElements y totalPages van en -1 salvo que se pida el total aproximado.
+     *
+     * @param cursorOf         posición de una fila, para construir nextCursor
+     * @param mapper           conversión de la página completa (permite enriquecer en bloque)
+     * @param approximateTotal total aproximado (cacheado) o null si no se pidió
+     */
+    public static <E, T> PagedResponse<T> toKeysetResponse(List<E> rows, int size,
+                                                           Function<E, KeysetCursor> cursorOf,
+                                                           Function<List<E>, List<T>> mapper,
+                                                           Long approximateTotal) {
+        boolean hasNext = rows.size() > size;
+        List<E> pageRows = hasNext ? rows.subList(0, size) : rows;
+        String nextCursor = hasNext ? cursorOf.apply(pageRows.get(pageRows.size() - 1)).encode() : null;
+
+        long total = approximateTotal != null ? approximateTotal : -1L;
+        int totalPages = approximateTotal != null ? (int) ((approximateTotal + size - 1) / size) : -1;
+
+        return PagedResponse.<T>builder()
+                .content(mapper.apply(pageRows))
+                .page(0)
+                .size(size)
+                .totalElements(total)
+                .totalPages(totalPages)
+                .nextCursor(nextCursor)
+                .hasNext(hasNext)
+                .approximateTotal(approximateTotal != null ? Boolean.TRUE : null)
+                .build();
+    }
+
 }
\ No newline at end of file
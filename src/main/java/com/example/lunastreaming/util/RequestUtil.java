@@ -76,6 +76,32 @@ public final class RequestUtil {
         return Math.min(s, maxSize);
     }
 
+    /**
+     * Modo cursor (keyset): se activa enviando el parámetro cursor, vacío para la primera página.
+     * Sin el parámetro se mantiene la paginación por offset de siempre.
+     */
+    public static boolean isCursorMode(String cursor) {
+        return cursor != null;
+    }
+
+    /**
+     * Decodifica el cursor recibido; null para la primera página (cursor vacío).
+     *
+     * @throws IllegalArgumentException si el cursor no es válido
+     */
+    public static KeysetCursor parseCursor(String cursor) {
+        String c = emptyToNull(cursor);
+        return c == null ? null : KeysetCursor.decode(c);
+    }
+
+    /**
+     * Pageable de una página keyset: siempre la primera, sin orden (lo fija la consulta)
+     * y con una fila extra para saber si hay página siguiente sin ejecutar COUNT.
+     */
+    public static Pageable keysetPageable(int size, int maxSize) {
+        return PageRequest.of(0, safeSize(size, maxSize) + 1);
+    }
+
     /**
      * Convierte una cadena vacía o nula a null, y trim si aplica.
      */
@@ -0,0 +1,362 @@
+package com.example.lunastreaming.util;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * Aplica al arrancar el DDL idempotente que Hibernate (ddl-auto) no sabe generar:
+ * índices parciales, funciones, etc. Cada sentencia debe poder ejecutarse varias veces.
+ * En prod ddl-auto es none: las columnas y tablas nuevas de las entidades también se crean aquí,
+ * siempre antes del índice, trigger o migración que las usa.
+ * Después corre, una sola vez por base, las migraciones de datos de MIGRATIONS.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SchemaInitializer {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    /**
+     * Motor de compra "sql-function": la venta completa en una sola llamada al servidor.
+     * Replica las reglas de StockService.settlePurchase; la contraseña se valida antes en Java.
+     * Errores de negocio con SQLSTATE propio (LS403, LS404, LS409, LS423, LS500) que el servicio traduce a HTTP.
+     * LS404 (agotado) solo tras comprobar sin SKIP LOCKED que no queda stock activo; si lo hay pero está
+     * bloqueado por otras compras, LS423.
+     * Bloquea comprador y proveedor en orden de id (como BalanceLedger.apply) antes de tocar ningún saldo.
+     * Los saldos siguen a BalanceLedger: p_striped_accounts son las cuentas con franjas (app.ledger.striped-accounts).
+     * Su saldo disponible incluye user_balance_stripes y sus abonos van a la franja p_stripe, sin tocar users.
+     * Versionada por nombre: un cambio de firma o de reglas va en una función _v2 nueva. v1 (sin franjas) queda
+     * en las bases existentes para las instancias que aún corren la versión anterior.
+     */
+    static final String PURCHASE_FUNCTION_V2 = """
+            CREATE OR REPLACE FUNCTION luna_purchase_v2(p_buyer_id uuid, p_product_id uuid,
+                                                        p_client_name text, p_client_phone text,
+                                                        p_striped_accounts uuid[], p_stripe integer)
+            RETURNS bigint
+            LANGUAGE plpgsql AS $$
+            DECLARE
+                v_buyer_status  text;
+                v_balance       numeric;
+                v_stock_id      bigint;
+                v_product_name  text;
+                v_price         numeric;
+                v_provider_id   uuid;
+                v_days          integer;
+                v_on_request    boolean;
+                v_now           timestamptz := now();
+            BEGIN
+                SELECT name, sale_price, provider_id, coalesce(days, 0), is_on_request
+                INTO v_product_name, v_price, v_provider_id, v_days, v_on_request
+                FROM products WHERE id = p_product_id;
+
+                -- Comprador y proveedor se bloquean juntos en orden de id, como BalanceLedger.apply: una compra
+                -- no puede cruzarse en deadlock con un reembolso, una transferencia o la compra inversa.
+                -- Un proveedor con franjas no se bloquea: su abono va a una franja, no a su fila de users
+                PERFORM 1 FROM users
+                WHERE id = p_buyer_id
+                   OR (id = v_provider_id AND NOT (v_provider_id = ANY (p_striped_accounts)))
+                ORDER BY id
+                FOR UPDATE;
+
+                SELECT status, balance INTO v_buyer_status, v_balance
+                FROM users WHERE id = p_buyer_id;
+                IF NOT FOUND OR lower(v_buyer_status) <> 'active' THEN
+                    RAISE EXCEPTION 'La cuenta del usuario no está activa' USING ERRCODE = 'LS403';
+                END IF;
+
+                SELECT s.id INTO v_stock_id
+                FROM stock s
+                WHERE s.product_id = p_product_id AND s.status = 'active' AND s.deleted = false
+                ORDER BY s.id LIMIT 1
+                FOR UPDATE SKIP LOCKED;
+                IF v_stock_id IS NULL THEN
+                    IF EXISTS (SELECT 1 FROM stock s
+                               WHERE s.product_id = p_product_id AND s.status = 'active' AND s.deleted = false) THEN
+                        RAISE EXCEPTION 'El stock disponible está siendo comprado en este momento, intenta de nuevo'
+                            USING ERRCODE = 'LS423';
+                    END IF;
+                    RAISE EXCEPTION 'Ya no hay stock disponible para este producto' USING ERRCODE = 'LS404';
+                END IF;
+
+                -- Cuenta con franjas: el saldo disponible incluye los abonos aún no consolidados (BalanceLedger.balanceOf).
+                -- La fila del comprador ya está bloqueada, así que el consolidador no puede mover franjas a mitad de cuenta
+                IF p_buyer_id = ANY (p_striped_accounts) THEN
+                    v_balance := v_balance + (SELECT coalesce(sum(amount), 0) FROM user_balance_stripes
+                                              WHERE user_id = p_buyer_id);
+                END IF;
+                IF v_balance < v_price THEN
+                    RAISE EXCEPTION 'Saldo insuficiente' USING ERRCODE = 'LS409';
+                END IF;
+
+                UPDATE users SET balance = balance - v_price WHERE id = p_buyer_id;
+                INSERT INTO wallet_transactions (id, user_id, type, stock_id, amount, currency, status,
+                                                 created_at, exchange_applied, description)
+                VALUES (gen_random_uuid(), p_buyer_id, 'purchase', v_stock_id, -v_price, 'USD', 'approved',
+                        v_now, false, 'COMPRA: ' || v_product_name || ' (Stock ID: ' || v_stock_id || ')');
+
+                -- Abono al proveedor: a una franja si es cuenta caliente (BalanceLedger.applyStripedDelta)
+                IF v_provider_id = ANY (p_striped_accounts) THEN
+                    PERFORM 1 FROM users WHERE id = v_provider_id;
+                    IF NOT FOUND THEN
+                        RAISE EXCEPTION 'Proveedor no encontrado' USING ERRCODE = 'LS500';
+                    END IF;
+                    INSERT INTO user_balance_stripes (user_id, stripe, amount) VALUES (v_provider_id, p_stripe, v_price)
+                    ON CONFLICT (user_id, stripe) DO UPDATE SET amount = user_balance_stripes.amount + EXCLUDED.amount;
+                ELSE
+                    UPDATE users SET balance = balance + v_price WHERE id = v_provider_id;
+                    IF NOT FOUND THEN
+                        RAISE EXCEPTION 'Proveedor no encontrado' USING ERRCODE = 'LS500';
+                    END IF;
+                END IF;
+                INSERT INTO wallet_transactions (id, user_id, type, stock_id, amount, currency, status,
+                                                 created_at, exchange_applied, description)
+                VALUES (gen_random_uuid(), v_provider_id, 'sale', v_stock_id, v_price, 'USD', 'approved',
+                        v_now, false, 'VENTA: ' || v_product_name || ' (Stock ID: ' || v_stock_id || ')');
+
+                UPDATE stock SET
+                    buyer_id       = p_buyer_id,
+                    client_name    = p_client_name,
+                    client_phone   = p_client_phone,
+                    sold_at        = v_now,
+                    purchase_price = v_price,
+                    reserved_by    = NULL,
+                    reserved_until = NULL,
+                    status         = CASE WHEN v_on_request THEN 'requested' ELSE 'sold' END,
+                    start_at       = CASE WHEN v_on_request THEN NULL ELSE v_now END,
+                    end_at         = CASE WHEN v_on_request OR v_days <= 0 THEN NULL
+                                          ELSE v_now + make_interval(days => v_days) END
+                WHERE id = v_stock_id;
+
+                RETURN v_stock_id;
+            END;
+            $$""";
+
+    /**
+     * Registra en product_stock_count_deltas, en la misma transacción que cualquier cambio de stock
+     * (JPA, consultas nativas, barrido de reservas, luna_purchase_v2, borrado lógico o físico), cuánto cambia
+     * el stock disponible del producto. Solo escribe cuando la fila entra o sale del estado disponible.
+     * Como las franjas de saldo (user_balance_stripes), cada conexión suma en una de 8 filas por producto:
+     * ventas concurrentes del mismo producto no compiten por la fila de products. StockAvailabilityService
+     * consolida las franjas en products.available_stock_count periódicamente.
+     */
+    static final String STOCK_COUNTER_FUNCTION = """
+            CREATE OR REPLACE FUNCTION luna_stock_available_count()
+            RETURNS trigger
+            LANGUAGE plpgsql AS $$
+            DECLARE
+                v_was    boolean := false;
+                v_is     boolean := false;
+                v_stripe smallint := mod(pg_backend_pid(), 8);
+            BEGIN
+                IF TG_OP <> 'INSERT' THEN
+                    v_was := OLD.status = 'active' AND NOT OLD.deleted;
+                END IF;
+                IF TG_OP <> 'DELETE' THEN
+                    v_is := NEW.status = 'active' AND NOT NEW.deleted;
+                END IF;
+
+                IF v_was AND v_is AND OLD.product_id IS NOT DISTINCT FROM NEW.product_id THEN
+                    RETURN NULL;
+                END IF;
+                IF v_was THEN
+                    INSERT INTO product_stock_count_deltas (product_id, stripe, delta)
+                    VALUES (OLD.product_id, v_stripe, -1)
+                    ON CONFLICT (product_id, stripe)
+                    DO UPDATE SET delta = product_stock_count_deltas.delta + EXCLUDED.delta;
+                END IF;
+                IF v_is THEN
+                    INSERT INTO product_stock_count_deltas (product_id, stripe, delta)
+                    VALUES (NEW.product_id, v_stripe, 1)
+                    ON CONFLICT (product_id, stripe)
+                    DO UPDATE SET delta = product_stock_count_deltas.delta + EXCLUDED.delta;
+                END IF;
+                RETURN NULL;
+            END;
+            $$""";
+
+    /**
+     * Mantiene stock.open_ticket_count (tickets OPEN / IN_PROGRESS) en la misma transacción que cualquier
+     * cambio de ticket: alta, resolve/approve, cierre por reembolso y los UPDATE masivos del repositorio.
+     * Los listados de compras y reembolsos filtran open_ticket_count = 0 en vez de una lista NOT IN de ids.
+     */
+    static final String OPEN_TICKET_COUNTER_FUNCTION = """
+            CREATE OR REPLACE FUNCTION luna_stock_open_ticket_count()
+            RETURNS trigger
+            LANGUAGE plpgsql AS $$
+            DECLARE
+                v_was boolean := false;
+                v_is  boolean := false;
+            BEGIN
+                IF TG_OP <> 'INSERT' THEN
+                    v_was := OLD.stock_id IS NOT NULL AND OLD.status IN ('OPEN', 'IN_PROGRESS');
+                END IF;
+                IF TG_OP <> 'DELETE' THEN
+                    v_is := NEW.stock_id IS NOT NULL AND NEW.status IN ('OPEN', 'IN_PROGRESS');
+                END IF;
+
+                IF v_was AND v_is AND OLD.stock_id = NEW.stock_id THEN
+                    RETURN NULL;
+                END IF;
+                IF v_was THEN
+                    UPDATE stock SET open_ticket_count = open_ticket_count - 1
+                    WHERE id = OLD.stock_id;
+                END IF;
+                IF v_is THEN
+                    UPDATE stock SET open_ticket_count = open_ticket_count + 1
+                    WHERE id = NEW.stock_id;
+                END IF;
+                RETURN NULL;
+            END;
+            $$""";
+
+    /**
+     * Recalcula stock.expired cada vez que se escribe end_at (compra, renovación, edición): un endAt futuro
+     * lo desmarca y uno pasado lo marca. El paso del tiempo lo aplica StockExpiryService.
+     */
+    static final String EXPIRED_FUNCTION = """
+            CREATE OR REPLACE FUNCTION luna_stock_expired()
+            RETURNS trigger
+            LANGUAGE plpgsql AS $$
+            BEGIN
+                NEW.expired := NEW.end_at IS NOT NULL AND NEW.end_at <= now();
+                RETURN NEW;
+            END;
+            $$""";
+
+    private static final List<String> STATEMENTS = List.of(
+            // Reserva de la compra en dos fases (StockEntity.reservedBy / reservedUntil)
+            "ALTER TABLE stock ADD COLUMN IF NOT EXISTS reserved_by uuid",
+            "ALTER TABLE stock ADD COLUMN IF NOT EXISTS reserved_until timestamptz",
+            // Stocks disponibles por producto: sirve al reclamo con SKIP LOCKED de la compra
+            "CREATE INDEX IF NOT EXISTS idx_stock_product_active ON stock (product_id, id) " +
+                    "WHERE status = 'active' AND deleted = false",
+            // Reservas pendientes: el barrido de vencidas solo recorre estas filas
+            "CREATE INDEX IF NOT EXISTS idx_stock_reserved_until ON stock (reserved_until) " +
+                    "WHERE status = 'reserved'",
+            // Franjas de saldo de cuentas calientes: los abonos se reparten entre K filas por usuario
+            "CREATE TABLE IF NOT EXISTS user_balance_stripes (" +
+                    "user_id uuid NOT NULL, stripe smallint NOT NULL, amount numeric(19,2) NOT NULL DEFAULT 0, " +
+                    "PRIMARY KEY (user_id, stripe))",
+            PURCHASE_FUNCTION_V2,
+            // Stock disponible por producto, mantenido por trg_stock_available_count (ProductEntity.availableStockCount)
+            "ALTER TABLE products ADD COLUMN IF NOT EXISTS available_stock_count integer NOT NULL DEFAULT 0",
+            // Franjas de cambios pendientes de products.available_stock_count (ver STOCK_COUNTER_FUNCTION)
+            "CREATE TABLE IF NOT EXISTS product_stock_count_deltas (" +
+                    "product_id uuid NOT NULL, stripe smallint NOT NULL, delta integer NOT NULL DEFAULT 0, " +
+                    "PRIMARY KEY (product_id, stripe))",
+            STOCK_COUNTER_FUNCTION,
+            "DO $$ BEGIN " +
+                    "IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'trg_stock_available_count') THEN " +
+                    "CREATE TRIGGER trg_stock_available_count " +
+                    "AFTER INSERT OR DELETE OR UPDATE OF status, deleted, product_id ON stock " +
+                    "FOR EACH ROW EXECUTE FUNCTION luna_stock_available_count(); " +
+                    "END IF; END $$",
+            // Listado del storefront: productos activos por categoría sin ordenar toda la tabla
+            "CREATE INDEX IF NOT EXISTS idx_products_active_category ON products (category_id) " +
+                    "WHERE active = true",
+            // Paginación por cursor (soldAt, id) / (createdAt, id): cada página es un rango del índice
+            "CREATE INDEX IF NOT EXISTS idx_stock_buyer_sold_at ON stock (buyer_id, sold_at DESC, id DESC) " +
+                    "WHERE sold_at IS NOT NULL",
+            "CREATE INDEX IF NOT EXISTS idx_stock_sold_at ON stock (sold_at DESC, id DESC) " +
+                    "WHERE sold_at IS NOT NULL",
+            "CREATE INDEX IF NOT EXISTS idx_wallet_tx_created_at ON wallet_transactions (created_at DESC, id DESC)",
+            // Tickets OPEN / IN_PROGRESS por stock, mantenido por trg_stock_open_ticket_count
+            "ALTER TABLE stock ADD COLUMN IF NOT EXISTS open_ticket_count integer NOT NULL DEFAULT 0",
+            OPEN_TICKET_COUNTER_FUNCTION,
+            "DO $$ BEGIN " +
+                    "IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'trg_stock_open_ticket_count') THEN " +
+                    "CREATE TRIGGER trg_stock_open_ticket_count " +
+                    "AFTER INSERT OR DELETE OR UPDATE OF status, stock_id ON support_tickets " +
+                    "FOR EACH ROW EXECUTE FUNCTION luna_stock_open_ticket_count(); " +
+                    "END IF; END $$",
+            // Compras del cliente sin tickets activos: mismo orden (soldAt, id) que el listado
+            "CREATE INDEX IF NOT EXISTS idx_stock_buyer_sold_at_no_tickets ON stock (buyer_id, sold_at DESC, id DESC) " +
+                    "WHERE sold_at IS NOT NULL AND open_ticket_count = 0",
+            // Stock vencido (end_at pasado), mantenido por trg_stock_expired y StockExpiryService
+            "ALTER TABLE stock ADD COLUMN IF NOT EXISTS expired boolean NOT NULL DEFAULT false",
+            EXPIRED_FUNCTION,
+            "DO $$ BEGIN " +
+                    "IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'trg_stock_expired') THEN " +
+                    "CREATE TRIGGER trg_stock_expired " +
+                    "BEFORE INSERT OR UPDATE OF end_at ON stock " +
+                    "FOR EACH ROW EXECUTE FUNCTION luna_stock_expired(); " +
+                    "END IF; END $$",
+            // Ventana del motor de vencimiento y listados "vence pronto": solo stocks aún vigentes
+            "CREATE INDEX IF NOT EXISTS idx_stock_expiring ON stock (end_at) " +
+                    "WHERE expired = false AND end_at IS NOT NULL",
+            // Pantalla de vencidos del proveedor
+            "CREATE INDEX IF NOT EXISTS idx_stock_expired_product ON stock (product_id, id) " +
+                    "WHERE expired = true",
+            // Claves Idempotency-Key (IdempotencyKeyEntity); la purga recorre created_at
+            "CREATE TABLE IF NOT EXISTS idempotency_keys (" +
+                    "id varchar(300) PRIMARY KEY, user_id uuid NOT NULL, operation varchar(255) NOT NULL, " +
+                    "status varchar(255) NOT NULL, resource_id varchar(255), created_at timestamptz NOT NULL, " +
+                    "completed_at timestamptz)",
+            "CREATE INDEX IF NOT EXISTS idx_idempotency_keys_created_at ON idempotency_keys (created_at)",
+            // Migraciones de datos ya aplicadas (ver MIGRATIONS)
+            "CREATE TABLE IF NOT EXISTS schema_migrations (" +
+                    "id text PRIMARY KEY, applied_at timestamptz NOT NULL DEFAULT now())"
+    );
+
+    private record Migration(String id, List<String> statements) {}
+
+    /**
+     * Correcciones de datos de una sola vez (p. ej. cargar un contador nuevo). Cada una corre en su propia
+     * transacción tras el DDL y queda registrada en schema_migrations, así no vuelve a recorrer tablas
+     * enteras en cada arranque. Las que recalculan contadores bloquean antes la tabla origen en modo SHARE:
+     * las lecturas siguen, pero ninguna escritura concurrente puede quedar fuera del recálculo.
+     */
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration("product-available-stock-count", List.of(
+                    "LOCK TABLE stock IN SHARE MODE",
+                    "DELETE FROM product_stock_count_deltas",
+                    "UPDATE products p SET available_stock_count = coalesce(s.cnt, 0) " +
+                            "FROM products p2 LEFT JOIN (SELECT product_id, count(*) AS cnt FROM stock " +
+                            "WHERE status = 'active' AND deleted = false GROUP BY product_id) s ON s.product_id = p2.id " +
+                            "WHERE p.id = p2.id AND p.available_stock_count <> coalesce(s.cnt, 0)")),
+            new Migration("stock-open-ticket-count", List.of(
+                    "LOCK TABLE support_tickets IN SHARE MODE",
+                    "UPDATE stock s SET open_ticket_count = coalesce(t.cnt, 0) " +
+                            "FROM stock s2 LEFT JOIN (SELECT stock_id, count(*) AS cnt FROM support_tickets " +
+                            "WHERE status IN ('OPEN', 'IN_PROGRESS') GROUP BY stock_id) t ON t.stock_id = s2.id " +
+                            "WHERE s.id = s2.id AND s.open_ticket_count <> coalesce(t.cnt, 0)"))
+    );
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void apply() {
+        for (String sql : STATEMENTS) {
+            try {
+                jdbcTemplate.execute(sql);
+            } catch (Exception e) {
+                log.error("No se pudo aplicar DDL de arranque: {}", sql, e);
+            }
+        }
+        for (Migration migration : MIGRATIONS) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> migrate(migration));
+            } catch (Exception e) {
+                log.error("No se pudo aplicar la migración {}", migration.id(), e);
+            }
+        }
+    }
+
+    // Otra instancia que arranca a la vez espera el commit de la primera en el INSERT y luego la salta
+    private void migrate(Migration migration) {
+        int claimed = jdbcTemplate.update(
+                "INSERT INTO schema_migrations (id) VALUES (?) ON CONFLICT (id) DO NOTHING", migration.id());
+        if (claimed == 0) {
+            return;
+        }
+        migration.statements().forEach(jdbcTemplate::execute);
+        log.info("Migración aplicada: {}", migration.id());
+    }
+}
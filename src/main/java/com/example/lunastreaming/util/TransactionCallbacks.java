@@ -0,0 +1,40 @@
+package com.example.lunastreaming.util;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Acciones que deben ver datos ya confirmados (invalidar cachés, reindexar):
+ * dentro de una transacción se difieren al commit y se descartan si hay rollback.
+ */
+public final class TransactionCallbacks {
+
+    private TransactionCallbacks() { /* util class - no instances */ }
+
+    public static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    // Deshace un efecto en memoria si la transacción se revierte; sin transacción no hay nada que deshacer
+    public static void afterRollback(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_ROLLED_BACK) {
+                        action.run();
+                    }
+                }
+            });
+        }
+    }
+}
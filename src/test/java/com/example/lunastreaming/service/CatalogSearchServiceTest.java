@@ -0,0 +1,92 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.repository.ProductRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Índice en memoria: coincidencia solo por prefijo de token y mantenimiento de postings al reindexar.
+ */
+class CatalogSearchServiceTest {
+
+    private static final UUID NETFLIX = UUID.randomUUID();
+    private static final UUID DISNEY = UUID.randomUUID();
+
+    private ProductRepository productRepository;
+    private CatalogSearchService service;
+
+    @BeforeEach
+    void setUp() {
+        productRepository = mock(ProductRepository.class);
+        when(productRepository.findSearchIndexRows()).thenReturn(rows(
+                row(NETFLIX, "Netflix Premium", "Streaming", "lunaprov", 1),
+                row(DISNEY, "Disney Plus", "Streaming", "netstore", 1)));
+        service = new CatalogSearchService(productRepository);
+        service.rebuild();
+    }
+
+    @Test
+    void matchesTokensByPrefixOnly() {
+        // "net" es prefijo del nombre de NETFLIX y del proveedor de DISNEY; el nombre pesa más
+        assertThat(service.search("net")).containsExactly(NETFLIX, DISNEY);
+        assertThat(service.search("NETF")).containsExactly(NETFLIX);
+        assertThat(service.search("disné")).containsExactly(DISNEY);
+
+        // Subcadenas que no son prefijo de ningún token no coinciden
+        assertThat(service.search("flix")).isEmpty();
+        assertThat(service.search("ney")).isEmpty();
+        assertThat(service.search("emium")).isEmpty();
+    }
+
+    @Test
+    void everyTermMustMatchAPrefix() {
+        assertThat(service.search("net prem")).containsExactly(NETFLIX);
+        assertThat(service.search("stream dis")).containsExactly(DISNEY);
+        assertThat(service.search("net plus x")).isEmpty();
+    }
+
+    @Test
+    void putReplacesThePreviousTokens() {
+        when(productRepository.findSearchIndexRowsByIds(anyCollection()))
+                .thenReturn(rows(row(NETFLIX, "Max Premium", "Streaming", "lunaprov", 1)));
+        service.reindex(NETFLIX);
+
+        assertThat(service.search("netf")).isEmpty();
+        assertThat(service.search("ma")).containsExactly(NETFLIX);
+        // El prefijo compartido sigue llevando al otro producto
+        assertThat(service.search("net")).containsExactly(DISNEY);
+    }
+
+    @Test
+    void removeDropsOnlyTheRemovedProductsPostings() {
+        int termsBefore = (int) service.getMetrics().get("terms");
+
+        when(productRepository.findSearchIndexRowsByIds(anyCollection())).thenReturn(List.of());
+        service.reindex(NETFLIX);
+
+        assertThat(service.search("netf")).isEmpty();
+        assertThat(service.search("prem")).isEmpty();
+        assertThat(service.search("net")).containsExactly(DISNEY);
+        assertThat(service.search("stream")).containsExactly(DISNEY);
+        // "netflix", "premium" y "lunaprov" eran solo suyos; "streaming" lo comparte con DISNEY
+        assertThat((int) service.getMetrics().get("terms")).isEqualTo(termsBefore - 3);
+        assertThat(service.describe(NETFLIX)).isEmpty();
+    }
+
+    private static Object[] row(UUID id, String name, String category, String provider, Integer categoryId) {
+        return new Object[]{id, name, category, provider, categoryId};
+    }
+
+    private static List<Object[]> rows(Object[]... rows) {
+        return new ArrayList<>(List.of(rows));
+    }
+}
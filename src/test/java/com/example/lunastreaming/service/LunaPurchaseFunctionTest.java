@@ -0,0 +1,221 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.repository.StockRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Motor "sql-function" (luna_purchase_v2) frente al motor JPA: la misma compra deja los mismos saldos,
+ * transacciones de billetera y estado del stock, también con cuentas con franjas. Cada rechazo de la
+ * función usa su SQLSTATE propio y se traduce a la misma respuesta HTTP que el motor JPA.
+ */
+@TestPropertySource(properties = "app.ledger.striped-accounts=" + LunaPurchaseFunctionTest.STRIPED_ACCOUNTS)
+class LunaPurchaseFunctionTest extends PostgresIntegrationTest {
+
+    private static final String JPA_BUYER = "6c1f2a0e-5d4b-4c3a-9e8f-000000000001";
+    private static final String JPA_PROVIDER = "6c1f2a0e-5d4b-4c3a-9e8f-000000000002";
+    private static final String FUNCTION_BUYER = "6c1f2a0e-5d4b-4c3a-9e8f-000000000003";
+    private static final String FUNCTION_PROVIDER = "6c1f2a0e-5d4b-4c3a-9e8f-000000000004";
+    static final String STRIPED_ACCOUNTS = JPA_BUYER + "," + JPA_PROVIDER + "," + FUNCTION_BUYER + "," + FUNCTION_PROVIDER;
+
+    private static final BigDecimal PRICE = new BigDecimal("12.50");
+    private static final int DAYS = 30;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private StockRepository stockRepository;
+
+    @Autowired
+    private BalanceLedger balanceLedger;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @AfterEach
+    void restoreEngine() {
+        useEngine("jpa");
+    }
+
+    @Test
+    void functionMatchesJpaPurchase() {
+        Sale jpa = purchase("jpa", insertUser("seller", new BigDecimal("100.00")), insertUser("provider", BigDecimal.ZERO));
+        Sale function = purchase("sql-function", insertUser("seller", new BigDecimal("100.00")), insertUser("provider", BigDecimal.ZERO));
+
+        assertSameOutcome(jpa, function);
+        assertThat(balanceOf(function.buyerId())).isEqualByComparingTo("87.50");
+        assertThat(balanceOf(function.providerId())).isEqualByComparingTo("12.50");
+    }
+
+    @Test
+    void functionMatchesJpaPurchaseOnStripedAccounts() {
+        Sale jpa = purchase("jpa", stripedBuyer(JPA_BUYER), insertUser(UUID.fromString(JPA_PROVIDER), "provider", BigDecimal.ZERO, "active"));
+        Sale function = purchase("sql-function", stripedBuyer(FUNCTION_BUYER),
+                insertUser(UUID.fromString(FUNCTION_PROVIDER), "provider", BigDecimal.ZERO, "active"));
+
+        assertSameOutcome(jpa, function);
+        // El saldo del comprador solo alcanza sumando sus franjas; el abono del proveedor va a una franja
+        assertThat(effectiveBalanceOf(function.buyerId())).isEqualByComparingTo("12.50");
+        assertThat(effectiveBalanceOf(function.providerId())).isEqualByComparingTo("12.50");
+    }
+
+    @Test
+    void inactiveBuyerRaisesLS403() {
+        UUID buyerId = insertUser(UUID.randomUUID(), "seller", new BigDecimal("100.00"), "blocked");
+        UUID productId = insertProduct(insertUser("provider", BigDecimal.ZERO), PRICE, DAYS);
+        insertStocks(productId, 1);
+
+        assertRejected(buyerId, productId, "LS403", HttpStatus.FORBIDDEN);
+    }
+
+    @Test
+    void noActiveStockRaisesLS404() {
+        UUID buyerId = insertUser("seller", new BigDecimal("100.00"));
+        UUID productId = insertProduct(insertUser("provider", BigDecimal.ZERO), PRICE, DAYS);
+
+        assertRejected(buyerId, productId, "LS404", HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    void stockLockedByAnotherPurchaseRaisesLS423() throws InterruptedException {
+        UUID buyerId = insertUser("seller", new BigDecimal("100.00"));
+        UUID productId = insertProduct(insertUser("provider", BigDecimal.ZERO), PRICE, DAYS);
+        Long stockId = insertStocks(productId, 1).getFirst();
+
+        // Otra transacción tiene la única fila tomada: la función no debe responder "agotado"
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.queryForObject("SELECT id FROM stock WHERE id = ? FOR UPDATE", Long.class, stockId);
+            locked.countDown();
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        holder.start();
+        try {
+            assertThat(locked.await(30, TimeUnit.SECONDS)).isTrue();
+            assertRejected(buyerId, productId, "LS423", HttpStatus.CONFLICT);
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+    }
+
+    @Test
+    void insufficientBalanceRaisesLS409() {
+        UUID buyerId = insertUser("seller", new BigDecimal("5.00"));
+        UUID productId = insertProduct(insertUser("provider", BigDecimal.ZERO), PRICE, DAYS);
+        Long stockId = insertStocks(productId, 1).getFirst();
+
+        assertRejected(buyerId, productId, "LS409", HttpStatus.CONFLICT);
+        // La transacción revierte: ni saldo ni stock cambian
+        assertThat(balanceOf(buyerId)).isEqualByComparingTo("5.00");
+        assertThat(jdbcTemplate.queryForObject("SELECT status FROM stock WHERE id = ?", String.class, stockId))
+                .isEqualTo("active");
+    }
+
+    @Test
+    void missingProviderRaisesLS500() {
+        UUID buyerId = insertUser("seller", new BigDecimal("100.00"));
+        UUID providerId = insertUser("provider", BigDecimal.ZERO);
+        UUID productId = insertProduct(providerId, PRICE, DAYS);
+        insertStocks(productId, 1);
+        // Proveedor borrado sin pasar por la FK de products, para llegar al abono sin fila que actualizar
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.execute("SET LOCAL session_replication_role = replica");
+            jdbcTemplate.update("DELETE FROM users WHERE id = ?", providerId);
+        });
+
+        assertRejected(buyerId, productId, "LS500", HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    private record Sale(UUID buyerId, UUID providerId, Long stockId) {}
+
+    private Sale purchase(String engine, UUID buyerId, UUID providerId) {
+        UUID productId = insertProduct(providerId, PRICE, DAYS);
+        insertStocks(productId, 1);
+        useEngine(engine);
+        Long stockId = stockService.purchaseProduct(productId, purchaseRequest(), principal(buyerId)).getId();
+        return new Sale(buyerId, providerId, stockId);
+    }
+
+    // Comprador con franjas: 5.00 consolidados y 20.00 aún en franjas
+    private UUID stripedBuyer(String id) {
+        UUID buyerId = insertUser(UUID.fromString(id), "seller", new BigDecimal("5.00"), "active");
+        jdbcTemplate.update("INSERT INTO user_balance_stripes (user_id, stripe, amount) VALUES (?, 3, 20.00)", buyerId);
+        return buyerId;
+    }
+
+    private void useEngine(String engine) {
+        ReflectionTestUtils.setField(AopTestUtils.getUltimateTargetObject(stockService), "purchaseEngine", engine);
+    }
+
+    private void assertSameOutcome(Sale jpa, Sale function) {
+        assertThat(effectiveBalanceOf(function.buyerId())).isEqualByComparingTo(effectiveBalanceOf(jpa.buyerId()));
+        assertThat(effectiveBalanceOf(function.providerId())).isEqualByComparingTo(effectiveBalanceOf(jpa.providerId()));
+        assertThat(walletRows(function)).isEqualTo(walletRows(jpa));
+        assertThat(stockRow(function)).isEqualTo(stockRow(jpa));
+    }
+
+    // Transacciones del stock con el usuario, el producto y el id normalizados para comparar ambos motores
+    private List<Map<String, Object>> walletRows(Sale sale) {
+        return jdbcTemplate.queryForList(
+                "SELECT CASE w.user_id WHEN ? THEN 'buyer' WHEN ? THEN 'provider' END AS who, w.type, w.amount, " +
+                        "w.currency, w.status, w.exchange_applied, " +
+                        "replace(replace(w.description, p.name, '<producto>'), s.id::text, '<stock>') AS description " +
+                        "FROM wallet_transactions w JOIN stock s ON s.id = w.stock_id JOIN products p ON p.id = s.product_id " +
+                        "WHERE w.stock_id = ? ORDER BY w.type",
+                sale.buyerId(), sale.providerId(), sale.stockId());
+    }
+
+    private Map<String, Object> stockRow(Sale sale) {
+        return jdbcTemplate.queryForMap(
+                "SELECT status, buyer_id = ? AS own_buyer, client_name, client_phone, purchase_price, " +
+                        "sold_at IS NOT NULL AS sold, start_at IS NOT NULL AS started, " +
+                        "round(extract(epoch FROM end_at - start_at) / 86400) AS days, " +
+                        "reserved_by, reserved_until, deleted FROM stock WHERE id = ?",
+                sale.buyerId(), sale.stockId());
+    }
+
+    private void assertRejected(UUID buyerId, UUID productId, String sqlState, HttpStatus status) {
+        DataAccessException error = assertThrows(DataAccessException.class, () ->
+                transactionTemplate.executeWithoutResult(tx -> stockRepository.purchaseViaFunction(buyerId, productId,
+                        "Cliente", "999888777", balanceLedger.stripedAccountsLiteral(), balanceLedger.currentStripe())));
+
+        assertThat(sqlStateOf(error)).isEqualTo(sqlState);
+        assertThat(StockService.translatePurchaseError(error)).isInstanceOfSatisfying(ResponseStatusException.class,
+                e -> assertThat(e.getStatusCode()).isEqualTo(status));
+    }
+
+    private static String sqlStateOf(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException sql) {
+                return sql.getSQLState();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.PurchaseRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.math.BigDecimal;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Base de las pruebas que necesitan PostgreSQL real (SKIP LOCKED, funciones y triggers de SchemaInitializer).
+ * Levanta el contexto completo sobre un contenedor; sin Docker las pruebas se omiten.
+ * Los datos se insertan con JdbcTemplate para no depender de los valores por defecto de las entidades.
+ */
+@SpringBootTest
+@Testcontainers(disabledWithoutDocker = true)
+abstract class PostgresIntegrationTest {
+
+    static final String PASSWORD = "clave-de-prueba";
+
+    @Container
+    static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    @DynamicPropertySource
+    static void datasource(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", POSTGRES::getJdbcUrl);
+        registry.add("spring.datasource.username", POSTGRES::getUsername);
+        registry.add("spring.datasource.password", POSTGRES::getPassword);
+    }
+
+    @Autowired
+    protected JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    protected PasswordEncoder passwordEncoder;
+
+    // Argon2 es lento: un solo hash para todos los usuarios de la prueba
+    private String passwordHash;
+
+    protected UUID insertUser(String role, BigDecimal balance) {
+        return insertUser(UUID.randomUUID(), role, balance, "active");
+    }
+
+    protected UUID insertUser(UUID id, String role, BigDecimal balance, String status) {
+        if (passwordHash == null) {
+            passwordHash = passwordEncoder.encode(PASSWORD);
+        }
+        jdbcTemplate.update("INSERT INTO users (id, username, role, balance, sales_count, status, referrals_count, " +
+                        "password_hash, password_algo, created_at) VALUES (?, ?, ?, ?, 0, ?, 0, ?, 'argon2id', now())",
+                id, "u-" + id, role, balance, status, passwordHash);
+        return id;
+    }
+
+    protected UUID insertProduct(UUID providerId, BigDecimal salePrice, int days) {
+        UUID id = UUID.randomUUID();
+        jdbcTemplate.update("INSERT INTO products (id, provider_id, name, days, sale_price, is_renewable, is_on_request, " +
+                        "active, created_at, updated_at, deleted) VALUES (?, ?, ?, ?, ?, false, false, true, now(), now(), false)",
+                id, providerId, "Producto " + id, days, salePrice);
+        return id;
+    }
+
+    protected List<Long> insertStocks(UUID productId, int count) {
+        List<Long> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(jdbcTemplate.queryForObject("INSERT INTO stock (product_id, username, password, status, " +
+                            "purchase_price, created_at, deleted) VALUES (?, ?, 'x', 'active', 0, now(), false) RETURNING id",
+                    Long.class, productId, "cuenta-" + i));
+        }
+        return ids;
+    }
+
+    protected BigDecimal balanceOf(UUID userId) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM users WHERE id = ?", BigDecimal.class, userId);
+    }
+
+    // Saldo efectivo: users.balance más las franjas pendientes de consolidar
+    protected BigDecimal effectiveBalanceOf(UUID userId) {
+        return jdbcTemplate.queryForObject("SELECT u.balance + COALESCE((SELECT sum(s.amount) FROM user_balance_stripes s " +
+                "WHERE s.user_id = u.id), 0) FROM users u WHERE u.id = ?", BigDecimal.class, userId);
+    }
+
+    protected static Principal principal(UUID userId) {
+        return userId::toString;
+    }
+
+    protected static PurchaseRequest purchaseRequest() {
+        return PurchaseRequest.builder()
+                .clientName("Cliente")
+                .clientPhone("999888777")
+                .password(PASSWORD)
+                .build();
+    }
+}
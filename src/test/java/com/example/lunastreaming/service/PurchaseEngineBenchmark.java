@@ -0,0 +1,98 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.PurchaseRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Motor JPA frente a luna_purchase_v2: latencia de compras seguidas de un solo comprador y rendimiento
+ * con varios compradores del mismo producto. Solo informa las cifras; no compara tiempos.
+ * Excluido del build por defecto: mvn test -Dgroups=benchmark -Dbenchmark.excludedGroups=none
+ */
+@Tag("benchmark")
+@Slf4j
+@TestPropertySource(properties = {
+        // La contraseña (Argon2) se valida una vez por comprador al emitir el token, no en cada compra
+        "app.purchase.token.max-uses=1000",
+        "app.purchase.token.ttl-seconds=3600",
+        "spring.datasource.hikari.maximum-pool-size=40"
+})
+class PurchaseEngineBenchmark extends PostgresIntegrationTest {
+
+    private static final String[] ENGINES = {"jpa", "sql-function"};
+    private static final int SEQUENTIAL_PURCHASES = 200;
+    private static final int CONCURRENT_BUYERS = 8;
+    private static final int PURCHASES_PER_BUYER = 50;
+    private static final BigDecimal PRICE = new BigDecimal("1.00");
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private PurchaseAuthorizationService purchaseAuthorizationService;
+
+    @AfterEach
+    void restoreEngine() {
+        useEngine("jpa");
+    }
+
+    @Test
+    void compareEngines() throws Exception {
+        // Calentamiento de ambos motores: JIT, pool de conexiones y planes de la función
+        for (String engine : ENGINES) {
+            measure(engine, 2, 20);
+        }
+
+        for (String engine : ENGINES) {
+            PurchaseLoad.Result sequential = measure(engine, 1, SEQUENTIAL_PURCHASES);
+            PurchaseLoad.Result concurrent = measure(engine, CONCURRENT_BUYERS, PURCHASES_PER_BUYER);
+
+            log.info("{} secuencial  {}", engine, sequential.summary());
+            log.info("{} concurrente {}", engine, concurrent.summary());
+
+            assertThat(sequential.failed()).isZero();
+            assertThat(concurrent.failed()).isZero();
+        }
+    }
+
+    private PurchaseLoad.Result measure(String engine, int buyers, int purchasesPerBuyer) throws Exception {
+        useEngine(engine);
+        UUID productId = insertProduct(insertUser("provider", BigDecimal.ZERO), PRICE, 30);
+        insertStocks(productId, buyers * purchasesPerBuyer);
+
+        List<UUID> buyerIds = new ArrayList<>(buyers);
+        Map<UUID, String> tokens = new HashMap<>();
+        for (int i = 0; i < buyers; i++) {
+            UUID buyerId = insertUser("seller", PRICE.multiply(BigDecimal.valueOf(purchasesPerBuyer)));
+            buyerIds.add(buyerId);
+            tokens.put(buyerId, purchaseAuthorizationService.issue(buyerId, PASSWORD).getToken());
+        }
+
+        return PurchaseLoad.run(buyerIds, purchasesPerBuyer, buyerId -> stockService.purchaseProduct(productId,
+                PurchaseRequest.builder()
+                        .clientName("Cliente")
+                        .clientPhone("999888777")
+                        .purchaseToken(tokens.get(buyerId))
+                        .build(),
+                principal(buyerId)));
+    }
+
+    private void useEngine(String engine) {
+        ReflectionTestUtils.setField(AopTestUtils.getUltimateTargetObject(stockService), "purchaseEngine", engine);
+    }
+}
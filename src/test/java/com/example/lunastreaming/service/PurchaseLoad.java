@@ -0,0 +1,87 @@
+package com.example.lunastreaming.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carga de compras de los benchmarks: un hilo por comprador, todos soltados a la vez, cada uno con
+ * un número fijo de compras seguidas. Mide compras por segundo y la latencia de cada compra.
+ */
+final class PurchaseLoad {
+
+    @FunctionalInterface
+    interface Purchase {
+        void run(UUID buyerId);
+    }
+
+    record Result(int buyers, int succeeded, int failed, long elapsedNanos, long[] latencies) {
+
+        double throughput() {
+            return succeeded * 1e9 / elapsedNanos;
+        }
+
+        // Percentil (0..100) de la latencia en milisegundos
+        double latencyMs(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int i = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.clamp(i, 0, latencies.length - 1)] / 1e6;
+        }
+
+        String summary() {
+            return String.format("compradores=%2d ok=%4d fallidas=%4d  %8.1f compras/s  p50=%6.1f ms  p95=%6.1f ms",
+                    buyers, succeeded, failed, throughput(), latencyMs(50), latencyMs(95));
+        }
+    }
+
+    private PurchaseLoad() {
+    }
+
+    static Result run(List<UUID> buyerIds, int purchasesPerBuyer, Purchase purchase) throws Exception {
+        int buyers = buyerIds.size();
+        ExecutorService pool = Executors.newFixedThreadPool(buyers);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>(buyers);
+            for (UUID buyerId : buyerIds) {
+                futures.add(pool.submit(() -> {
+                    // Latencia de cada compra; -1 si falló
+                    long[] own = new long[purchasesPerBuyer];
+                    start.await();
+                    for (int i = 0; i < purchasesPerBuyer; i++) {
+                        long t = System.nanoTime();
+                        try {
+                            purchase.run(buyerId);
+                            own[i] = System.nanoTime() - t;
+                        } catch (RuntimeException e) {
+                            own[i] = -1;
+                        }
+                    }
+                    return own;
+                }));
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            List<long[]> perBuyer = new ArrayList<>(buyers);
+            for (Future<long[]> future : futures) {
+                perBuyer.add(future.get(5, TimeUnit.MINUTES));
+            }
+            long elapsed = System.nanoTime() - begin;
+
+            long[] latencies = perBuyer.stream().flatMapToLong(Arrays::stream).filter(l -> l >= 0).sorted().toArray();
+            int failed = buyers * purchasesPerBuyer - latencies.length;
+            return new Result(buyers, latencies.length, failed, elapsed, latencies);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.lunastreaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * N compradores concurrentes contra un producto con M stocks: con SKIP LOCKED cada compra reclama una fila
+ * distinta, ningún stock se vende dos veces y ninguna compra falla mientras quede stock.
+ */
+class StockPurchaseConcurrencyTest extends PostgresIntegrationTest {
+
+    private static final BigDecimal PRICE = new BigDecimal("10.00");
+
+    @Autowired
+    private StockService stockService;
+
+    @Test
+    void everyBuyerGetsItsOwnStockWhileStockRemains() throws Exception {
+        int buyers = 12;
+        int stocks = 20;
+        UUID providerId = insertUser("provider", BigDecimal.ZERO);
+        UUID productId = insertProduct(providerId, PRICE, 30);
+        List<Long> stockIds = insertStocks(productId, stocks);
+
+        List<Outcome> outcomes = purchaseConcurrently(productId, buyers);
+
+        List<Long> sold = new ArrayList<>();
+        for (Outcome outcome : outcomes) {
+            assertThat(outcome.error()).as("ninguna compra falla mientras queda stock").isNull();
+            sold.add(outcome.stockId());
+        }
+        assertThat(new HashSet<>(sold)).hasSize(buyers).allMatch(stockIds::contains);
+        assertSoldOnce(productId, buyers);
+        assertThat(countByStatus(productId, "active")).isEqualTo(stocks - buyers);
+        assertThat(balanceOf(providerId)).isEqualByComparingTo(PRICE.multiply(BigDecimal.valueOf(buyers)));
+    }
+
+    @Test
+    void moreBuyersThanStockSellEachStockExactlyOnce() throws Exception {
+        int buyers = 16;
+        int stocks = 5;
+        UUID providerId = insertUser("provider", BigDecimal.ZERO);
+        UUID productId = insertProduct(providerId, PRICE, 30);
+        insertStocks(productId, stocks);
+
+        List<Outcome> outcomes = purchaseConcurrently(productId, buyers);
+
+        List<Long> sold = new ArrayList<>();
+        for (Outcome outcome : outcomes) {
+            if (outcome.error() == null) {
+                sold.add(outcome.stockId());
+            } else {
+                // Agotado (404) o filas tomadas por compras en curso (409); nunca otro error
+                assertThat(outcome.error()).isInstanceOf(ResponseStatusException.class);
+                assertThat(((ResponseStatusException) outcome.error()).getStatusCode())
+                        .isIn(HttpStatus.NOT_FOUND, HttpStatus.CONFLICT);
+            }
+        }
+        // Ninguna compra revierte, así que todo el stock termina vendido y cada fila una sola vez
+        assertThat(new HashSet<>(sold)).hasSize(stocks);
+        assertSoldOnce(productId, stocks);
+        assertThat(countByStatus(productId, "active")).isZero();
+        assertThat(balanceOf(providerId)).isEqualByComparingTo(PRICE.multiply(BigDecimal.valueOf(stocks)));
+    }
+
+    private record Outcome(Long stockId, Throwable error) {}
+
+    // Cada hilo compra con su propio comprador; el latch los suelta a la vez
+    private List<Outcome> purchaseConcurrently(UUID productId, int buyers) throws InterruptedException {
+        List<UUID> buyerIds = new ArrayList<>(buyers);
+        for (int i = 0; i < buyers; i++) {
+            buyerIds.add(insertUser("seller", new BigDecimal("100.00")));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(buyers);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Long>> futures = new ArrayList<>(buyers);
+            for (UUID buyerId : buyerIds) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return stockService.purchaseProduct(productId, purchaseRequest(), principal(buyerId)).getId();
+                }));
+            }
+            start.countDown();
+
+            List<Outcome> outcomes = new ArrayList<>(buyers);
+            for (Future<Long> future : futures) {
+                try {
+                    outcomes.add(new Outcome(future.get(60, TimeUnit.SECONDS), null));
+                } catch (ExecutionException e) {
+                    outcomes.add(new Outcome(null, e.getCause()));
+                } catch (TimeoutException e) {
+                    throw new AssertionError("La compra no terminó a tiempo", e);
+                }
+            }
+            return outcomes;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Cada stock vendido tiene exactamente una transacción de compra y una de venta
+    private void assertSoldOnce(UUID productId, int expectedSold) {
+        assertThat(countByStatus(productId, "sold")).isEqualTo(expectedSold);
+        List<Integer> purchasesPerStock = jdbcTemplate.queryForList(
+                "SELECT count(w.id)::int FROM stock s LEFT JOIN wallet_transactions w ON w.stock_id = s.id AND w.type = 'purchase' " +
+                        "WHERE s.product_id = ? AND s.status = 'sold' GROUP BY s.id", Integer.class, productId);
+        assertThat(purchasesPerStock).hasSize(expectedSold).containsOnly(1);
+        Integer doubleSold = jdbcTemplate.queryForObject(
+                "SELECT count(*)::int FROM (SELECT w.stock_id FROM wallet_transactions w JOIN stock s ON s.id = w.stock_id " +
+                        "WHERE s.product_id = ? AND w.type IN ('purchase', 'sale') GROUP BY w.stock_id, w.type " +
+                        "HAVING count(*) > 1) d", Integer.class, productId);
+        assertThat(doubleSold).isZero();
+    }
+
+    private int countByStatus(UUID productId, String status) {
+        return jdbcTemplate.queryForObject("SELECT count(*)::int FROM stock WHERE product_id = ? AND status = ?",
+                Integer.class, productId, status);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.lunastreaming.service;
+
+import com.example.lunastreaming.model.PurchaseRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Rendimiento de compras de un solo producto según el número de compradores simultáneos:
+ * reclamo con SKIP LOCKED, bloqueo de la primera fila (first-row) y SKIP LOCKED detrás del carril
+ * de admisión con su concurrencia configurada. Solo informa las cifras; no compara tiempos.
+ * Excluido del build por defecto: mvn test -Dgroups=benchmark -Dbenchmark.excludedGroups=none
+ */
+@Tag("benchmark")
+@Slf4j
+@TestPropertySource(properties = {
+        // La contraseña (Argon2) se valida una vez por comprador al emitir el token, no en cada compra
+        "app.purchase.token.max-uses=1000",
+        "app.purchase.token.ttl-seconds=3600",
+        // El pool no debe ser el límite de compradores simultáneos que se mide
+        "spring.datasource.hikari.maximum-pool-size=40"
+})
+class StockPurchaseScalingBenchmark extends PostgresIntegrationTest {
+
+    private static final int[] BUYER_COUNTS = {1, 2, 4, 8, 16};
+    private static final int PURCHASES_PER_BUYER = 25;
+    private static final BigDecimal PRICE = new BigDecimal("1.00");
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private PurchaseAuthorizationService purchaseAuthorizationService;
+
+    @Autowired
+    private PurchaseAdmissionService purchaseAdmissionService;
+
+    @AfterEach
+    void restoreClaimMode() {
+        useClaimMode("skip-locked");
+    }
+
+    @Test
+    void throughputByBuyerCountOnOneProduct() throws Exception {
+        // Calentamiento: JIT, pool de conexiones y planes de consulta
+        measure("skip-locked", 4, false);
+
+        for (int buyers : BUYER_COUNTS) {
+            PurchaseLoad.Result skipLocked = measure("skip-locked", buyers, false);
+            PurchaseLoad.Result firstRow = measure("first-row", buyers, false);
+            PurchaseLoad.Result laned = measure("skip-locked", buyers, true);
+
+            log.info("skip-locked        {}", skipLocked.summary());
+            log.info("first-row          {}", firstRow.summary());
+            log.info("skip-locked+carril {}", laned.summary());
+
+            // Con stock de sobra SKIP LOCKED no rechaza ninguna compra; first-row puede responder 409
+            assertThat(skipLocked.failed()).isZero();
+            assertThat(laned.failed()).isZero();
+        }
+    }
+
+    private PurchaseLoad.Result measure(String claimMode, int buyers, boolean throughLane) throws Exception {
+        useClaimMode(claimMode);
+        UUID productId = insertProduct(insertUser("provider", BigDecimal.ZERO), PRICE, 30);
+        insertStocks(productId, buyers * PURCHASES_PER_BUYER);
+
+        List<UUID> buyerIds = new ArrayList<>(buyers);
+        Map<UUID, String> tokens = new HashMap<>();
+        for (int i = 0; i < buyers; i++) {
+            UUID buyerId = insertUser("seller", PRICE.multiply(BigDecimal.valueOf(PURCHASES_PER_BUYER)));
+            buyerIds.add(buyerId);
+            tokens.put(buyerId, purchaseAuthorizationService.issue(buyerId, PASSWORD).getToken());
+        }
+
+        return PurchaseLoad.run(buyerIds, PURCHASES_PER_BUYER, buyerId -> {
+            PurchaseRequest request = PurchaseRequest.builder()
+                    .clientName("Cliente")
+                    .clientPhone("999888777")
+                    .purchaseToken(tokens.get(buyerId))
+                    .build();
+            Supplier<Object> purchase = () -> stockService.purchaseProduct(productId, request, principal(buyerId));
+            if (throughLane) {
+                purchaseAdmissionService.admit(productId, purchase);
+            } else {
+                purchase.get();
+            }
+        });
+    }
+
+    private void useClaimMode(String mode) {
+        ReflectionTestUtils.setField(AopTestUtils.getUltimateTargetObject(stockService), "stockClaimMode", mode);
+    }
+}